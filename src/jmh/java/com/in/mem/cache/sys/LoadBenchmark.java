@@ -0,0 +1,124 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cold load time of {@link CacheImplementation} from the text files, from a warm restart snapshot, or as a
+ * lazy row index, together with the heap the loaded generation retains and the bytes it maps off-heap.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class LoadBenchmark {
+
+    @Param({"100000"})
+    private int users;
+
+    @Param({"4"})
+    private int devicesPerUser;
+
+    @Param({"8"})
+    private int segmentsPerDevice;
+
+    @Param({"0.1"})
+    private double restrictedRatio;
+
+    @Param({"text", "snapshot", "lazy"})
+    private String source;
+
+    @Param({"10000"})
+    private int rowCacheCapacity;
+
+    private Path directory;
+    private Path snapshot;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        directory = Files.createTempDirectory("load-benchmark");
+        new SegmentDataGenerator(users, devicesPerUser, segmentsPerDevice, restrictedRatio).generate(directory);
+        if ("snapshot".equals(source)) {
+            snapshot = directory.resolve("segments.snapshot");
+            // the first load writes the snapshot every measured load maps
+            new CacheImplementation(directory, snapshot).close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        SegmentDataGenerator.delete(directory);
+    }
+
+    @Benchmark
+    public CacheImplementation load(final Footprint footprint) {
+        if ("lazy".equals(source)) {
+            footprint.loaded = CacheImplementation.lazy(directory, rowCacheCapacity);
+        } else {
+            footprint.loaded = snapshot == null
+                    ? new CacheImplementation(directory)
+                    : new CacheImplementation(directory, snapshot);
+        }
+        return footprint.loaded;
+    }
+
+    // heap retained by the loaded generation, measured outside the timed region and printed with each
+    // iteration (JMH would sum an aux counter over iterations)
+    @State(Scope.Thread)
+    public static class Footprint {
+
+        private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+        private long heapBefore;
+        private CacheImplementation loaded;
+
+        @Setup(Level.Iteration)
+        public void baseline() {
+            heapBefore = usedHeap();
+        }
+
+        @TearDown(Level.Iteration)
+        public void measure() throws IOException {
+            final long retainedHeapBytes = Math.max(0, usedHeap() - heapBefore);
+            final long offHeapBytes;
+            if (loaded.segmentIndex() instanceof OffHeapSegmentIndex offHeap) {
+                offHeapBytes = offHeap.image().byteSize();
+            } else if (loaded.segmentIndex() instanceof LazySegmentIndex lazy) {
+                offHeapBytes = lazy.mappedBytes();
+            } else {
+                offHeapBytes = 0;
+            }
+            System.out.println("Footprint: retained heap " + retainedHeapBytes + " bytes, off-heap "
+                    + offHeapBytes + " bytes");
+            loaded.close();
+            loaded = null;
+        }
+
+        private static long usedHeap() {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+            }
+            return MEMORY.getHeapMemoryUsage().getUsed();
+        }
+    }
+}
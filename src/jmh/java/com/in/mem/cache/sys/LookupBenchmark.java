@@ -0,0 +1,132 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput and latency percentiles (SampleTime reports p50 to p99.99) of
+ * {@link TargetingSystem#lookupUserSegments} over uniformly random users. {@link #main} repeats the run
+ * for each thread count in the {@code threads} system property.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LookupBenchmark {
+
+    @Param({"100000"})
+    private int users;
+
+    @Param({"4"})
+    private int devicesPerUser;
+
+    @Param({"8"})
+    private int segmentsPerDevice;
+
+    @Param({"0.1"})
+    private double restrictedRatio;
+
+    @Param({"1", "10", "100"})
+    private int segmentLimit;
+
+    @Param({"false", "true"})
+    private boolean allowRestrictedSegments;
+
+    @Param({"false"})
+    private boolean resolvedCache;
+
+    private CacheImplementation cache;
+    private TargetingSystem targetingSystem;
+    private String[] userIds;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        final Path directory = Files.createTempDirectory("lookup-benchmark");
+        try {
+            new SegmentDataGenerator(users, devicesPerUser, segmentsPerDevice, restrictedRatio).generate(directory);
+            cache = new CacheImplementation(directory);
+        } finally {
+            SegmentDataGenerator.delete(directory);
+        }
+        targetingSystem = resolvedCache
+                ? new TargetingSystem(cache, new ResolvedSegmentCache(users))
+                : new TargetingSystem(cache);
+        userIds = new String[users];
+        for (int user = 0; user < users; user++) {
+            userIds[user] = SegmentDataGenerator.userId(user);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        cache.close();
+    }
+
+    @Benchmark
+    public Collection<Integer> lookupUserSegments(final Users users) {
+        return targetingSystem.lookupUserSegments(userIds[users.next(userIds.length)], allowRestrictedSegments,
+                segmentLimit);
+    }
+
+    @Benchmark
+    public int lookupUserSegmentsIntoBuffer(final Users users) {
+        return targetingSystem.lookupUserSegments(userIds[users.next(userIds.length)], allowRestrictedSegments,
+                segmentLimit, users.out);
+    }
+
+    // per-thread key stream and result buffer, so threads do not contend on shared state
+    @State(Scope.Thread)
+    public static class Users {
+
+        private final int[] out = new int[1024];
+        private SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void seed() {
+            random = new SplittableRandom(Thread.currentThread().threadId());
+        }
+
+        int next(final int bound) {
+            return random.nextInt(bound);
+        }
+    }
+
+    // usage: LookupBenchmark [jmh options], with -Dthreads=1,2,4,8 selecting the thread counts
+    public static void main(final String[] args) throws RunnerException, CommandLineOptionException {
+        final CommandLineOptions options = new CommandLineOptions(args);
+        for (final String threads : System.getProperty("threads", "1,2,4,8").split(",")) {
+            // the result table has no thread column, so label each run
+            System.out.println("Threads: " + threads.trim());
+            new Runner(new OptionsBuilder()
+                    .parent(options)
+                    .include(LookupBenchmark.class.getSimpleName())
+                    .threads(Integer.parseInt(threads.trim()))
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.in.mem.cache.sys;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/**
+ * Writes idmappings.txt, segmentdata.txt and restrictedsegments.txt at a configurable scale. Users are
+ * named ID0..IDn and devices device0..devicem, so benchmarks can derive lookup keys without reading the
+ * files back. Output is deterministic for a given seed.
+ */
+public final class SegmentDataGenerator {
+
+    public static final int DEFAULT_SEGMENT_UNIVERSE = 50_000;
+    private static final int FIRST_SEGMENT_ID = 10_000;
+
+    private final int users;
+    private final int devicesPerUser;
+    private final int segmentsPerDevice;
+    private final double restrictedRatio;
+    private final int segmentUniverse;
+    private final long seed;
+
+    public SegmentDataGenerator(final int users, final int devicesPerUser, final int segmentsPerDevice,
+                                final double restrictedRatio) {
+        this(users, devicesPerUser, segmentsPerDevice, restrictedRatio, DEFAULT_SEGMENT_UNIVERSE, 42);
+    }
+
+    public SegmentDataGenerator(final int users, final int devicesPerUser, final int segmentsPerDevice,
+                                final double restrictedRatio, final int segmentUniverse, final long seed) {
+        this.users = users;
+        this.devicesPerUser = devicesPerUser;
+        this.segmentsPerDevice = segmentsPerDevice;
+        this.restrictedRatio = restrictedRatio;
+        this.segmentUniverse = segmentUniverse;
+        this.seed = seed;
+    }
+
+    public static String userId(final int user) {
+        return "ID" + user;
+    }
+
+    public static String deviceId(final int device) {
+        return "device" + device;
+    }
+
+    public void generate(final Path directory) throws IOException {
+        Files.createDirectories(directory);
+        final SplittableRandom random = new SplittableRandom(seed);
+        try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve("idmappings.txt"),
+                StandardCharsets.US_ASCII)) {
+            for (int user = 0; user < users; user++) {
+                writer.write(userId(user));
+                writer.write(':');
+                for (int i = 0; i < devicesPerUser; i++) {
+                    if (i > 0) {
+                        writer.write(',');
+                    }
+                    writer.write(deviceId(user * devicesPerUser + i));
+                }
+                writer.newLine();
+            }
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve("segmentdata.txt"),
+                StandardCharsets.US_ASCII)) {
+            final long devices = (long) users * devicesPerUser;
+            for (int device = 0; device < devices; device++) {
+                writer.write(deviceId(device));
+                writer.write(':');
+                for (int i = 0; i < segmentsPerDevice; i++) {
+                    if (i > 0) {
+                        writer.write(',');
+                    }
+                    writer.write(Integer.toString(FIRST_SEGMENT_ID + random.nextInt(segmentUniverse)));
+                }
+                writer.newLine();
+            }
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve("restrictedsegments.txt"),
+                StandardCharsets.US_ASCII)) {
+            for (int segment = 0; segment < segmentUniverse; segment++) {
+                if (random.nextDouble() < restrictedRatio) {
+                    writer.write(Integer.toString(FIRST_SEGMENT_ID + segment));
+                    writer.newLine();
+                }
+            }
+        }
+    }
+
+    public static void delete(final Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (final Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    // usage: SegmentDataGenerator <directory> [users] [devicesPerUser] [segmentsPerDevice] [restrictedRatio]
+    public static void main(final String[] args) throws IOException {
+        final Path directory = Paths.get(args.length > 0 ? args[0] : "target/benchmark-data");
+        final SegmentDataGenerator generator = new SegmentDataGenerator(
+                args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000,
+                args.length > 2 ? Integer.parseInt(args[2]) : 4,
+                args.length > 3 ? Integer.parseInt(args[3]) : 8,
+                args.length > 4 ? Double.parseDouble(args[4]) : 0.1);
+        generator.generate(directory);
+        System.out.println("Generated benchmark data in " + directory.toAbsolutePath());
+    }
+}
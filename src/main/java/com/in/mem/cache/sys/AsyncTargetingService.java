@@ -0,0 +1,235 @@
+package com.in.mem.cache.sys;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Asynchronous facade over {@link TargetingSystem}. Every call must obtain a permit before it is queued, so
+ * at most {@code maxInFlight} lookups are queued or running and excess load fails fast with a
+ * {@link RejectedExecutionException} instead of growing a queue. Futures fail with a {@link TimeoutException}
+ * once their deadline has passed; work that has not started by then is skipped. Publishers emit one result
+ * per requested ID and only look up as many IDs as the subscriber has requested.
+ */
+public final class AsyncTargetingService implements AutoCloseable {
+
+    private static final int IDS_PER_PERMIT = 256;
+
+    private final TargetingSystem targetingSystem;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int maxInFlight;
+    private final Duration defaultDeadline;
+
+    // the service owns the executor and shuts it down on close
+    public AsyncTargetingService(final TargetingSystem targetingSystem, final ExecutorService executor,
+                                 final int maxInFlight, final Duration defaultDeadline) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        this.targetingSystem = targetingSystem;
+        this.executor = executor;
+        this.permits = new Semaphore(maxInFlight);
+        this.maxInFlight = maxInFlight;
+        this.defaultDeadline = defaultDeadline;
+    }
+
+    // one virtual thread per call; the permits bound how many exist at once
+    public static AsyncTargetingService ofVirtualThreads(final TargetingSystem targetingSystem, final int maxInFlight,
+                                                         final Duration defaultDeadline) {
+        return new AsyncTargetingService(targetingSystem,
+                Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("segment-lookup-", 0).factory()),
+                maxInFlight, defaultDeadline);
+    }
+
+    // a fixed pool of platform threads, for callers that prefer to cap the CPU used by lookups
+    public static AsyncTargetingService ofBoundedPool(final TargetingSystem targetingSystem, final int threads,
+                                                      final int maxInFlight, final Duration defaultDeadline) {
+        return new AsyncTargetingService(targetingSystem,
+                Executors.newFixedThreadPool(threads,
+                        Thread.ofPlatform().name("segment-lookup-", 0).daemon().factory()),
+                maxInFlight, defaultDeadline);
+    }
+
+    public CompletableFuture<int[]> lookup(final String id, final boolean allowRestrictedSegments,
+                                           final int segmentLimit) {
+        return lookup(id, allowRestrictedSegments, segmentLimit, defaultDeadline);
+    }
+
+    public CompletableFuture<int[]> lookup(final String id, final boolean allowRestrictedSegments,
+                                           final int segmentLimit, final Duration deadline) {
+        return submit(1, deadline,
+                () -> targetingSystem.lookupUserSegmentArray(id, allowRestrictedSegments, segmentLimit));
+    }
+
+    // a batch takes one permit per 256 IDs (at most all of them), so large batches count against the bound
+    public CompletableFuture<SegmentBatch> lookupBatch(final List<String> ids, final boolean allowRestrictedSegments,
+                                                       final int segmentLimit, final Duration deadline) {
+        final int weight = Math.min(maxInFlight, 1 + ids.size() / IDS_PER_PERMIT);
+        return submit(weight, deadline,
+                () -> targetingSystem.lookupUserSegmentsBatch(ids, allowRestrictedSegments, segmentLimit));
+    }
+
+    // cold publisher: each subscription holds one permit until it completes or is cancelled
+    public Flow.Publisher<int[]> publish(final List<String> ids, final boolean allowRestrictedSegments,
+                                         final int segmentLimit) {
+        return subscriber -> {
+            final boolean admitted = permits.tryAcquire();
+            final LookupSubscription subscription =
+                    new LookupSubscription(subscriber, ids, allowRestrictedSegments, segmentLimit, admitted);
+            subscriber.onSubscribe(subscription);
+            if (!admitted) {
+                subscription.fail(new RejectedExecutionException("too many lookups in flight"));
+            } else if (ids.isEmpty() && subscription.finish()) {
+                subscriber.onComplete();
+            }
+        };
+    }
+
+    public int availablePermits() {
+        return permits.availablePermits();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private <T> CompletableFuture<T> submit(final int weight, final Duration deadline, final Lookup<T> lookup) {
+        if (!permits.tryAcquire(weight)) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("too many lookups in flight"));
+        }
+        final long deadlineNanos = System.nanoTime() + deadline.toNanos();
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                // the permit is returned before completion, so a caller that sees the result can submit again
+                if (result.isDone() || System.nanoTime() - deadlineNanos >= 0) {
+                    permits.release(weight);
+                    return;
+                }
+                final T value;
+                try {
+                    value = lookup.run();
+                } catch (final RuntimeException e) {
+                    permits.release(weight);
+                    result.completeExceptionally(e);
+                    return;
+                }
+                permits.release(weight);
+                result.complete(value);
+            });
+        } catch (final RejectedExecutionException e) {
+            permits.release(weight);
+            return CompletableFuture.failedFuture(e);
+        }
+        return result.orTimeout(deadline.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    @FunctionalInterface
+    private interface Lookup<T> {
+        T run();
+    }
+
+    // emits on the executor, one drain loop at a time, never more items than requested; an invalid request is
+    // signalled by that loop too, so signals never overlap
+    private final class LookupSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super int[]> subscriber;
+        private final List<String> ids;
+        private final boolean allowRestrictedSegments;
+        private final int segmentLimit;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger work = new AtomicInteger();
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final AtomicReference<Throwable> requestError = new AtomicReference<>();
+        private final boolean admitted;
+        private int next;
+
+        private LookupSubscription(final Flow.Subscriber<? super int[]> subscriber, final List<String> ids,
+                                   final boolean allowRestrictedSegments, final int segmentLimit,
+                                   final boolean admitted) {
+            this.subscriber = subscriber;
+            this.ids = ids;
+            this.allowRestrictedSegments = allowRestrictedSegments;
+            this.segmentLimit = segmentLimit;
+            this.admitted = admitted;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                requestError.compareAndSet(null, new IllegalArgumentException("non-positive request: " + n));
+                drain();
+                return;
+            }
+            demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            finish();
+        }
+
+        private void fail(final Throwable error) {
+            if (finish()) {
+                subscriber.onError(error);
+            }
+        }
+
+        // true for the call that ends the subscription; the permit is returned exactly once
+        private boolean finish() {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            if (admitted) {
+                permits.release();
+            }
+            return true;
+        }
+
+        private void drain() {
+            if (admitted && !done.get() && work.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this::emit);
+                } catch (final RejectedExecutionException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        private void emit() {
+            do {
+                try {
+                    final Throwable error = requestError.get();
+                    if (error != null) {
+                        fail(error);
+                    }
+                    while (!done.get() && next < ids.size() && demand.get() > 0) {
+                        final int[] segments = targetingSystem.lookupUserSegmentArray(ids.get(next++),
+                                allowRestrictedSegments, segmentLimit);
+                        demand.decrementAndGet();
+                        subscriber.onNext(segments);
+                    }
+                    if (next == ids.size() && finish()) {
+                        subscriber.onComplete();
+                    }
+                } catch (final RuntimeException e) {
+                    fail(e);
+                }
+            } while (work.decrementAndGet() != 0);
+        }
+    }
+}
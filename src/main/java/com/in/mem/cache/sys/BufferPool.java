@@ -0,0 +1,49 @@
+package com.in.mem.cache.sys;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// pool of equally sized direct buffers; larger requests get a one-off buffer that is left to the collector
+final class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> pooled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    BufferPool(final int bufferSize, final int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    // a cleared buffer of at least the capacity
+    ByteBuffer acquire(final int minCapacity) {
+        if (minCapacity > bufferSize) {
+            return ByteBuffer.allocateDirect(Math.max(minCapacity, Integer.highestOneBit(minCapacity - 1) << 1));
+        }
+        final ByteBuffer buffer = pooled.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        size.decrementAndGet();
+        return buffer.clear();
+    }
+
+    void release(final ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize && size.incrementAndGet() <= maxPooled) {
+            pooled.offer(buffer);
+        } else if (buffer.capacity() == bufferSize) {
+            size.decrementAndGet();
+        }
+    }
+
+    // moves the buffer's contents, in fill mode, into a buffer of at least the capacity
+    ByteBuffer grow(final ByteBuffer buffer, final int minCapacity) {
+        final ByteBuffer grown = acquire(Math.max(minCapacity, buffer.capacity() << 1));
+        grown.put(buffer.flip());
+        release(buffer);
+        return grown;
+    }
+}
@@ -0,0 +1,426 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Predicate;
+
+import com.in.mem.cache.sys.LoadStats.FileStats;
+
+/**
+ * Loads the three cache files concurrently. Each file is memory mapped in line aligned chunks that
+ * are parsed in parallel on a fork-join pool by a byte level scanner, so no regex splitting and no
+ * intermediate substrings are involved; a String is only created the first time a chunk sees an ID.
+ * Chunk results are then merged, in file order, into a {@link PackedSegmentIndex}.
+ */
+final class BulkLoader {
+
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+    private static final int MAX_CHUNK_SIZE = 1 << 30;
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final byte NEW_LINE = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+    private static final byte DELIMITER = ':';
+    private static final byte SEPARATOR = ',';
+
+    private enum Format {
+        ID_MAPPINGS, SEGMENT_DATA, SEGMENT_ROWS, RESTRICTED_SEGMENTS
+    }
+
+    private final ForkJoinPool pool;
+    private final int minChunkSize;
+    private LoadStats loadStats;
+
+    BulkLoader() {
+        this(ForkJoinPool.commonPool(), MIN_CHUNK_SIZE);
+    }
+
+    BulkLoader(final ForkJoinPool pool, final int minChunkSize) {
+        this.pool = pool;
+        this.minChunkSize = minChunkSize;
+    }
+
+    // fails when any of the files cannot be read, so a partial load is never published
+    PackedSegmentIndex load(final Path idMappings, final Path segmentData, final Path restrictedSegments)
+            throws IOException {
+        return load(idMappings, segmentData, restrictedSegments, null);
+    }
+
+    // keeps only the users accepted by the filter (all when null), the devices they link and the segments of
+    // those devices; with a filter the segment data is parsed after the ID mappings, skipping other devices
+    PackedSegmentIndex load(final Path idMappings, final Path segmentData, final Path restrictedSegments,
+                            final Predicate<String> userFilter) throws IOException {
+        final long start = System.nanoTime();
+        final PackedSegmentIndex.Builder builder = PackedSegmentIndex.builder();
+        final ForkJoinTask<FileResult> idMappingsTask =
+                pool.submit(() -> parseFile(idMappings, Format.ID_MAPPINGS, userFilter));
+        final ForkJoinTask<FileResult> restrictedTask =
+                pool.submit(() -> parseFile(restrictedSegments, Format.RESTRICTED_SEGMENTS, null));
+        ForkJoinTask<FileResult> segmentDataTask = userFilter == null
+                ? pool.submit(() -> parseFile(segmentData, Format.SEGMENT_DATA, null))
+                : null;
+        final FileResult idMappingsResult = idMappingsTask.join();
+        if (segmentDataTask == null) {
+            rethrowFailures(idMappingsResult);
+            linkDevices(idMappingsResult, builder);
+            // the builder is only read while the segment data is parsed
+            segmentDataTask = pool.submit(() -> parseFile(segmentData, Format.SEGMENT_DATA, builder::containsDevice));
+        }
+        final FileResult segmentDataResult = segmentDataTask.join();
+        final FileResult restrictedResult = restrictedTask.join();
+        final long parsed = System.nanoTime();
+        rethrowFailures(idMappingsResult, segmentDataResult, restrictedResult);
+
+        if (userFilter == null) {
+            linkDevices(idMappingsResult, builder);
+        }
+        for (final Chunk chunk : segmentDataResult.chunks()) {
+            final int[] devices = remapDevices(chunk.keys, builder);
+            for (int i = 0; i < chunk.keyOrdinals.size(); i++) {
+                builder.addSegment(devices[chunk.keyOrdinals.get(i)], chunk.valueInts.get(i));
+            }
+        }
+        addRestrictedSegments(restrictedResult, builder);
+        final PackedSegmentIndex segmentIndex = builder.build();
+        final long indexed = System.nanoTime();
+
+        loadStats = new LoadStats(List.of(idMappingsResult.stats(), segmentDataResult.stats(), restrictedResult.stats()),
+                parsed - start, indexed - parsed, indexed - start);
+        return segmentIndex;
+    }
+
+    // loads users, links and restricted segments as usual, but only records where each segment data row
+    // starts; the rows themselves are parsed on first access by the returned index
+    LazySegmentIndex loadLazy(final Path idMappings, final Path segmentData, final Path restrictedSegments,
+                              final int rowCacheCapacity) throws IOException {
+        final long start = System.nanoTime();
+        final PackedSegmentIndex.Builder builder = PackedSegmentIndex.builder();
+        final ForkJoinTask<FileResult> idMappingsTask =
+                pool.submit(() -> parseFile(idMappings, Format.ID_MAPPINGS, null));
+        final ForkJoinTask<FileResult> segmentRowsTask =
+                pool.submit(() -> parseFile(segmentData, Format.SEGMENT_ROWS, null));
+        final ForkJoinTask<FileResult> restrictedTask =
+                pool.submit(() -> parseFile(restrictedSegments, Format.RESTRICTED_SEGMENTS, null));
+        final FileResult idMappingsResult = idMappingsTask.join();
+        final FileResult segmentRowsResult = segmentRowsTask.join();
+        final FileResult restrictedResult = restrictedTask.join();
+        final long parsed = System.nanoTime();
+        rethrowFailures(idMappingsResult, segmentRowsResult, restrictedResult);
+
+        linkDevices(idMappingsResult, builder);
+        final LazySegmentIndex.Builder rows = LazySegmentIndex.builder();
+        for (final Chunk chunk : segmentRowsResult.chunks()) {
+            final int[] devices = remapDevices(chunk.keys, builder);
+            for (int i = 0; i < chunk.keyOrdinals.size(); i++) {
+                final int rowStart = chunk.valueInts.get(i);
+                rows.addRow(devices[chunk.keyOrdinals.get(i)], chunk.base + rowStart, chunk.rowEnds.get(i) - rowStart);
+            }
+        }
+        addRestrictedSegments(restrictedResult, builder);
+        final LazySegmentIndex segmentIndex = rows.build(builder.build(), segmentData, rowCacheCapacity);
+        final long indexed = System.nanoTime();
+
+        loadStats = new LoadStats(
+                List.of(idMappingsResult.stats(), segmentRowsResult.stats(), restrictedResult.stats()),
+                parsed - start, indexed - parsed, indexed - start);
+        return segmentIndex;
+    }
+
+    LoadStats loadStats() {
+        return loadStats;
+    }
+
+    // the comma separated segment IDs of one row value, with the same rules as a full load
+    static void parseSegments(final ByteBuffer buffer, final int start, final int end, final IntList segments) {
+        for (int tokenStart = start, tokenEnd; ; tokenStart = tokenEnd + 1) {
+            tokenEnd = tokenEnd(buffer, tokenStart, end);
+            if (tokenEnd > tokenStart) {
+                segments.add(parseInt(buffer, tokenStart, tokenEnd));
+            }
+            if (!hasMoreTokens(buffer, tokenEnd, end)) {
+                return;
+            }
+        }
+    }
+
+    // the value token starting at tokenStart runs up to the next separator or delimiter
+    private static int tokenEnd(final ByteBuffer buffer, final int tokenStart, final int end) {
+        int tokenEnd = tokenStart;
+        while (tokenEnd < end && buffer.get(tokenEnd) != SEPARATOR && buffer.get(tokenEnd) != DELIMITER) {
+            tokenEnd++;
+        }
+        return tokenEnd;
+    }
+
+    // a value ends at its end or at a second delimiter
+    private static boolean hasMoreTokens(final ByteBuffer buffer, final int tokenEnd, final int end) {
+        return tokenEnd < end && buffer.get(tokenEnd) != DELIMITER;
+    }
+
+    private static void addRestrictedSegments(final FileResult restrictedResult,
+                                              final PackedSegmentIndex.Builder builder) {
+        for (final Chunk chunk : restrictedResult.chunks()) {
+            for (int i = 0; i < chunk.valueInts.size(); i++) {
+                builder.addRestrictedSegment(chunk.valueInts.get(i));
+            }
+        }
+    }
+
+    private static void linkDevices(final FileResult idMappingsResult, final PackedSegmentIndex.Builder builder) {
+        for (final Chunk chunk : idMappingsResult.chunks()) {
+            final int[] users = remapUsers(chunk.keys, builder);
+            final int[] devices = remapDevices(chunk.values, builder);
+            for (int i = 0; i < chunk.keyOrdinals.size(); i++) {
+                builder.linkDevice(users[chunk.keyOrdinals.get(i)], devices[chunk.valueInts.get(i)]);
+            }
+        }
+    }
+
+    private FileResult parseFile(final Path path, final Format format, final Predicate<String> keyFilter) {
+        final long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final long chunkSize = Math.min(MAX_CHUNK_SIZE,
+                    Math.max(minChunkSize, size / ((long) pool.getParallelism() * CHUNKS_PER_THREAD) + 1));
+            final long[] boundaries = splitLines(channel, size, chunkSize);
+            final List<ForkJoinTask<Chunk>> tasks = new ArrayList<>(boundaries.length - 1);
+            for (int i = 0; i < boundaries.length - 1; i++) {
+                final long base = boundaries[i];
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, base,
+                        boundaries[i + 1] - base);
+                tasks.add(ForkJoinTask.adapt(() -> parseChunk(buffer, base, format, keyFilter)));
+            }
+            final long split = System.nanoTime();
+            final List<Chunk> chunks = new ArrayList<>(tasks.size());
+            long records = 0;
+            for (final ForkJoinTask<Chunk> task : ForkJoinTask.invokeAll(tasks)) {
+                final Chunk chunk = task.join();
+                records += chunk.records;
+                chunks.add(chunk);
+            }
+            final FileStats stats = new FileStats(path.getFileName().toString(), size, chunks.size(), records,
+                    split - start, System.nanoTime() - split);
+            return new FileResult(stats, chunks, null);
+        } catch (final IOException e) {
+            return new FileResult(new FileStats(path.getFileName().toString(), 0, 0, 0, 0, 0), List.of(), e);
+        }
+    }
+
+    private static void rethrowFailures(final FileResult... results) throws IOException {
+        IOException failure = null;
+        for (final FileResult result : results) {
+            if (result.failure() != null) {
+                if (failure == null) {
+                    failure = result.failure();
+                } else {
+                    failure.addSuppressed(result.failure());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // chunk start offsets, each moved forward to the next line start, followed by the file size
+    private static long[] splitLines(final FileChannel channel, final long size, final long chunkSize)
+            throws IOException {
+        final List<Long> boundaries = new ArrayList<>();
+        final ByteBuffer probe = ByteBuffer.allocate(8192);
+        boundaries.add(0L);
+        long position = chunkSize;
+        while (position < size) {
+            final long lineStart = nextLineStart(channel, position, size, probe);
+            if (lineStart >= size) {
+                break;
+            }
+            boundaries.add(lineStart);
+            position = lineStart + chunkSize;
+        }
+        boundaries.add(size);
+        return boundaries.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static long nextLineStart(final FileChannel channel, final long from, final long size,
+                                      final ByteBuffer probe) throws IOException {
+        long position = from - 1;
+        while (position < size) {
+            probe.clear();
+            final int read = channel.read(probe, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == NEW_LINE) {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static Chunk parseChunk(final ByteBuffer buffer, final long base, final Format format,
+                                    final Predicate<String> keyFilter) {
+        final Chunk chunk = new Chunk(format, base);
+        final int limit = buffer.limit();
+        int position = 0;
+        while (position < limit) {
+            int lineEnd = position;
+            while (lineEnd < limit && buffer.get(lineEnd) != NEW_LINE) {
+                lineEnd++;
+            }
+            int end = lineEnd;
+            if (end > position && buffer.get(end - 1) == CARRIAGE_RETURN) {
+                end--;
+            }
+            if (end > position) {
+                if (format == Format.RESTRICTED_SEGMENTS) {
+                    chunk.valueInts.add(parseInt(buffer, position, end));
+                    chunk.records++;
+                } else {
+                    parseRecord(buffer, position, end, format, keyFilter, chunk);
+                }
+            }
+            position = lineEnd + 1;
+        }
+        return chunk;
+    }
+
+    // "key:value,value,..." - lines without a delimiter are skipped, as they always have been
+    private static void parseRecord(final ByteBuffer buffer, final int start, final int end, final Format format,
+                                    final Predicate<String> keyFilter, final Chunk chunk) {
+        int colon = start;
+        while (colon < end && buffer.get(colon) != DELIMITER) {
+            colon++;
+        }
+        if (colon == end) {
+            return;
+        }
+        final int key;
+        if (keyFilter == null) {
+            key = chunk.keys.intern(buffer, start, colon - start, chunk.scratch(colon - start));
+        } else {
+            final byte[] bytes = new byte[colon - start];
+            buffer.get(start, bytes);
+            final String id = new String(bytes, StandardCharsets.UTF_8);
+            if (!keyFilter.test(id)) {
+                return;
+            }
+            key = chunk.keys.intern(id);
+        }
+        if (format == Format.SEGMENT_ROWS) {
+            chunk.keyOrdinals.add(key);
+            chunk.valueInts.add(colon + 1);
+            chunk.rowEnds.add(end);
+            chunk.records++;
+            return;
+        }
+        if (format == Format.SEGMENT_DATA) {
+            final int parsed = chunk.valueInts.size();
+            parseSegments(buffer, colon + 1, end, chunk.valueInts);
+            for (int i = parsed; i < chunk.valueInts.size(); i++) {
+                chunk.keyOrdinals.add(key);
+            }
+            chunk.records++;
+            return;
+        }
+        for (int tokenStart = colon + 1, tokenEnd; ; tokenStart = tokenEnd + 1) {
+            tokenEnd = tokenEnd(buffer, tokenStart, end);
+            if (tokenEnd > tokenStart) {
+                final int length = tokenEnd - tokenStart;
+                chunk.keyOrdinals.add(key);
+                chunk.valueInts.add(chunk.values.intern(buffer, tokenStart, length, chunk.scratch(length)));
+            }
+            if (!hasMoreTokens(buffer, tokenEnd, end)) {
+                break;
+            }
+        }
+        chunk.records++;
+    }
+
+    private static int parseInt(final ByteBuffer buffer, final int start, final int end) {
+        final boolean negative = buffer.get(start) == '-';
+        int position = negative ? start + 1 : start;
+        if (position == end) {
+            throw numberFormatException(buffer, start, end);
+        }
+        long value = 0;
+        for (; position < end; position++) {
+            final int digit = buffer.get(position) - '0';
+            if (digit < 0 || digit > 9) {
+                throw numberFormatException(buffer, start, end);
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw numberFormatException(buffer, start, end);
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw numberFormatException(buffer, start, end);
+        }
+        return (int) value;
+    }
+
+    private static NumberFormatException numberFormatException(final ByteBuffer buffer, final int start,
+                                                               final int end) {
+        final byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new NumberFormatException("For input string: \"" + new String(bytes) + "\"");
+    }
+
+    private static int[] remapUsers(final IdDictionary local, final PackedSegmentIndex.Builder builder) {
+        final int[] global = new int[local.size()];
+        for (int i = 0; i < global.length; i++) {
+            global[i] = builder.internUser(local.id(i));
+        }
+        return global;
+    }
+
+    private static int[] remapDevices(final IdDictionary local, final PackedSegmentIndex.Builder builder) {
+        final int[] global = new int[local.size()];
+        for (int i = 0; i < global.length; i++) {
+            global[i] = builder.internDevice(local.id(i));
+        }
+        return global;
+    }
+
+    private record FileResult(FileStats stats, List<Chunk> chunks, IOException failure) {
+    }
+
+    // parse output of one chunk: IDs are ordinals into the chunk local dictionaries until merged; for
+    // segment rows the value is the row's offset in the chunk, which starts at base in the file
+    private static final class Chunk {
+
+        private final IdDictionary keys = new IdDictionary();
+        private final IdDictionary values;
+        private final IntList keyOrdinals = new IntList();
+        private final IntList valueInts = new IntList();
+        private final IntList rowEnds;
+        private final long base;
+        private byte[] scratch = new byte[64];
+        private long records;
+
+        private Chunk(final Format format, final long base) {
+            this.values = format == Format.ID_MAPPINGS ? new IdDictionary() : null;
+            this.rowEnds = format == Format.SEGMENT_ROWS ? new IntList() : null;
+            this.base = base;
+        }
+
+        private byte[] scratch(final int length) {
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length << 1)];
+            }
+            return scratch;
+        }
+    }
+}
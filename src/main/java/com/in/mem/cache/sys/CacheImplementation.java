@@ -2,100 +2,434 @@ package com.in.mem.cache.sys;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
-public class CacheImplementation implements Cache {
+/**
+ * Heap backed {@link PrimitiveCache}. The loaded data is an immutable generation that is replaced as a
+ * whole by {@link #reload()}: a new generation is built off to the side and published with a single
+ * volatile write, so lookups never take a lock and in-flight lookups finish against the generation they
+ * started with. {@link #applyDeltas(List)} publishes small changes the same way, as a copy-on-write
+ * overlay over the current generation.
+ */
+public class CacheImplementation implements PrimitiveCache, AutoCloseable {
 
     private static final String ID_MAP_FILE_NAME = "idmappings.txt";
     private static final String SEGMENT_DATA_FILE_NAME = "segmentdata.txt";
     private static final String RESTRICTED_SEGMENTS_FILE_NAME = "restrictedsegments.txt";
-    private static final String DELIMITER = ":";
+    private static final long WATCH_SETTLE_MILLIS = 200;
+    private static final int DEFAULT_COMPACTION_THRESHOLD = 100_000;
 
     private final ClassLoader classLoader = CacheImplementation.class.getClassLoader();
-    private final Map<String, List<String>> idMappings = new HashMap<>();
-    private final Map<String, List<Integer>> segmentData = new HashMap<>();
-    private final List<Integer> restrictedSegments = new ArrayList<>();
+    private final Path idMappingsFile;
+    private final Path segmentDataFile;
+    private final Path restrictedSegmentsFile;
+    private final Path snapshotFile;
+    private final Predicate<String> userFilter;
+    private final int rowCacheCapacity;
+    // a lock rather than a monitor, so a reload or delta batch started from a virtual thread does not pin
+    // its carrier while it reads files
+    private final ReentrantLock reloadLock = new ReentrantLock();
+    // one compaction at a time; held while packing, without reloadLock
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    private final ExecutorService reloadExecutor = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("cache-reload").daemon().factory());
+    private volatile Generation generation;
+    private volatile WatchService watchService;
+    private volatile int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private volatile MetricsRecorder metrics = MetricsRecorder.NOOP;
+    private volatile TieredSegmentCache tieredSegmentCache;
+    private DeltaFeed deltaFeed;
+    // batches published while a compaction packs, replayed over its result; null when none is running or a
+    // reload has made its result stale. Guarded by reloadLock.
+    private List<List<Delta>> batchesDuringCompaction;
 
     public CacheImplementation() {
-        setupCache();
+        this.idMappingsFile = getAbsoluteFilePath(ID_MAP_FILE_NAME);
+        this.segmentDataFile = getAbsoluteFilePath(SEGMENT_DATA_FILE_NAME);
+        this.restrictedSegmentsFile = getAbsoluteFilePath(RESTRICTED_SEGMENTS_FILE_NAME);
+        this.snapshotFile = null;
+        this.userFilter = null;
+        this.rowCacheCapacity = 0;
+        this.generation = setupCache();
     }
 
-    public List<Integer> getRestrictedSegments() {
-        return restrictedSegments;
+    public CacheImplementation(final Path dataDirectory) {
+        this(dataDirectory, null, null, 0);
     }
 
-    public List<String> lookupIdMappings(final String id) {
-        return idMappings.get(id);
+    // warm restart: maps the snapshot when it matches the text files, otherwise parses them and
+    // writes a fresh snapshot for the next start
+    public CacheImplementation(final Path dataDirectory, final Path snapshotFile) {
+        this(dataDirectory, snapshotFile, null, 0);
     }
 
-    public List<Integer> lookupSegments(final String id) {
-        return segmentData.get(id);
+    private CacheImplementation(final Path dataDirectory, final Path snapshotFile,
+                                final Predicate<String> userFilter, final int rowCacheCapacity) {
+        this.idMappingsFile = dataDirectory.resolve(ID_MAP_FILE_NAME);
+        this.segmentDataFile = dataDirectory.resolve(SEGMENT_DATA_FILE_NAME);
+        this.restrictedSegmentsFile = dataDirectory.resolve(RESTRICTED_SEGMENTS_FILE_NAME);
+        this.snapshotFile = snapshotFile;
+        this.userFilter = userFilter;
+        this.rowCacheCapacity = rowCacheCapacity;
+        this.generation = setupCache();
     }
 
-    private void setupCache() {
-        loadIdMappingDataIntoMemory();
-        loadSegmentDataIntoMemory();
-        loadRestrictedSegmentsIntoMemory();
+    // holds only the users accepted by the filter, with their devices and segments; the filter is applied
+    // again on every reload, so a filter that reads mutable state (such as a shard's ring) can change the
+    // slice. Snapshots describe the whole data set and are not used here.
+    public static CacheImplementation slice(final Path dataDirectory, final Predicate<String> userFilter) {
+        return new CacheImplementation(dataDirectory, null, userFilter, 0);
     }
 
-    private void loadIdMappingDataIntoMemory() {
+    // demand paged: startup only indexes where each segment data row is, rows are parsed from the mapped
+    // file on first access and at most rowCacheCapacity decoded device rows stay on the heap. Deltas stay
+    // in their overlay, since compaction would pack the whole data set onto the heap; call compact()
+    // explicitly to do that anyway.
+    public static CacheImplementation lazy(final Path dataDirectory, final int rowCacheCapacity) {
+        if (rowCacheCapacity <= 0) {
+            throw new IllegalArgumentException("rowCacheCapacity must be positive: " + rowCacheCapacity);
+        }
+        final CacheImplementation cache = new CacheImplementation(dataDirectory, null, null, rowCacheCapacity);
+        cache.compactionThreshold = Integer.MAX_VALUE;
+        return cache;
+    }
+
+    public SegmentIndex segmentIndex() {
+        return generation.segmentIndex();
+    }
+
+    @Override
+    public TieredSegmentCache tieredSegmentCache() {
+        return tieredSegmentCache;
+    }
+
+    public LoadStats loadStats() {
+        return generation.loadStats();
+    }
+
+    // number of the published generation, starting at 1 and incremented by every successful reload
+    public long generation() {
+        return generation.number();
+    }
+
+    // builds a new generation from the current files and publishes it; the previous generation stays
+    // published when the files cannot be read
+    public long reload() throws IOException {
+        reloadLock.lock();
         try {
-            streamFile(ID_MAP_FILE_NAME).filter(line -> line.contains(DELIMITER))
-                    .forEach(line -> {
-                        final String id = line.split(DELIMITER)[0];
-                        final String idMappingListString = line.split(DELIMITER)[1];
-                        final List<String> mappingList = Optional.ofNullable(idMappings.get(id))
-                                .orElse(new ArrayList<>());
-                        mappingList.addAll(Arrays.asList(idMappingListString.split(",")));
-                        idMappings.put(id, mappingList);
-                    });
-            System.out.println("ID Mapping Cache Setup Complete");
-        } catch (final IOException e) {
-            e.printStackTrace();
+            Generation next = load(generation.number() + 1);
+            if (deltaFeed != null) {
+                // a feed that is behind the loaded data has been rotated since, so all of it is new
+                final long from = next.feedPosition() <= deltaFeed.position() ? next.feedPosition() : 0;
+                final List<Delta> deltas = deltaFeed.replay(from);
+                if (!deltas.isEmpty()) {
+                    next = new Generation(next.number(), OverlaySegmentIndex.apply(next.segmentIndex(), deltas),
+                            next.loadStats(), next.fingerprint(), next.feedPosition(), false);
+                }
+            }
+            batchesDuringCompaction = null;
+            publish(next);
+            metrics.recordLoad(next.loadStats(), next.segmentIndex());
+            reportTierFootprint();
+            return next.number();
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    public CompletableFuture<Long> reloadAsync() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return reload();
+            } catch (final IOException e) {
+                throw new CompletionException(e);
+            }
+        }, reloadExecutor);
+    }
+
+    // applies the batch on top of the published generation and publishes the result; only the rows the
+    // batch touches are copied, and the overlay is compacted in the background once it grows too large.
+    // Deltas applied this way are in no feed: they are dropped by the next reload and a generation holding
+    // them is never written to the snapshot.
+    public long applyDeltas(final List<Delta> deltas) {
+        return applyDeltas(deltas, true);
+    }
+
+    // applies the lines appended to the feed since the last call as one batch; after a reload the feed is
+    // replayed over the freshly loaded data from where that data ends
+    public long applyDeltas(final DeltaFeed feed) throws IOException {
+        reloadLock.lock();
+        try {
+            if (deltaFeed != feed) {
+                deltaFeed = feed;
+                feed.skipTo(generation.feedPosition());
+            }
+            final List<Delta> deltas = feed.poll();
+            return deltas.isEmpty() ? generation.number() : applyDeltas(deltas, false);
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    private long applyDeltas(final List<Delta> deltas, final boolean adHoc) {
+        reloadLock.lock();
+        try {
+            final Generation current = generation;
+            final OverlaySegmentIndex next = OverlaySegmentIndex.apply(current.segmentIndex(), deltas);
+            if (batchesDuringCompaction != null) {
+                batchesDuringCompaction.add(deltas);
+            }
+            publish(new Generation(current.number() + 1, next, current.loadStats(), current.fingerprint(),
+                    current.feedPosition(), current.adHocDeltas() || adHoc));
+            if (next.overlaySize() > compactionThreshold && batchesDuringCompaction == null) {
+                compactAsync().exceptionally(e -> {
+                    e.printStackTrace();
+                    return null;
+                });
+            }
+            return current.number() + 1;
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    // folds applied deltas into a freshly packed base, rewriting the snapshot when one is configured; the
+    // snapshot keeps the fingerprint of the text files the base was loaded from and records the feed
+    // position it holds, so a restart or reload only replays the feed from there. Packing and writing run
+    // outside reloadLock, so delta batches keep being published meanwhile and are applied again over the
+    // packed base; a reload in the meantime discards the result.
+    public long compact() throws IOException {
+        compactionLock.lock();
+        try {
+            final Generation captured;
+            final long feedPosition;
+            reloadLock.lock();
+            try {
+                captured = generation;
+                if (!(captured.segmentIndex() instanceof OverlaySegmentIndex)) {
+                    return captured.number();
+                }
+                feedPosition = deltaFeed == null ? captured.feedPosition() : deltaFeed.position();
+                batchesDuringCompaction = new ArrayList<>();
+            } finally {
+                reloadLock.unlock();
+            }
+
+            final long start = System.nanoTime();
+            final PackedSegmentIndex packed;
+            try {
+                packed = PackedSegmentIndex.copyOf(captured.segmentIndex());
+                if (snapshotFile != null && !captured.adHocDeltas()) {
+                    SegmentSnapshot.write(packed, snapshotFile, captured.fingerprint(), feedPosition);
+                }
+            } catch (final IOException | RuntimeException e) {
+                discardCompaction();
+                throw e;
+            }
+
+            reloadLock.lock();
+            try {
+                final Generation current = generation;
+                final List<List<Delta>> batches = batchesDuringCompaction;
+                batchesDuringCompaction = null;
+                if (batches == null) {
+                    return current.number();
+                }
+                SegmentIndex next = packed;
+                for (final List<Delta> batch : batches) {
+                    next = OverlaySegmentIndex.apply(next, batch);
+                }
+                publish(new Generation(current.number() + 1, next, current.loadStats(), current.fingerprint(),
+                        feedPosition, current.adHocDeltas()));
+                metrics.recordCompaction(System.nanoTime() - start, packed);
+                reportTierFootprint();
+                return current.number() + 1;
+            } finally {
+                reloadLock.unlock();
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    private void discardCompaction() {
+        reloadLock.lock();
+        try {
+            batchesDuringCompaction = null;
+        } finally {
+            reloadLock.unlock();
         }
     }
 
-    private void loadSegmentDataIntoMemory() {
+    public CompletableFuture<Long> compactAsync() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return compact();
+            } catch (final IOException e) {
+                throw new CompletionException(e);
+            }
+        }, reloadExecutor);
+    }
+
+    // reports the current generation right away, then every reload and compaction; delta batches only
+    // show up once they are compacted
+    public void setMetricsRecorder(final MetricsRecorder metrics) {
+        this.metrics = metrics;
+        final Generation current = generation;
+        metrics.recordLoad(current.loadStats(), current.segmentIndex());
+        reportTierFootprint();
+    }
+
+    // number of changed rows and new IDs a delta overlay may hold before it is compacted
+    public void setCompactionThreshold(final int compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    // keeps resolved segments of the most looked up users on the heap within hotBudgetBytes, and compressed
+    // rows of the users seen so far off the heap within coldBudgetBytes; a budget of 0 disables that tier.
+    // Each budget also pays for a directory of a few bytes per user, see TieredSegmentCache. The cold tier
+    // is meant for lazy() caches: an eager index already holds every row on the heap. The tiers start empty
+    // again after a reload or compaction; a delta batch only drops the users it changes. Their footprint is
+    // reported along with the index's to the metrics recorder.
+    public void setTierBudgets(final long hotBudgetBytes, final long coldBudgetBytes) {
+        final TieredSegmentCache tiers = new TieredSegmentCache(hotBudgetBytes, coldBudgetBytes);
+        reloadLock.lock();
+        try {
+            tiers.publish(generation.segmentIndex());
+            this.tieredSegmentCache = tiers;
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    // reloads in the background whenever one of the data files changes; files are best replaced
+    // atomically (written elsewhere and moved into place) so a reload never sees a partial write
+    public synchronized void watch() throws IOException {
+        if (watchService != null) {
+            return;
+        }
+        final Path directory = idMappingsFile.toAbsolutePath().getParent();
+        final Set<Path> watchedFiles = Set.of(idMappingsFile.getFileName(), segmentDataFile.getFileName(),
+                restrictedSegmentsFile.getFileName());
+        final WatchService service = directory.getFileSystem().newWatchService();
+        directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watchService = service;
+        Thread.ofPlatform().name("cache-watch").daemon().start(() -> watchFiles(service, watchedFiles));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+        }
+        reloadExecutor.shutdown();
+    }
+
+    private void watchFiles(final WatchService service, final Set<Path> watchedFiles) {
         try {
-            streamFile(SEGMENT_DATA_FILE_NAME).filter(line -> line.contains(DELIMITER))
-                    .forEach(line -> {
-                        final String id = line.split(DELIMITER)[0];
-                        final String segmentIdString = line.split(DELIMITER)[1];
-                        final List<Integer> segmentIdsToAdd = Stream.of(segmentIdString.split(","))
-                                .map(Integer::parseInt)
-                                .collect(Collectors.toList());
-                        final List<Integer> segmentDataList = Optional.ofNullable(segmentData.get(id))
-                                .orElse(new ArrayList<>());
-                        segmentDataList.addAll(segmentIdsToAdd);
-                        segmentData.put(id, segmentDataList);
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                do {
+                    for (final WatchEvent<?> event : key.pollEvents()) {
+                        changed |= watchedFiles.contains((Path) event.context());
+                    }
+                    key.reset();
+                    // let a burst of writes settle before reloading once
+                } while ((key = service.poll(WATCH_SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+                if (changed) {
+                    reloadAsync().exceptionally(e -> {
+                        e.printStackTrace();
+                        return null;
                     });
-            System.out.println("Segment Data Cache Setup Complete");
-        } catch (final IOException e) {
-            e.printStackTrace();
+                }
+            }
+        } catch (final InterruptedException | ClosedWatchServiceException e) {
+            // watching stopped
         }
     }
 
-    private void loadRestrictedSegmentsIntoMemory() {
+    // makes the generation the one lookups see, then moves the segment tiers to it; called under reloadLock
+    private void publish(final Generation next) {
+        generation = next;
+        final TieredSegmentCache tiers = tieredSegmentCache;
+        if (tiers != null) {
+            tiers.publish(next.segmentIndex());
+        }
+    }
+
+    // after the index footprint, which a recorder resets on every load and compaction
+    private void reportTierFootprint() {
+        final TieredSegmentCache tiers = tieredSegmentCache;
+        if (tiers != null) {
+            tiers.reportFootprint(metrics);
+        }
+    }
+
+    private Generation setupCache() {
         try {
-            streamFile(RESTRICTED_SEGMENTS_FILE_NAME).forEach(line -> restrictedSegments.add(Integer.parseInt(line)));
+            return load(1);
         } catch (final IOException e) {
             e.printStackTrace();
+            return new Generation(1, PackedSegmentIndex.builder().build(), null, 0, 0, false);
         }
-        System.out.println("Restricted Segment Cache Setup Complete");
     }
 
-    private Stream<String> streamFile(final String filename) throws IOException {
-        return Files.lines(getAbsoluteFilePath(filename));
+    private Generation load(final long number) throws IOException {
+        if (rowCacheCapacity > 0) {
+            final BulkLoader loader = new BulkLoader();
+            final SegmentIndex index = loader.loadLazy(idMappingsFile, segmentDataFile, restrictedSegmentsFile,
+                    rowCacheCapacity);
+            return new Generation(number, index, loader.loadStats(), 0, 0, false);
+        }
+        if (snapshotFile == null) {
+            final BulkLoader loader = new BulkLoader();
+            final SegmentIndex index = loader.load(idMappingsFile, segmentDataFile, restrictedSegmentsFile,
+                    userFilter);
+            return new Generation(number, index, loader.loadStats(), 0, 0, false);
+        }
+        long fingerprint = 0;
+        try {
+            fingerprint = SegmentSnapshot.fingerprint(idMappingsFile, segmentDataFile, restrictedSegmentsFile);
+            if (Files.exists(snapshotFile)) {
+                final long start = System.nanoTime();
+                final SegmentIndex index = SegmentSnapshot.open(snapshotFile, fingerprint);
+                final long mapped = System.nanoTime() - start;
+                return new Generation(number, index, new LoadStats(List.of(new LoadStats.FileStats(
+                        snapshotFile.getFileName().toString(), Files.size(snapshotFile), 1,
+                        index.userCount() + (long) index.deviceCount(), mapped, 0)), 0, 0, mapped), fingerprint,
+                        SegmentSnapshot.feedPosition(index), false);
+            }
+        } catch (final IOException e) {
+            // an unreadable or stale snapshot is rebuilt from the text files below
+            e.printStackTrace();
+        }
+        final BulkLoader loader = new BulkLoader();
+        final SegmentIndex index = loader.load(idMappingsFile, segmentDataFile, restrictedSegmentsFile);
+        try {
+            SegmentSnapshot.write(index, snapshotFile, fingerprint);
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+        return new Generation(number, index, loader.loadStats(), fingerprint, 0, false);
     }
 
     private Path getAbsoluteFilePath(final String filename) {
@@ -106,4 +440,11 @@ public class CacheImplementation implements Cache {
         return new File(classLoader.getResource(filename)
                 .getFile());
     }
+
+    // immutable unit of publication: everything a lookup reads comes from one generation. The fingerprint
+    // is that of the text files the base was loaded from, and the base holds the delta feed up to
+    // feedPosition; adHocDeltas is set once deltas that are in no feed have been applied.
+    private record Generation(long number, SegmentIndex segmentIndex, LoadStats loadStats, long fingerprint,
+                              long feedPosition, boolean adHocDeltas) {
+    }
 }
@@ -0,0 +1,101 @@
+package com.in.mem.cache.sys;
+
+/**
+ * One change from a delta feed. Feed lines have the form {@code <operation> <payload>}:
+ * <pre>
+ * +segment device12345:11111     add a segment to a device
+ * -segment device12345:11111     remove a segment from a device
+ * +link ID19876:device12345      link a device to a user
+ * -link ID19876:device12345      unlink a device from a user
+ * +restricted 11111              add a restricted segment
+ * -restricted 11111              remove a restricted segment
+ * </pre>
+ * Every operation sets the final state of one (key, value) pair, so replaying a feed over data that already
+ * contains it leaves the data unchanged.
+ */
+public record Delta(Operation operation, String id, String linkedId, int segmentId) {
+
+    public enum Operation {
+        ADD_SEGMENT("+segment"),
+        REMOVE_SEGMENT("-segment"),
+        LINK_DEVICE("+link"),
+        UNLINK_DEVICE("-link"),
+        ADD_RESTRICTED("+restricted"),
+        REMOVE_RESTRICTED("-restricted");
+
+        private final String token;
+
+        Operation(final String token) {
+            this.token = token;
+        }
+    }
+
+    public static Delta addSegment(final String deviceId, final int segmentId) {
+        return new Delta(Operation.ADD_SEGMENT, deviceId, null, segmentId);
+    }
+
+    public static Delta removeSegment(final String deviceId, final int segmentId) {
+        return new Delta(Operation.REMOVE_SEGMENT, deviceId, null, segmentId);
+    }
+
+    public static Delta linkDevice(final String userId, final String deviceId) {
+        return new Delta(Operation.LINK_DEVICE, userId, deviceId, 0);
+    }
+
+    public static Delta unlinkDevice(final String userId, final String deviceId) {
+        return new Delta(Operation.UNLINK_DEVICE, userId, deviceId, 0);
+    }
+
+    public static Delta addRestricted(final int segmentId) {
+        return new Delta(Operation.ADD_RESTRICTED, null, null, segmentId);
+    }
+
+    public static Delta removeRestricted(final int segmentId) {
+        return new Delta(Operation.REMOVE_RESTRICTED, null, null, segmentId);
+    }
+
+    public static Delta parse(final String line) {
+        final int space = line.indexOf(' ');
+        if (space > 0) {
+            final String token = line.substring(0, space);
+            final String payload = line.substring(space + 1).trim();
+            final int colon = payload.indexOf(':');
+            try {
+                for (final Operation operation : Operation.values()) {
+                    if (!operation.token.equals(token)) {
+                        continue;
+                    }
+                    switch (operation) {
+                        case ADD_RESTRICTED, REMOVE_RESTRICTED -> {
+                            return new Delta(operation, null, null, Integer.parseInt(payload));
+                        }
+                        case ADD_SEGMENT, REMOVE_SEGMENT -> {
+                            if (colon > 0) {
+                                return new Delta(operation, payload.substring(0, colon), null,
+                                        Integer.parseInt(payload.substring(colon + 1)));
+                            }
+                        }
+                        case LINK_DEVICE, UNLINK_DEVICE -> {
+                            if (colon > 0 && colon < payload.length() - 1) {
+                                return new Delta(operation, payload.substring(0, colon),
+                                        payload.substring(colon + 1), 0);
+                            }
+                        }
+                    }
+                }
+            } catch (final NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid delta: " + line, e);
+            }
+        }
+        throw new IllegalArgumentException("Invalid delta: " + line);
+    }
+
+    @Override
+    public String toString() {
+        return switch (operation) {
+            case ADD_RESTRICTED, REMOVE_RESTRICTED -> operation.token + " " + segmentId;
+            case ADD_SEGMENT, REMOVE_SEGMENT -> operation.token + " " + id + ":" + segmentId;
+            case LINK_DEVICE, UNLINK_DEVICE -> operation.token + " " + id + ":" + linkedId;
+        };
+    }
+}
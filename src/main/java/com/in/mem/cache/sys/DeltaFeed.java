@@ -0,0 +1,146 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tails an append-only file of {@link Delta} lines. Each {@link #poll()} returns the complete lines written
+ * since the previous poll; a trailing partial line is left for the next poll. A file that shrinks is taken
+ * to have been rotated and is read again from the start. Blank lines and lines starting with '#' are
+ * ignored. A malformed line is reported once, by the poll that reaches it, and then skipped.
+ */
+public final class DeltaFeed {
+
+    private static final int CHUNK_BYTES = 64 << 10;
+
+    private final Path file;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long position;
+
+    public DeltaFeed(final Path file) {
+        this.file = file;
+    }
+
+    // the lines before a malformed line are returned first; the next poll then moves past it and throws an
+    // IOException naming its offset, so polling again carries on after it
+    public List<Delta> poll() throws IOException {
+        lock.lock();
+        try {
+            final List<Delta> deltas = new ArrayList<>();
+            if (!Files.exists(file)) {
+                return deltas;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final long size = channel.size();
+                if (size < position) {
+                    position = 0;
+                }
+                position = read(channel, size, deltas, false);
+            }
+            return deltas;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the lines already polled from the given offset on, used to re-apply the feed over a freshly loaded base;
+    // malformed lines were reported when they were polled and are skipped
+    public List<Delta> replay(final long from) throws IOException {
+        lock.lock();
+        try {
+            final List<Delta> deltas = new ArrayList<>();
+            if (from >= position || !Files.exists(file)) {
+                return deltas;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final long polled = position;
+                position = from;
+                try {
+                    read(channel, polled, deltas, true);
+                } finally {
+                    position = polled;
+                }
+            }
+            return deltas;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // moves a feed that has not read that far to the given offset, when the loaded data already holds the
+    // lines before it
+    public void skipTo(final long offset) {
+        lock.lock();
+        try {
+            position = Math.max(position, offset);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long position() {
+        lock.lock();
+        try {
+            return position;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // parses the complete lines between position and end and returns the offset after the last one consumed.
+    // The range is read a chunk at a time; a line cut off by the end of a chunk is carried over to the next.
+    private long read(final FileChannel channel, final long end, final List<Delta> deltas,
+                      final boolean skipMalformed) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(end - position, CHUNK_BYTES));
+        // file offsets of the start of the buffer and of the first byte not read yet
+        long consumed = position;
+        long readTo = position;
+        while (readTo < end) {
+            buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + end - readTo));
+            final int read = channel.read(buffer, readTo);
+            if (read <= 0) {
+                break;
+            }
+            readTo += read;
+            buffer.flip();
+            int lineStart = 0;
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    final String line = new String(buffer.array(), lineStart, i - lineStart,
+                            StandardCharsets.UTF_8).trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        try {
+                            deltas.add(Delta.parse(line));
+                        } catch (final IllegalArgumentException e) {
+                            if (!skipMalformed) {
+                                if (!deltas.isEmpty()) {
+                                    return consumed + lineStart;
+                                }
+                                final long offset = consumed + lineStart;
+                                position = consumed + i + 1;
+                                throw new IOException("Invalid delta at offset " + offset + " of " + file, e);
+                            }
+                        }
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            consumed += lineStart;
+            buffer.position(lineStart);
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                // a line longer than the buffer
+                buffer = ByteBuffer.allocate(buffer.capacity() << 1).put(buffer.flip());
+            }
+        }
+        return consumed;
+    }
+}
@@ -0,0 +1,46 @@
+package com.in.mem.cache.sys;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+// the users linked to each device of an index, the reverse of its user rows, as offsets into one array of
+// user ordinals; built in two passes over the links without reading any segments
+final class DeviceUsers {
+
+    private final int[] offsets;
+    private final int[] users;
+
+    private DeviceUsers(final int[] offsets, final int[] users) {
+        this.offsets = offsets;
+        this.users = users;
+    }
+
+    static DeviceUsers of(final SegmentIndex segmentIndex) {
+        final int[] offsets = new int[segmentIndex.deviceCount() + 1];
+        for (int user = 0; user < segmentIndex.userCount(); user++) {
+            for (int i = 0; i < segmentIndex.linkedDeviceCount(user); i++) {
+                offsets[segmentIndex.linkedDevice(user, i) + 1]++;
+            }
+        }
+        for (int device = 0; device < segmentIndex.deviceCount(); device++) {
+            offsets[device + 1] += offsets[device];
+        }
+        final int[] users = new int[offsets[segmentIndex.deviceCount()]];
+        final int[] fill = Arrays.copyOf(offsets, segmentIndex.deviceCount());
+        for (int user = 0; user < segmentIndex.userCount(); user++) {
+            for (int i = 0; i < segmentIndex.linkedDeviceCount(user); i++) {
+                users[fill[segmentIndex.linkedDevice(user, i)]++] = user;
+            }
+        }
+        return new DeviceUsers(offsets, users);
+    }
+
+    // the users linked to the device in ascending order; none for a device the index did not have
+    void forEachUser(final int device, final IntConsumer action) {
+        if (device < offsets.length - 1) {
+            for (int i = offsets[device]; i < offsets[device + 1]; i++) {
+                action.accept(users[i]);
+            }
+        }
+    }
+}
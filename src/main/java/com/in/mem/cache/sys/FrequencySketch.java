@@ -0,0 +1,84 @@
+package com.in.mem.cache.sys;
+
+// count-min sketch of recent access counts: four rows of byte counters saturating at 15, all halved once the
+// sample size is reached so that past popularity fades. Increments are not synchronized; a lost update only
+// lowers an estimate by one, which the comparisons made with it tolerate.
+final class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int MIN_WIDTH = 64;
+    private static final int MAX_WIDTH = 1 << 22;
+
+    private final byte[] counters;
+    private final int width;
+    private final int sampleSize;
+    private int additions;
+
+    // sized for about one counter per expected key and row, within 64 and 4M counters per row
+    FrequencySketch(final long expectedKeys) {
+        this.width = width(expectedKeys);
+        this.counters = new byte[DEPTH * width];
+        this.sampleSize = 10 * width;
+    }
+
+    void increment(final int key) {
+        final long hash = mix(key);
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            final int index = index(hash, row);
+            if (counters[index] < MAX_COUNT) {
+                counters[index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            age();
+        }
+    }
+
+    int estimate(final int key) {
+        final long hash = mix(key);
+        int estimate = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counters[index(hash, row)]);
+        }
+        return estimate;
+    }
+
+    long heapBytes() {
+        return IdDictionary.ARRAY_HEADER_BYTES + counters.length;
+    }
+
+    // what a sketch for expectedKeys takes, before building it
+    static long heapBytes(final long expectedKeys) {
+        return IdDictionary.ARRAY_HEADER_BYTES + (long) DEPTH * width(expectedKeys);
+    }
+
+    private static int width(final long expectedKeys) {
+        final int clamped = Math.clamp(expectedKeys, MIN_WIDTH, MAX_WIDTH);
+        return Integer.highestOneBit(clamped - 1) << 1;
+    }
+
+    private void age() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] >>= 1;
+        }
+        additions >>= 1;
+    }
+
+    // double hashing: row i probes h1 + i * h2, both halves of one 64-bit mix of the key
+    private int index(final long hash, final int row) {
+        final int probe = (int) hash + row * (int) (hash >>> 32);
+        return row * width + (probe & (width - 1));
+    }
+
+    private static long mix(final int key) {
+        long hash = (key + 0x632be59bd9b4e019L) * 0x9e3779b97f4a7c15L;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -0,0 +1,113 @@
+package com.in.mem.cache.sys;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Immutable consistent hash ring. Every shard is placed at {@code virtualNodes} points, and a key is owned
+ * by the first distinct shards met walking clockwise from the key's hash. Adding a shard therefore only
+ * moves the keys that now fall on the new shard's points. The hash is computed over the UTF-8 bytes, so
+ * every JVM derives the same placement.
+ */
+public final class HashRing {
+
+    private final List<String> shards;
+    private final int virtualNodes;
+    private final long[] points;
+    private final int[] pointShards;
+
+    public HashRing(final Collection<String> shards, final int virtualNodes) {
+        if (shards.isEmpty() || virtualNodes <= 0) {
+            throw new IllegalArgumentException("a ring needs at least one shard and one virtual node per shard");
+        }
+        this.shards = List.copyOf(shards);
+        this.virtualNodes = virtualNodes;
+        final int size = this.shards.size() * virtualNodes;
+        final long[] hashes = new long[size];
+        final Integer[] order = new Integer[size];
+        for (int shard = 0; shard < this.shards.size(); shard++) {
+            for (int node = 0; node < virtualNodes; node++) {
+                final int point = shard * virtualNodes + node;
+                hashes[point] = hash(this.shards.get(shard) + "#" + node);
+                order[point] = point;
+            }
+        }
+        // ties are broken by shard order, so the layout is deterministic
+        Arrays.sort(order, (a, b) -> {
+            final int byHash = Long.compareUnsigned(hashes[a], hashes[b]);
+            return byHash != 0 ? byHash : Integer.compare(a, b);
+        });
+        this.points = new long[size];
+        this.pointShards = new int[size];
+        for (int i = 0; i < size; i++) {
+            final int point = order[i];
+            points[i] = hashes[point];
+            pointShards[i] = point / virtualNodes;
+        }
+    }
+
+    public HashRing withShard(final String shard) {
+        if (shards.contains(shard)) {
+            return this;
+        }
+        final List<String> next = new ArrayList<>(shards);
+        next.add(shard);
+        return new HashRing(next, virtualNodes);
+    }
+
+    public List<String> shards() {
+        return shards;
+    }
+
+    public String owner(final String key) {
+        return shards.get(pointShards[firstPoint(hash(key))]);
+    }
+
+    // the primary owner followed by up to replicas - 1 further distinct shards, in ring order
+    public List<String> owners(final String key, final int replicas) {
+        final int count = Math.min(replicas, shards.size());
+        final List<String> owners = new ArrayList<>(count);
+        final boolean[] taken = new boolean[shards.size()];
+        int point = firstPoint(hash(key));
+        while (owners.size() < count) {
+            final int shard = pointShards[point];
+            if (!taken[shard]) {
+                taken[shard] = true;
+                owners.add(shards.get(shard));
+            }
+            point = (point + 1) % points.length;
+        }
+        return owners;
+    }
+
+    // first point at or after the hash, wrapping around to the start of the ring
+    private int firstPoint(final long hash) {
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (Long.compareUnsigned(points[middle], hash) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low == points.length ? 0 : low;
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer to spread similar keys
+    static long hash(final String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (final byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -0,0 +1,139 @@
+package com.in.mem.cache.sys;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// assigns each distinct ID a dense ordinal (0..size-1) so the rest of the cache can work on int arrays
+final class IdDictionary {
+
+    private static final int EMPTY = -1;
+    static final long ARRAY_HEADER_BYTES = 16;
+    private static final long STRING_HEADER_BYTES = 24;
+
+    private String[] ids;
+    private int[] slots;
+    private int mask;
+    private int size;
+
+    IdDictionary() {
+        this(16);
+    }
+
+    IdDictionary(final int expectedSize) {
+        final int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        ids = new String[Math.max(expectedSize, 8)];
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+    }
+
+    int intern(final String id) {
+        int slot = spread(id.hashCode()) & mask;
+        int ordinal;
+        while ((ordinal = slots[slot]) != EMPTY) {
+            if (ids[ordinal].equals(id)) {
+                return ordinal;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size << 1);
+        }
+        ordinal = size++;
+        ids[ordinal] = id;
+        slots[slot] = ordinal;
+        if (size << 1 > slots.length) {
+            rehash(slots.length << 1);
+        }
+        return ordinal;
+    }
+
+    // interns the ID held in buffer[offset, offset + length) without creating a String unless the ID
+    // is new; scratch is a caller owned buffer of at least length bytes. Non ASCII IDs take the slow path.
+    int intern(final ByteBuffer buffer, final int offset, final int length, final byte[] scratch) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            final byte b = buffer.get(offset + i);
+            if (b < 0) {
+                buffer.get(offset, scratch, 0, length);
+                return intern(new String(scratch, 0, length, StandardCharsets.UTF_8));
+            }
+            hash = 31 * hash + b;
+        }
+        int slot = spread(hash) & mask;
+        int ordinal;
+        while ((ordinal = slots[slot]) != EMPTY) {
+            if (matches(ids[ordinal], buffer, offset, length)) {
+                return ordinal;
+            }
+            slot = (slot + 1) & mask;
+        }
+        buffer.get(offset, scratch, 0, length);
+        return intern(new String(scratch, 0, length, StandardCharsets.ISO_8859_1));
+    }
+
+    int ordinal(final String id) {
+        int slot = spread(id.hashCode()) & mask;
+        int ordinal;
+        while ((ordinal = slots[slot]) != EMPTY) {
+            if (ids[ordinal].equals(id)) {
+                return ordinal;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    String id(final int ordinal) {
+        return ids[ordinal];
+    }
+
+    int size() {
+        return size;
+    }
+
+    // approximate retained size: the slot table, the ID array and the Strings themselves
+    long heapBytes() {
+        long bytes = ARRAY_HEADER_BYTES * 2 + Integer.BYTES * (long) slots.length + Integer.BYTES * (long) ids.length;
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            bytes += heapBytes(ids[ordinal]);
+        }
+        return bytes;
+    }
+
+    // a compact (Latin-1) String: object header and fields plus its byte array
+    static long heapBytes(final String id) {
+        return STRING_HEADER_BYTES + ARRAY_HEADER_BYTES + id.length();
+    }
+
+    private void rehash(final int capacity) {
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            int slot = spread(ids[ordinal].hashCode()) & mask;
+            while (slots[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = ordinal;
+        }
+    }
+
+    private static boolean matches(final String id, final ByteBuffer buffer, final int offset, final int length) {
+        if (id.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (id.charAt(i) != buffer.get(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int spread(final int hash) {
+        final int h = hash * 0x9E3779B1;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,82 @@
+package com.in.mem.cache.sys;
+
+import java.util.Arrays;
+
+// open addressing set of ints; clear() is O(1) by bumping the epoch that marks occupied slots
+final class IntHashSet {
+
+    private int[] keys;
+    private int[] epochs;
+    private int mask;
+    private int size;
+    private int epoch = 1;
+
+    IntHashSet() {
+        this(64);
+    }
+
+    IntHashSet(final int expectedSize) {
+        final int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        keys = new int[capacity];
+        epochs = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    // true when the value was not yet present
+    boolean add(final int value) {
+        int slot = IdDictionary.spread(value) & mask;
+        while (epochs[slot] == epoch) {
+            if (keys[slot] == value) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = value;
+        epochs[slot] = epoch;
+        if (++size << 1 > keys.length) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    boolean contains(final int value) {
+        int slot = IdDictionary.spread(value) & mask;
+        while (epochs[slot] == epoch) {
+            if (keys[slot] == value) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+        if (++epoch == 0) {
+            Arrays.fill(epochs, 0);
+            epoch = 1;
+        }
+    }
+
+    private void rehash(final int capacity) {
+        final int[] oldKeys = keys;
+        final int[] oldEpochs = epochs;
+        keys = new int[capacity];
+        epochs = new int[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldEpochs[i] == epoch) {
+                int slot = IdDictionary.spread(oldKeys[i]) & mask;
+                while (epochs[slot] == epoch) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                epochs[slot] = epoch;
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.in.mem.cache.sys;
+
+import java.util.Arrays;
+
+// growable int array used while building packed structures, avoids boxing on the load path
+final class IntList {
+
+    private int[] values;
+    private int size;
+
+    IntList() {
+        this(16);
+    }
+
+    IntList(final int initialCapacity) {
+        values = new int[Math.max(initialCapacity, 1)];
+    }
+
+    void add(final int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size << 1);
+        }
+        values[size++] = value;
+    }
+
+    void addAll(final int[] source, final int count) {
+        if (size + count > values.length) {
+            values = Arrays.copyOf(values, Math.max(values.length << 1, size + count));
+        }
+        System.arraycopy(source, 0, values, size, count);
+        size += count;
+    }
+
+    // copies the values into target starting at offset
+    void copyTo(final int[] target, final int offset) {
+        System.arraycopy(values, 0, target, offset, size);
+    }
+
+    int get(final int index) {
+        return values[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    // removes every occurrence of the value, keeping the order of the rest
+    void removeAll(final int value) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (values[i] != value) {
+                values[kept++] = values[i];
+            }
+        }
+        size = kept;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
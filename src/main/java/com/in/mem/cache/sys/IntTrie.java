@@ -0,0 +1,144 @@
+package com.in.mem.cache.sys;
+
+import java.util.function.IntConsumer;
+import java.util.function.ToLongFunction;
+
+// persistent map from int keys to values, a radix trie of 32 way nodes: an update copies only the nodes on the
+// key's path and shares the rest with the map it was made from, and a lookup is a few array loads without
+// hashing or boxing. Keys are taken as unsigned; the trie only grows as deep as its largest key needs.
+final class IntTrie<V> {
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    private static final int MAX_SHIFT = 30;
+    private static final IntTrie<?> EMPTY = new IntTrie<>(new Object[WIDTH], 0, 0);
+
+    private final Object[] root;
+    private final int shift;
+    private final int size;
+
+    private IntTrie(final Object[] root, final int shift, final int size) {
+        this.root = root;
+        this.shift = shift;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> IntTrie<V> empty() {
+        return (IntTrie<V>) EMPTY;
+    }
+
+    // the value for the key, or null when the key has no entry
+    @SuppressWarnings("unchecked")
+    V get(final int key) {
+        if (size == 0 || !covers(key, shift)) {
+            return null;
+        }
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(key >>> level) & MASK];
+            if (node == null) {
+                return null;
+            }
+        }
+        return (V) node[key & MASK];
+    }
+
+    IntTrie<V> with(final int key, final V value) {
+        Object[] top = root;
+        int topShift = shift;
+        while (!covers(key, topShift)) {
+            final Object[] parent = new Object[WIDTH];
+            parent[0] = top;
+            top = parent;
+            topShift += BITS;
+        }
+        final boolean added = get(key) == null;
+        return new IntTrie<>(with(top, topShift, key, value), topShift, added ? size + 1 : size);
+    }
+
+    int size() {
+        return size;
+    }
+
+    // every key with an entry, in unsigned key order
+    void forEachKey(final IntConsumer action) {
+        forEachKey(root, shift, 0, action);
+    }
+
+    // every key whose value differs, by reference, between this map and the other one; subtrees the two
+    // maps share are skipped, so comparing a map with one derived from it costs the nodes that were copied
+    void forEachDifference(final IntTrie<V> other, final IntConsumer action) {
+        final int top = Math.max(shift, other.shift);
+        forEachDifference(raise(root, shift, top), raise(other.root, other.shift, top), top, 0, action);
+    }
+
+    // the nodes plus what valueBytes reports for each value
+    long heapBytes(final ToLongFunction<V> valueBytes) {
+        return heapBytes(root, shift, valueBytes);
+    }
+
+    private static Object[] with(final Object[] node, final int level, final int key, final Object value) {
+        final Object[] copy = node == null ? new Object[WIDTH] : node.clone();
+        final int slot = (key >>> level) & MASK;
+        copy[slot] = level == 0 ? value : with((Object[]) copy[slot], level - BITS, key, value);
+        return copy;
+    }
+
+    private static void forEachKey(final Object[] node, final int level, final int prefix, final IntConsumer action) {
+        for (int slot = 0; slot < WIDTH; slot++) {
+            if (node[slot] != null) {
+                final int key = prefix | slot << level;
+                if (level == 0) {
+                    action.accept(key);
+                } else {
+                    forEachKey((Object[]) node[slot], level - BITS, key, action);
+                }
+            }
+        }
+    }
+
+    private static void forEachDifference(final Object[] node, final Object[] other, final int level,
+                                          final int prefix, final IntConsumer action) {
+        for (int slot = 0; slot < WIDTH; slot++) {
+            final Object child = node == null ? null : node[slot];
+            final Object otherChild = other == null ? null : other[slot];
+            if (child != otherChild) {
+                final int key = prefix | slot << level;
+                if (level == 0) {
+                    action.accept(key);
+                } else {
+                    forEachDifference((Object[]) child, (Object[]) otherChild, level - BITS, key, action);
+                }
+            }
+        }
+    }
+
+    // the node as the root of a trie of the given depth, as with() grows it
+    private static Object[] raise(final Object[] node, final int shift, final int top) {
+        Object[] raised = node;
+        for (int level = shift; level < top; level += BITS) {
+            final Object[] parent = new Object[WIDTH];
+            parent[0] = raised;
+            raised = parent;
+        }
+        return raised;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> long heapBytes(final Object[] node, final int level, final ToLongFunction<V> valueBytes) {
+        long bytes = IdDictionary.ARRAY_HEADER_BYTES + Integer.BYTES * (long) WIDTH;
+        for (final Object child : node) {
+            if (child != null) {
+                bytes += level == 0 ? valueBytes.applyAsLong((V) child)
+                        : heapBytes((Object[]) child, level - BITS, valueBytes);
+            }
+        }
+        return bytes;
+    }
+
+    private static boolean covers(final int key, final int shift) {
+        return shift >= MAX_SHIFT || (key >>> shift) >>> BITS == 0;
+    }
+}
@@ -0,0 +1,395 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link SegmentIndex} that keeps segment data in the memory mapped segment data file. At load time only
+ * the file offset and length of every row are recorded; a device's rows are parsed on first access and
+ * kept in a bounded cache of decoded rows, evicting with the CLOCK approximation of LRU, so the heap
+ * holds the rows of recently used devices rather than the whole file. Users, devices, links and
+ * restricted segments are held in a {@link PackedSegmentIndex} without segments. The mapping is released
+ * once the index is unreachable. A file replaced by a move keeps the mapped one intact; a file rewritten
+ * in place is detected by its size and modification time, checked around every row read, and fails the
+ * reads of rows not decoded yet with {@link IllegalStateException} until a reload maps the new file. A row
+ * that does not parse fails the lookup that reads it with {@link NumberFormatException}.
+ */
+final class LazySegmentIndex implements SegmentIndex {
+
+    private static final int[] NO_SEGMENTS = new int[0];
+
+    private final PackedSegmentIndex links;
+    private final Path path;
+    private final FileStamp stamp;
+    private final MemorySegment file;
+    private final long[] rowOffsets;
+    private final int[] rowLengths;
+    // rows of a device are chained in file order: firstRows by device, nextRows by row, -1 ends a chain
+    private final int[] firstRows;
+    private final int[] nextRows;
+    private final RowCache rows;
+    // the row last read by the thread, so a merge reading one segment at a time hits the cache once per row
+    private final ThreadLocal<LastRow> lastRow = ThreadLocal.withInitial(LastRow::new);
+
+    private LazySegmentIndex(final PackedSegmentIndex links, final Path path, final FileStamp stamp,
+                             final MemorySegment file, final Builder builder, final int rowCacheCapacity) {
+        this.links = links;
+        this.path = path;
+        this.stamp = stamp;
+        this.file = file;
+        this.rowOffsets = Arrays.copyOf(builder.rowOffsets, builder.size);
+        this.rowLengths = Arrays.copyOf(builder.rowLengths, builder.size);
+        this.firstRows = new int[links.deviceCount()];
+        this.nextRows = new int[builder.size];
+        Arrays.fill(firstRows, -1);
+        for (int row = builder.size - 1; row >= 0; row--) {
+            final int device = builder.rowDevices[row];
+            nextRows[row] = firstRows[device];
+            firstRows[device] = row;
+        }
+        this.rows = new RowCache(rowCacheCapacity);
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    long mappedBytes() {
+        return file.byteSize();
+    }
+
+    // decoded rows currently held in the cache
+    int cachedRows() {
+        return rows.size();
+    }
+
+    long rowCacheHits() {
+        return rows.hits.sum();
+    }
+
+    long rowCacheMisses() {
+        return rows.misses.sum();
+    }
+
+    @Override
+    public int userCount() {
+        return links.userCount();
+    }
+
+    @Override
+    public int deviceCount() {
+        return links.deviceCount();
+    }
+
+    @Override
+    public int userOrdinal(final String userId) {
+        return links.userOrdinal(userId);
+    }
+
+    @Override
+    public int deviceOrdinal(final String deviceId) {
+        return links.deviceOrdinal(deviceId);
+    }
+
+    @Override
+    public String userId(final int user) {
+        return links.userId(user);
+    }
+
+    @Override
+    public String deviceId(final int device) {
+        return links.deviceId(device);
+    }
+
+    @Override
+    public int linkedDeviceCount(final int user) {
+        return links.linkedDeviceCount(user);
+    }
+
+    @Override
+    public int linkedDevice(final int user, final int index) {
+        return links.linkedDevice(user, index);
+    }
+
+    @Override
+    public int segmentCount(final int device) {
+        return segments(device).length;
+    }
+
+    @Override
+    public int segment(final int device, final int index) {
+        return segments(device)[index];
+    }
+
+    @Override
+    public int[] restrictedSegmentIds() {
+        return links.restrictedSegmentIds();
+    }
+
+    @Override
+    public SegmentBitmap restrictedBitmap() {
+        return links.restrictedBitmap();
+    }
+
+    @Override
+    public void reportFootprint(final MetricsRecorder recorder) {
+        links.reportFootprint(recorder);
+        recorder.recordFootprint("rowIndex", IdDictionary.ARRAY_HEADER_BYTES * 4L
+                + (Long.BYTES + 2L * Integer.BYTES) * rowOffsets.length + Integer.BYTES * (long) firstRows.length,
+                file.byteSize());
+        recorder.recordFootprint("decodedRows", rows.heapBytes(), 0);
+    }
+
+    private int[] segments(final int device) {
+        final LastRow last = lastRow.get();
+        if (last.segments != null && last.device == device) {
+            return last.segments;
+        }
+        int[] segments = rows.get(device);
+        if (segments == null) {
+            segments = decode(device);
+            rows.put(device, segments);
+        }
+        last.device = device;
+        last.segments = segments;
+        return segments;
+    }
+
+    private int[] decode(final int device) {
+        if (firstRows[device] < 0) {
+            return NO_SEGMENTS;
+        }
+        checkUnchanged(null);
+        final IntList segments = new IntList();
+        try {
+            for (int row = firstRows[device]; row >= 0; row = nextRows[row]) {
+                BulkLoader.parseSegments(file.asSlice(rowOffsets[row], rowLengths[row]).asByteBuffer(), 0,
+                        rowLengths[row], segments);
+            }
+        } catch (final InternalError e) {
+            // the mapped pages went away because the file was truncated under the read
+            checkUnchanged(e);
+            throw e;
+        }
+        // a rewrite during the read may have mixed old and new bytes
+        checkUnchanged(null);
+        return segments.toArray();
+    }
+
+    // fails when the mapped file was rewritten in place; a file moved over it, or removed, leaves the
+    // mapped one as it was
+    private void checkUnchanged(final Throwable cause) {
+        final FileStamp current;
+        try {
+            current = FileStamp.of(path);
+        } catch (final NoSuchFileException e) {
+            return;
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (Objects.equals(current.fileKey(), stamp.fileKey()) && !current.equals(stamp)) {
+            throw new IllegalStateException("segment data file " + path
+                    + " was modified in place after it was mapped; reload to read it", cause);
+        }
+    }
+
+    // collects row positions in file order while the segment data file is scanned
+    static final class Builder {
+
+        private long[] rowOffsets = new long[16];
+        private int[] rowLengths = new int[16];
+        private int[] rowDevices = new int[16];
+        private int size;
+
+        void addRow(final int device, final long offset, final int length) {
+            if (size == rowOffsets.length) {
+                rowOffsets = Arrays.copyOf(rowOffsets, size << 1);
+                rowLengths = Arrays.copyOf(rowLengths, size << 1);
+                rowDevices = Arrays.copyOf(rowDevices, size << 1);
+            }
+            rowOffsets[size] = offset;
+            rowLengths[size] = length;
+            rowDevices[size] = device;
+            size++;
+        }
+
+        // maps the file read-only; the mapping lives as long as the index. Fails when the file no longer
+        // holds the rows that were scanned.
+        LazySegmentIndex build(final PackedSegmentIndex links, final Path segmentData, final int rowCacheCapacity)
+                throws IOException {
+            try (FileChannel channel = FileChannel.open(segmentData, StandardOpenOption.READ)) {
+                final FileStamp stamp = FileStamp.of(segmentData);
+                final long fileSize = channel.size();
+                for (int row = 0; row < size; row++) {
+                    if (rowOffsets[row] + rowLengths[row] > fileSize) {
+                        throw new IOException(segmentData + " shrank to " + fileSize + " bytes while it was loaded");
+                    }
+                }
+                final MemorySegment file = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize, Arena.ofAuto());
+                return new LazySegmentIndex(links, segmentData, stamp, file, this, rowCacheCapacity);
+            }
+        }
+    }
+
+    // identity, size and modification time of a file, as far as the file system reports them
+    private record FileStamp(Object fileKey, long size, FileTime modified) {
+
+        static FileStamp of(final Path path) throws IOException {
+            final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new FileStamp(attributes.fileKey(), attributes.size(), attributes.lastModifiedTime());
+        }
+    }
+
+    private static final class LastRow {
+
+        private int device;
+        private int[] segments;
+    }
+
+    // device ordinal to decoded row in an open addressing table of entries, probed without boxing; hits are
+    // lock free, inserts and evictions happen under the lock. An eviction shifts later entries of its probe
+    // run back, so a concurrent lookup may miss a row that is still cached and decode it again.
+    private static final class RowCache {
+
+        private final int capacity;
+        private final AtomicReferenceArray<Entry> table;
+        private final int mask;
+        private final Entry[] clock;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private int clockSize;
+        private int hand;
+        private long segmentCount;
+
+        private RowCache(final int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("row cache capacity must be positive: " + capacity);
+            }
+            this.capacity = capacity;
+            // at most half full, so probe runs stay short and always end at an empty slot
+            final int tableSize = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) << 1;
+            this.table = new AtomicReferenceArray<>(tableSize);
+            this.mask = tableSize - 1;
+            this.clock = new Entry[capacity];
+        }
+
+        private int[] get(final int device) {
+            final Entry entry = find(device);
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            return entry.segments;
+        }
+
+        private void put(final int device, final int[] segments) {
+            lock.lock();
+            try {
+                if (find(device) != null) {
+                    return;
+                }
+                final Entry entry = new Entry(device, segments);
+                if (clockSize < capacity) {
+                    clock[clockSize++] = entry;
+                } else {
+                    while (clock[hand].referenced) {
+                        clock[hand].referenced = false;
+                        hand = (hand + 1) % capacity;
+                    }
+                    remove(clock[hand].device);
+                    segmentCount -= clock[hand].segments.length;
+                    clock[hand] = entry;
+                    hand = (hand + 1) % capacity;
+                }
+                segmentCount += segments.length;
+                int slot = IdDictionary.spread(device) & mask;
+                while (table.get(slot) != null) {
+                    slot = (slot + 1) & mask;
+                }
+                table.set(slot, entry);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Entry find(final int device) {
+            int slot = IdDictionary.spread(device) & mask;
+            Entry entry;
+            while ((entry = table.get(slot)) != null) {
+                if (entry.device == device) {
+                    return entry;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        // clears the device's slot, moving back every later entry of the run that may take the hole
+        private void remove(final int device) {
+            int hole = IdDictionary.spread(device) & mask;
+            while (table.get(hole).device != device) {
+                hole = (hole + 1) & mask;
+            }
+            Entry entry;
+            for (int slot = (hole + 1) & mask; (entry = table.get(slot)) != null; slot = (slot + 1) & mask) {
+                final int home = IdDictionary.spread(entry.device) & mask;
+                if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                    table.set(hole, entry);
+                    hole = slot;
+                }
+            }
+            table.set(hole, null);
+        }
+
+        private int size() {
+            lock.lock();
+            try {
+                return clockSize;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // arrays plus a rough per-entry cost for the entry object
+        private long heapBytes() {
+            lock.lock();
+            try {
+                return (long) clockSize * (IdDictionary.ARRAY_HEADER_BYTES + 24) + Integer.BYTES * segmentCount
+                        + (long) Integer.BYTES * (capacity + table.length());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private static final class Entry {
+
+            private final int device;
+            private final int[] segments;
+            private volatile boolean referenced;
+
+            private Entry(final int device, final int[] segments) {
+                this.device = device;
+                this.segments = segments;
+            }
+        }
+    }
+}
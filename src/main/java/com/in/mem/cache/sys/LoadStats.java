@@ -0,0 +1,29 @@
+package com.in.mem.cache.sys;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings of one cache load. Files are split into line aligned chunks and parsed concurrently,
+ * so the per file parse times overlap and {@code parseNanos} is the wall time of the whole phase.
+ */
+public record LoadStats(List<FileStats> files, long parseNanos, long indexNanos, long totalNanos) {
+
+    public record FileStats(String fileName, long bytes, int chunks, long records, long splitNanos,
+                            long parseNanos) {
+
+        @Override
+        public String toString() {
+            return fileName + ": " + bytes + " bytes, " + records + " records in " + chunks + " chunks, split "
+                    + TimeUnit.NANOSECONDS.toMillis(splitNanos) + " ms, parse "
+                    + TimeUnit.NANOSECONDS.toMillis(parseNanos) + " ms";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "parse " + TimeUnit.NANOSECONDS.toMillis(parseNanos) + " ms, index "
+                + TimeUnit.NANOSECONDS.toMillis(indexNanos) + " ms, total "
+                + TimeUnit.NANOSECONDS.toMillis(totalNanos) + " ms " + files;
+    }
+}
@@ -0,0 +1,191 @@
+package com.in.mem.cache.sys;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * In-memory {@link MetricsRecorder}: lock-free counters and a {@link LatencyHistogram}, readable directly or
+ * through JMX once {@link #register(String)} has been called.
+ */
+public final class LookupMetrics implements MetricsRecorder, LookupMetricsMXBean {
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder devices = new LongAdder();
+    private final LongAdder segmentsOffered = new LongAdder();
+    private final LongAdder segmentsRestricted = new LongAdder();
+    private final LongAdder segmentsEmitted = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final Map<String, long[]> footprint = new ConcurrentHashMap<>();
+    private volatile long lastLoadNanos;
+    private volatile long lastCompactionNanos;
+
+    // registers under com.in.mem.cache.sys:type=LookupMetrics,name=<name> on the platform MBean server
+    public ObjectName register(final String name) throws JMException {
+        final ObjectName objectName = new ObjectName("com.in.mem.cache.sys:type=LookupMetrics,name=" + name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    @Override
+    public void recordLookup(final long nanos, final int devices, final int segments) {
+        latency.record(nanos);
+        lookups.increment();
+        this.devices.add(devices);
+    }
+
+    @Override
+    public void recordMerge(final int offered, final int restrictedFiltered, final int emitted) {
+        segmentsOffered.add(offered);
+        segmentsRestricted.add(restrictedFiltered);
+        segmentsEmitted.add(emitted);
+    }
+
+    @Override
+    public void recordMiss(final long nanos) {
+        latency.record(nanos);
+        misses.increment();
+    }
+
+    @Override
+    public void recordLoad(final LoadStats loadStats, final SegmentIndex segmentIndex) {
+        if (loadStats != null) {
+            lastLoadNanos = loadStats.totalNanos();
+            loads.increment();
+        }
+        footprint.clear();
+        segmentIndex.reportFootprint(this);
+    }
+
+    @Override
+    public void recordCompaction(final long nanos, final SegmentIndex segmentIndex) {
+        lastCompactionNanos = nanos;
+        compactions.increment();
+        footprint.clear();
+        segmentIndex.reportFootprint(this);
+    }
+
+    @Override
+    public void recordFootprint(final String structure, final long heapBytes, final long offHeapBytes) {
+        footprint.merge(structure, new long[]{heapBytes, offHeapBytes},
+                (current, added) -> new long[]{current[0] + added[0], current[1] + added[1]});
+    }
+
+    // the latency histogram covers lookups and misses
+    public LatencyHistogram latency() {
+        return latency;
+    }
+
+    @Override
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getLatencyMeanMicros() {
+        return latency.mean() / 1_000;
+    }
+
+    @Override
+    public double getLatencyP50Micros() {
+        return latency.valueAtPercentile(0.5) / 1_000d;
+    }
+
+    @Override
+    public double getLatencyP99Micros() {
+        return latency.valueAtPercentile(0.99) / 1_000d;
+    }
+
+    @Override
+    public double getLatencyP999Micros() {
+        return latency.valueAtPercentile(0.999) / 1_000d;
+    }
+
+    @Override
+    public double getLatencyMaxMicros() {
+        return latency.valueAtPercentile(1) / 1_000d;
+    }
+
+    @Override
+    public double getDevicesPerLookup() {
+        final long n = lookups.sum();
+        return n == 0 ? 0 : (double) devices.sum() / n;
+    }
+
+    @Override
+    public long getSegmentsBeforeDedup() {
+        return segmentsOffered.sum();
+    }
+
+    @Override
+    public long getSegmentsAfterDedup() {
+        return segmentsEmitted.sum();
+    }
+
+    // share of the segments offered to merges that the restricted filter dropped
+    @Override
+    public double getRestrictedHitRate() {
+        final long offered = segmentsOffered.sum();
+        return offered == 0 ? 0 : (double) segmentsRestricted.sum() / offered;
+    }
+
+    @Override
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    @Override
+    public double getLastLoadMillis() {
+        return lastLoadNanos / 1_000_000d;
+    }
+
+    @Override
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    @Override
+    public double getLastCompactionMillis() {
+        return lastCompactionNanos / 1_000_000d;
+    }
+
+    @Override
+    public Map<String, Long> getHeapBytes() {
+        return footprint(0);
+    }
+
+    @Override
+    public Map<String, Long> getOffHeapBytes() {
+        return footprint(1);
+    }
+
+    @Override
+    public void reset() {
+        latency.reset();
+        lookups.reset();
+        misses.reset();
+        devices.reset();
+        segmentsOffered.reset();
+        segmentsRestricted.reset();
+        segmentsEmitted.reset();
+    }
+
+    private Map<String, Long> footprint(final int column) {
+        final Map<String, Long> bytes = new TreeMap<>();
+        footprint.forEach((structure, values) -> bytes.put(structure, values[column]));
+        return bytes;
+    }
+}
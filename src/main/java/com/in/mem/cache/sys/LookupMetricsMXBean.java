@@ -0,0 +1,43 @@
+package com.in.mem.cache.sys;
+
+import java.util.Map;
+
+// JMX view of LookupMetrics; latencies in microseconds
+public interface LookupMetricsMXBean {
+
+    public long getLookups();
+
+    public long getMisses();
+
+    public double getLatencyMeanMicros();
+
+    public double getLatencyP50Micros();
+
+    public double getLatencyP99Micros();
+
+    public double getLatencyP999Micros();
+
+    public double getLatencyMaxMicros();
+
+    public double getDevicesPerLookup();
+
+    public long getSegmentsBeforeDedup();
+
+    public long getSegmentsAfterDedup();
+
+    public double getRestrictedHitRate();
+
+    public long getLoads();
+
+    public double getLastLoadMillis();
+
+    public long getCompactions();
+
+    public double getLastCompactionMillis();
+
+    public Map<String, Long> getHeapBytes();
+
+    public Map<String, Long> getOffHeapBytes();
+
+    public void reset();
+}
@@ -0,0 +1,36 @@
+package com.in.mem.cache.sys;
+
+/**
+ * Receives cache and lookup measurements. {@link LookupMetrics} aggregates them in memory and exposes them
+ * over JMX; other implementations can forward them to any metrics system. Every method defaults to doing
+ * nothing, and components handed {@link #NOOP} skip taking the measurements in the first place.
+ */
+public interface MetricsRecorder {
+
+    public static final MetricsRecorder NOOP = new MetricsRecorder() {
+    };
+
+    // a lookup of a known ID: its latency, the linked devices it fanned out to and the segments returned
+    public default void recordLookup(final long nanos, final int devices, final int segments) {
+    }
+
+    // a merge behind a lookup: segments offered before de-duplication, dropped as restricted and emitted
+    public default void recordMerge(final int offered, final int restrictedFiltered, final int emitted) {
+    }
+
+    // a lookup of an unknown ID
+    public default void recordMiss(final long nanos) {
+    }
+
+    // a newly published index; loadStats may be null when the index was not loaded from files
+    public default void recordLoad(final LoadStats loadStats, final SegmentIndex segmentIndex) {
+    }
+
+    // applied deltas folded into a packed base, which is now the published index; nanos is how long it took
+    public default void recordCompaction(final long nanos, final SegmentIndex segmentIndex) {
+    }
+
+    // bytes held by one structure of the current index, as reported by SegmentIndex.reportFootprint
+    public default void recordFootprint(final String structure, final long heapBytes, final long offHeapBytes) {
+    }
+}
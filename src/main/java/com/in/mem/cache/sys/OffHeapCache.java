@@ -0,0 +1,73 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.file.Path;
+
+/**
+ * {@link PrimitiveCache} whose device to segment adjacency and ID hash indexes live outside the Java heap,
+ * in native memory or a memory mapped snapshot owned by a shared {@link Arena}, so serving adds nothing to
+ * collector work. Only {@link #open(Path)} serves datasets larger than the heap: {@link #load(Path)} parses
+ * into a heap index first and copies it out, so its peak heap use is that of the whole dataset. Closing the
+ * cache frees or unmaps the memory; lookups after that fail with {@link IllegalStateException}.
+ */
+public class OffHeapCache implements PrimitiveCache, AutoCloseable {
+
+    private static final String ID_MAP_FILE_NAME = "idmappings.txt";
+    private static final String SEGMENT_DATA_FILE_NAME = "segmentdata.txt";
+    private static final String RESTRICTED_SEGMENTS_FILE_NAME = "restrictedsegments.txt";
+
+    private final Arena arena;
+    private final OffHeapSegmentIndex segmentIndex;
+    private final LoadStats loadStats;
+
+    private OffHeapCache(final Arena arena, final OffHeapSegmentIndex segmentIndex, final LoadStats loadStats) {
+        this.arena = arena;
+        this.segmentIndex = segmentIndex;
+        this.loadStats = loadStats;
+    }
+
+    // parses the text files in the directory and moves the result into native memory; the parsed heap index
+    // is only released once it has been copied, so the dataset has to fit the heap while loading
+    public static OffHeapCache load(final Path dataDirectory) throws IOException {
+        final BulkLoader loader = new BulkLoader();
+        final PackedSegmentIndex heapIndex = loader.load(dataDirectory.resolve(ID_MAP_FILE_NAME),
+                dataDirectory.resolve(SEGMENT_DATA_FILE_NAME), dataDirectory.resolve(RESTRICTED_SEGMENTS_FILE_NAME));
+        final Arena arena = Arena.ofShared();
+        return new OffHeapCache(arena, SegmentSnapshot.copyOf(heapIndex, arena), loader.loadStats());
+    }
+
+    // maps a snapshot written by SegmentSnapshot.write without copying it; nothing but the restricted
+    // segments is read onto the heap, whatever the size of the dataset
+    public static OffHeapCache open(final Path snapshotFile) throws IOException {
+        final Arena arena = Arena.ofShared();
+        try {
+            return new OffHeapCache(arena, SegmentSnapshot.open(snapshotFile, arena), null);
+        } catch (final IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    public SegmentIndex segmentIndex() {
+        return segmentIndex;
+    }
+
+    public LoadStats loadStats() {
+        return loadStats;
+    }
+
+    // reports the load and the footprint of the index right away; the index never changes afterwards
+    public void setMetricsRecorder(final MetricsRecorder metrics) {
+        metrics.recordLoad(loadStats, segmentIndex);
+    }
+
+    public long offHeapBytes() {
+        return segmentIndex.image().byteSize();
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
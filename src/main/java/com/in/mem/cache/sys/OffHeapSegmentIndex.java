@@ -0,0 +1,200 @@
+package com.in.mem.cache.sys;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link SegmentIndex} read directly from a {@link SegmentSnapshot} image held outside the Java heap, either
+ * a memory mapped snapshot file or native memory allocated from an arena. Nothing is copied onto the heap
+ * except the restricted segment set; ID lookups hash the String and compare it against the stored UTF-8
+ * bytes, so the read path does not allocate.
+ */
+final class OffHeapSegmentIndex implements SegmentIndex {
+
+    static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT.withOrder(ByteOrder.LITTLE_ENDIAN);
+    static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final MemorySegment image;
+    private final SnapshotLayout layout;
+    private final Dictionary users;
+    private final Dictionary devices;
+    private final int[] restrictedSegments;
+    private final SegmentBitmap restrictedBitmap;
+
+    OffHeapSegmentIndex(final MemorySegment image, final SnapshotLayout layout) {
+        this.image = image;
+        this.layout = layout;
+        this.users = new Dictionary(image, layout.userCount(), layout.userIdOffsetsOffset(),
+                layout.userSlotsOffset(), layout.userSlots(), layout.userIdBytesOffset());
+        this.devices = new Dictionary(image, layout.deviceCount(), layout.deviceIdOffsetsOffset(),
+                layout.deviceSlotsOffset(), layout.deviceSlots(), layout.deviceIdBytesOffset());
+        this.restrictedSegments = new int[layout.restrictedCount()];
+        for (int i = 0; i < restrictedSegments.length; i++) {
+            restrictedSegments[i] = image.getAtIndex(INT, layout.restrictedOffset() / Integer.BYTES + i);
+        }
+        this.restrictedBitmap = SegmentBitmap.of(restrictedSegments);
+    }
+
+    MemorySegment image() {
+        return image;
+    }
+
+    SnapshotLayout layout() {
+        return layout;
+    }
+
+    @Override
+    public int userCount() {
+        return layout.userCount();
+    }
+
+    @Override
+    public int deviceCount() {
+        return layout.deviceCount();
+    }
+
+    @Override
+    public int userOrdinal(final String userId) {
+        return users.ordinal(userId);
+    }
+
+    @Override
+    public int deviceOrdinal(final String deviceId) {
+        return devices.ordinal(deviceId);
+    }
+
+    @Override
+    public String userId(final int user) {
+        return users.id(user);
+    }
+
+    @Override
+    public String deviceId(final int device) {
+        return devices.id(device);
+    }
+
+    @Override
+    public int linkedDeviceCount(final int user) {
+        final long offsets = layout.userDeviceOffsetsOffset() + (long) user * Integer.BYTES;
+        return image.get(INT, offsets + Integer.BYTES) - image.get(INT, offsets);
+    }
+
+    @Override
+    public int linkedDevice(final int user, final int index) {
+        final int start = image.get(INT, layout.userDeviceOffsetsOffset() + (long) user * Integer.BYTES);
+        return image.get(INT, layout.userDevicesOffset() + ((long) start + index) * Integer.BYTES);
+    }
+
+    @Override
+    public int segmentCount(final int device) {
+        final long offsets = layout.deviceSegmentOffsetsOffset() + (long) device * Integer.BYTES;
+        return image.get(INT, offsets + Integer.BYTES) - image.get(INT, offsets);
+    }
+
+    @Override
+    public int segment(final int device, final int index) {
+        final int start = image.get(INT, layout.deviceSegmentOffsetsOffset() + (long) device * Integer.BYTES);
+        return image.get(INT, layout.deviceSegmentsOffset() + ((long) start + index) * Integer.BYTES);
+    }
+
+    @Override
+    public int[] restrictedSegmentIds() {
+        return restrictedSegments;
+    }
+
+    @Override
+    public SegmentBitmap restrictedBitmap() {
+        return restrictedBitmap;
+    }
+
+    @Override
+    public void reportFootprint(final MetricsRecorder recorder) {
+        recorder.recordFootprint("users", 0, Long.BYTES * (layout.userCount() + 1L)
+                + Integer.BYTES * (long) layout.userSlots() + layout.userIdBytes());
+        recorder.recordFootprint("devices", 0, Long.BYTES * (layout.deviceCount() + 1L)
+                + Integer.BYTES * (long) layout.deviceSlots() + layout.deviceIdBytes());
+        recorder.recordFootprint("links", 0, Integer.BYTES * (layout.userCount() + 1L + layout.linkCount()));
+        recorder.recordFootprint("segments", 0, Integer.BYTES * (layout.deviceCount() + 1L + layout.segmentCount()));
+        recorder.recordFootprint("restricted", IdDictionary.ARRAY_HEADER_BYTES
+                + Integer.BYTES * (long) restrictedSegments.length + restrictedBitmap.heapBytes(),
+                Integer.BYTES * (long) layout.restrictedCount());
+    }
+
+    // string dictionary section: long offsets into the UTF-8 bytes and a table of ordinal + 1 slots
+    static final class Dictionary {
+
+        private final MemorySegment segment;
+        private final int count;
+        private final long offsets;
+        private final long slots;
+        private final int mask;
+        private final long bytes;
+
+        Dictionary(final MemorySegment segment, final int count, final long offsets, final long slots,
+                   final int slotCount, final long bytes) {
+            this.segment = segment;
+            this.count = count;
+            this.offsets = offsets;
+            this.slots = slots;
+            this.mask = slotCount - 1;
+            this.bytes = bytes;
+        }
+
+        int ordinal(final String id) {
+            int slot = IdDictionary.spread(id.hashCode()) & mask;
+            int entry;
+            while ((entry = segment.get(INT, slots + (long) slot * Integer.BYTES)) != 0) {
+                if (matches(id, entry - 1)) {
+                    return entry - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        String id(final int ordinal) {
+            final long start = segment.get(LONG, offsets + (long) ordinal * Long.BYTES);
+            final long end = segment.get(LONG, offsets + (ordinal + 1L) * Long.BYTES);
+            final byte[] id = new byte[(int) (end - start)];
+            MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, bytes + start, id, 0, id.length);
+            return new String(id, StandardCharsets.UTF_8);
+        }
+
+        int size() {
+            return count;
+        }
+
+        private boolean matches(final String id, final int ordinal) {
+            final long start = bytes + segment.get(LONG, offsets + (long) ordinal * Long.BYTES);
+            final long length = bytes + segment.get(LONG, offsets + (ordinal + 1L) * Long.BYTES) - start;
+            if (length < id.length()) {
+                return false;
+            }
+            for (int i = 0; i < id.length(); i++) {
+                final char c = id.charAt(i);
+                if (c >= 0x80) {
+                    return matchesUtf8(id, start, length);
+                }
+                if (length == id.length() && segment.get(ValueLayout.JAVA_BYTE, start + i) != c) {
+                    return false;
+                }
+            }
+            return length == id.length();
+        }
+
+        private boolean matchesUtf8(final String id, final long start, final long length) {
+            final byte[] encoded = id.getBytes(StandardCharsets.UTF_8);
+            if (encoded.length != length) {
+                return false;
+            }
+            for (int i = 0; i < encoded.length; i++) {
+                if (segment.get(ValueLayout.JAVA_BYTE, start + i) != encoded[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
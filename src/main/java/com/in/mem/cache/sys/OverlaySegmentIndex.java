@@ -0,0 +1,365 @@
+package com.in.mem.cache.sys;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * {@link SegmentIndex} made of an unchanged base index plus the rows changed by {@link Delta}s. The overlay
+ * is held in persistent tries that each batch updates by path copying: a batch copies only the rows it
+ * touches, each touched row once, and the trie nodes above them, sharing everything else with the previous
+ * generation. The cost of an update so follows the change rate rather than the size of the data or of the
+ * overlay. IDs first seen in a delta get ordinals after the base ordinals. The overlay is folded back into a
+ * packed base by compaction.
+ */
+final class OverlaySegmentIndex implements SegmentIndex {
+
+    private final SegmentIndex base;
+    private final int addedUserCount;
+    private final int addedDeviceCount;
+    // added IDs by ordinal minus the base count, and the ordinals of added IDs by their hash code
+    private final IntTrie<String> addedUsers;
+    private final IntTrie<String> addedDevices;
+    private final IntTrie<int[]> addedUserOrdinals;
+    private final IntTrie<int[]> addedDeviceOrdinals;
+    private final IntTrie<int[]> userRows;
+    private final IntTrie<int[]> deviceRows;
+    private final int[] restrictedSegments;
+    private final SegmentBitmap restrictedBitmap;
+
+    private OverlaySegmentIndex(final Batch batch, final int[] restrictedSegments) {
+        this.base = batch.base;
+        this.addedUserCount = batch.addedUserCount;
+        this.addedDeviceCount = batch.addedDeviceCount;
+        this.addedUsers = batch.addedUsers;
+        this.addedDevices = batch.addedDevices;
+        this.addedUserOrdinals = batch.addedUserOrdinals;
+        this.addedDeviceOrdinals = batch.addedDeviceOrdinals;
+        this.userRows = batch.userRows;
+        this.deviceRows = batch.deviceRows;
+        this.restrictedSegments = restrictedSegments;
+        this.restrictedBitmap = restrictedSegments == base.restrictedSegmentIds()
+                ? base.restrictedBitmap() : SegmentBitmap.of(restrictedSegments);
+    }
+
+    static OverlaySegmentIndex apply(final SegmentIndex current, final List<Delta> batch) {
+        return new Batch(current).apply(batch);
+    }
+
+    // number of rows and IDs held outside the base, used to decide when to compact
+    int overlaySize() {
+        return userRows.size() + deviceRows.size() + addedUserCount + addedDeviceCount;
+    }
+
+    SegmentIndex base() {
+        return base;
+    }
+
+    // the base of an overlay, or the index itself
+    static SegmentIndex baseOf(final SegmentIndex segmentIndex) {
+        return segmentIndex instanceof OverlaySegmentIndex overlay ? overlay.base : segmentIndex;
+    }
+
+    // ordinals of the users whose linked devices may differ between two indexes over the same base, each
+    // an overlay or the base itself; costs the rows either overlay changed, not the number of users
+    static void forEachUserDiffering(final SegmentIndex from, final SegmentIndex to, final IntConsumer action) {
+        userRows(from).forEachDifference(userRows(to), action);
+    }
+
+    // ordinals of the devices whose segments may differ between two indexes over the same base
+    static void forEachDeviceDiffering(final SegmentIndex from, final SegmentIndex to, final IntConsumer action) {
+        deviceRows(from).forEachDifference(deviceRows(to), action);
+    }
+
+    // ordinals of the users whose linked devices differ from the base, including every added user
+    void forEachChangedUser(final IntConsumer action) {
+        userRows.forEachKey(action);
+    }
+
+    // ordinals of the devices whose segments differ from the base, including every added device
+    void forEachChangedDevice(final IntConsumer action) {
+        deviceRows.forEachKey(action);
+    }
+
+    // the base structures plus everything the applied deltas hold on top of them
+    @Override
+    public void reportFootprint(final MetricsRecorder recorder) {
+        base.reportFootprint(recorder);
+        final long addedIds = addedUsers.heapBytes(IdDictionary::heapBytes)
+                + addedDevices.heapBytes(IdDictionary::heapBytes)
+                + addedUserOrdinals.heapBytes(OverlaySegmentIndex::rowBytes)
+                + addedDeviceOrdinals.heapBytes(OverlaySegmentIndex::rowBytes);
+        recorder.recordFootprint("overlay", addedIds + userRows.heapBytes(OverlaySegmentIndex::rowBytes)
+                + deviceRows.heapBytes(OverlaySegmentIndex::rowBytes), 0);
+    }
+
+    @Override
+    public int userCount() {
+        return base.userCount() + addedUserCount;
+    }
+
+    @Override
+    public int deviceCount() {
+        return base.deviceCount() + addedDeviceCount;
+    }
+
+    @Override
+    public int userOrdinal(final String userId) {
+        final int user = base.userOrdinal(userId);
+        if (user >= 0 || addedUserCount == 0) {
+            return user;
+        }
+        return addedOrdinal(userId, addedUserOrdinals, addedUsers, base.userCount());
+    }
+
+    @Override
+    public int deviceOrdinal(final String deviceId) {
+        final int device = base.deviceOrdinal(deviceId);
+        if (device >= 0 || addedDeviceCount == 0) {
+            return device;
+        }
+        return addedOrdinal(deviceId, addedDeviceOrdinals, addedDevices, base.deviceCount());
+    }
+
+    @Override
+    public String userId(final int user) {
+        return user < base.userCount() ? base.userId(user) : addedUsers.get(user - base.userCount());
+    }
+
+    @Override
+    public String deviceId(final int device) {
+        return device < base.deviceCount() ? base.deviceId(device) : addedDevices.get(device - base.deviceCount());
+    }
+
+    @Override
+    public int linkedDeviceCount(final int user) {
+        final int[] row = userRows.get(user);
+        return row != null ? row.length : base.linkedDeviceCount(user);
+    }
+
+    @Override
+    public int linkedDevice(final int user, final int index) {
+        final int[] row = userRows.get(user);
+        return row != null ? row[index] : base.linkedDevice(user, index);
+    }
+
+    @Override
+    public int segmentCount(final int device) {
+        final int[] row = deviceRows.get(device);
+        return row != null ? row.length : base.segmentCount(device);
+    }
+
+    @Override
+    public int segment(final int device, final int index) {
+        final int[] row = deviceRows.get(device);
+        return row != null ? row[index] : base.segment(device, index);
+    }
+
+    @Override
+    public int[] restrictedSegmentIds() {
+        return restrictedSegments;
+    }
+
+    @Override
+    public SegmentBitmap restrictedBitmap() {
+        return restrictedBitmap;
+    }
+
+    private static int addedOrdinal(final String id, final IntTrie<int[]> ordinals, final IntTrie<String> ids,
+                                    final int baseCount) {
+        final int[] candidates = ordinals.get(id.hashCode());
+        if (candidates != null) {
+            for (final int candidate : candidates) {
+                if (id.equals(ids.get(candidate - baseCount))) {
+                    return candidate;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static IntTrie<int[]> userRows(final SegmentIndex segmentIndex) {
+        return segmentIndex instanceof OverlaySegmentIndex overlay ? overlay.userRows : IntTrie.empty();
+    }
+
+    private static IntTrie<int[]> deviceRows(final SegmentIndex segmentIndex) {
+        return segmentIndex instanceof OverlaySegmentIndex overlay ? overlay.deviceRows : IntTrie.empty();
+    }
+
+    private static long rowBytes(final int[] row) {
+        return IdDictionary.ARRAY_HEADER_BYTES + Integer.BYTES * (long) row.length;
+    }
+
+    // working copy of the overlay while one batch is applied; each touched row is materialized once and
+    // written into the tries when the batch is done
+    private static final class Batch {
+
+        private final SegmentIndex base;
+        private final SegmentIndex current;
+        private int addedUserCount;
+        private int addedDeviceCount;
+        private IntTrie<String> addedUsers;
+        private IntTrie<String> addedDevices;
+        private IntTrie<int[]> addedUserOrdinals;
+        private IntTrie<int[]> addedDeviceOrdinals;
+        private IntTrie<int[]> userRows;
+        private IntTrie<int[]> deviceRows;
+        // IDs first seen in this batch, which the current index does not know yet
+        private final Map<String, Integer> newUsers = new HashMap<>();
+        private final Map<String, Integer> newDevices = new HashMap<>();
+        private final Map<Integer, IntList> touchedUsers = new HashMap<>();
+        private final Map<Integer, IntList> touchedDevices = new HashMap<>();
+        private IntList restricted;
+
+        private Batch(final SegmentIndex current) {
+            this.current = current;
+            if (current instanceof OverlaySegmentIndex overlay) {
+                this.base = overlay.base;
+                this.addedUserCount = overlay.addedUserCount;
+                this.addedDeviceCount = overlay.addedDeviceCount;
+                this.addedUsers = overlay.addedUsers;
+                this.addedDevices = overlay.addedDevices;
+                this.addedUserOrdinals = overlay.addedUserOrdinals;
+                this.addedDeviceOrdinals = overlay.addedDeviceOrdinals;
+                this.userRows = overlay.userRows;
+                this.deviceRows = overlay.deviceRows;
+            } else {
+                this.base = current;
+                this.addedUsers = IntTrie.empty();
+                this.addedDevices = IntTrie.empty();
+                this.addedUserOrdinals = IntTrie.empty();
+                this.addedDeviceOrdinals = IntTrie.empty();
+                this.userRows = IntTrie.empty();
+                this.deviceRows = IntTrie.empty();
+            }
+        }
+
+        private OverlaySegmentIndex apply(final List<Delta> batch) {
+            for (final Delta delta : batch) {
+                switch (delta.operation()) {
+                    case ADD_SEGMENT -> addIfAbsent(deviceRow(device(delta.id())), delta.segmentId());
+                    case REMOVE_SEGMENT -> {
+                        final int device = knownDevice(delta.id());
+                        if (device >= 0) {
+                            deviceRow(device).removeAll(delta.segmentId());
+                        }
+                    }
+                    case LINK_DEVICE -> addIfAbsent(userRow(user(delta.id())), device(delta.linkedId()));
+                    case UNLINK_DEVICE -> {
+                        final int user = knownUser(delta.id());
+                        final int device = knownDevice(delta.linkedId());
+                        if (user >= 0 && device >= 0) {
+                            userRow(user).removeAll(device);
+                        }
+                    }
+                    case ADD_RESTRICTED -> addIfAbsent(restricted(), delta.segmentId());
+                    case REMOVE_RESTRICTED -> restricted().removeAll(delta.segmentId());
+                }
+            }
+            touchedUsers.forEach((user, row) -> userRows = userRows.with(user, row.toArray()));
+            touchedDevices.forEach((device, row) -> deviceRows = deviceRows.with(device, row.toArray()));
+            return new OverlaySegmentIndex(this,
+                    restricted == null ? current.restrictedSegmentIds() : restricted.toArray());
+        }
+
+        private int knownUser(final String userId) {
+            final int user = current.userOrdinal(userId);
+            return user >= 0 ? user : newUsers.getOrDefault(userId, -1);
+        }
+
+        private int knownDevice(final String deviceId) {
+            final int device = current.deviceOrdinal(deviceId);
+            return device >= 0 ? device : newDevices.getOrDefault(deviceId, -1);
+        }
+
+        private int user(final String userId) {
+            final int user = knownUser(userId);
+            if (user >= 0) {
+                return user;
+            }
+            final int added = base.userCount() + addedUserCount;
+            addedUsers = addedUsers.with(addedUserCount++, userId);
+            addedUserOrdinals = withOrdinal(addedUserOrdinals, userId, added);
+            newUsers.put(userId, added);
+            touchedUsers.put(added, new IntList());
+            return added;
+        }
+
+        private int device(final String deviceId) {
+            final int device = knownDevice(deviceId);
+            if (device >= 0) {
+                return device;
+            }
+            final int added = base.deviceCount() + addedDeviceCount;
+            addedDevices = addedDevices.with(addedDeviceCount++, deviceId);
+            addedDeviceOrdinals = withOrdinal(addedDeviceOrdinals, deviceId, added);
+            newDevices.put(deviceId, added);
+            touchedDevices.put(added, new IntList());
+            return added;
+        }
+
+        private IntList userRow(final int user) {
+            return touchedUsers.computeIfAbsent(user, u -> {
+                final int[] row = userRows.get(u);
+                if (row != null) {
+                    return toIntList(row);
+                }
+                final IntList copy = new IntList();
+                for (int i = 0; i < base.linkedDeviceCount(u); i++) {
+                    copy.add(base.linkedDevice(u, i));
+                }
+                return copy;
+            });
+        }
+
+        private IntList deviceRow(final int device) {
+            return touchedDevices.computeIfAbsent(device, d -> {
+                final int[] row = deviceRows.get(d);
+                if (row != null) {
+                    return toIntList(row);
+                }
+                final IntList copy = new IntList();
+                for (int i = 0; i < base.segmentCount(d); i++) {
+                    copy.add(base.segment(d, i));
+                }
+                return copy;
+            });
+        }
+
+        private IntList restricted() {
+            if (restricted == null) {
+                restricted = toIntList(current.restrictedSegmentIds());
+            }
+            return restricted;
+        }
+
+        private static IntTrie<int[]> withOrdinal(final IntTrie<int[]> ordinals, final String id, final int ordinal) {
+            final int[] candidates = ordinals.get(id.hashCode());
+            if (candidates == null) {
+                return ordinals.with(id.hashCode(), new int[]{ordinal});
+            }
+            final int[] grown = Arrays.copyOf(candidates, candidates.length + 1);
+            grown[candidates.length] = ordinal;
+            return ordinals.with(id.hashCode(), grown);
+        }
+
+        private static IntList toIntList(final int[] values) {
+            final IntList list = new IntList(values.length);
+            for (final int value : values) {
+                list.add(value);
+            }
+            return list;
+        }
+
+        private static void addIfAbsent(final IntList row, final int value) {
+            for (int i = 0; i < row.size(); i++) {
+                if (row.get(i) == value) {
+                    return;
+                }
+            }
+            row.add(value);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.in.mem.cache.sys;
+
+/**
+ * {@link SegmentIndex} stored as two adjacency arrays: user ordinal to device ordinals and device
+ * ordinal to segment IDs. Each ID string is held once, in its dictionary.
+ */
+final class PackedSegmentIndex implements SegmentIndex {
+
+    private final IdDictionary users;
+    private final IdDictionary devices;
+    private final int[] userDeviceOffsets;
+    private final int[] userDevices;
+    private final int[] deviceSegmentOffsets;
+    private final int[] deviceSegments;
+    private final int[] restrictedSegments;
+    private final SegmentBitmap restrictedBitmap;
+
+    private PackedSegmentIndex(final Builder builder) {
+        this.users = builder.users;
+        this.devices = builder.devices;
+        this.userDeviceOffsets = new int[users.size() + 1];
+        this.userDevices = pack(builder.linkUsers, builder.linkDevices, userDeviceOffsets);
+        this.deviceSegmentOffsets = new int[devices.size() + 1];
+        this.deviceSegments = pack(builder.segmentDevices, builder.segmentIds, deviceSegmentOffsets);
+        this.restrictedSegments = builder.restrictedSegments.toArray();
+        this.restrictedBitmap = SegmentBitmap.of(restrictedSegments);
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    // packs any index, keeping its user and device ordinals
+    static PackedSegmentIndex copyOf(final SegmentIndex segmentIndex) {
+        final Builder builder = builder();
+        for (int user = 0; user < segmentIndex.userCount(); user++) {
+            builder.internUser(segmentIndex.userId(user));
+        }
+        for (int device = 0; device < segmentIndex.deviceCount(); device++) {
+            builder.internDevice(segmentIndex.deviceId(device));
+        }
+        for (int user = 0; user < segmentIndex.userCount(); user++) {
+            for (int i = 0; i < segmentIndex.linkedDeviceCount(user); i++) {
+                builder.linkDevice(user, segmentIndex.linkedDevice(user, i));
+            }
+        }
+        for (int device = 0; device < segmentIndex.deviceCount(); device++) {
+            for (int i = 0; i < segmentIndex.segmentCount(device); i++) {
+                builder.addSegment(device, segmentIndex.segment(device, i));
+            }
+        }
+        for (final int segmentId : segmentIndex.restrictedSegmentIds()) {
+            builder.addRestrictedSegment(segmentId);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public int userCount() {
+        return users.size();
+    }
+
+    @Override
+    public int deviceCount() {
+        return devices.size();
+    }
+
+    @Override
+    public int userOrdinal(final String userId) {
+        return users.ordinal(userId);
+    }
+
+    @Override
+    public int deviceOrdinal(final String deviceId) {
+        return devices.ordinal(deviceId);
+    }
+
+    @Override
+    public String userId(final int user) {
+        return users.id(user);
+    }
+
+    @Override
+    public String deviceId(final int device) {
+        return devices.id(device);
+    }
+
+    @Override
+    public int linkedDeviceCount(final int user) {
+        return userDeviceOffsets[user + 1] - userDeviceOffsets[user];
+    }
+
+    @Override
+    public int linkedDevice(final int user, final int index) {
+        return userDevices[userDeviceOffsets[user] + index];
+    }
+
+    @Override
+    public int segmentCount(final int device) {
+        return deviceSegmentOffsets[device + 1] - deviceSegmentOffsets[device];
+    }
+
+    @Override
+    public int segment(final int device, final int index) {
+        return deviceSegments[deviceSegmentOffsets[device] + index];
+    }
+
+    @Override
+    public int[] restrictedSegmentIds() {
+        return restrictedSegments;
+    }
+
+    @Override
+    public SegmentBitmap restrictedBitmap() {
+        return restrictedBitmap;
+    }
+
+    @Override
+    public void reportFootprint(final MetricsRecorder recorder) {
+        recorder.recordFootprint("users", users.heapBytes(), 0);
+        recorder.recordFootprint("devices", devices.heapBytes(), 0);
+        recorder.recordFootprint("links", intArrayBytes(userDeviceOffsets) + intArrayBytes(userDevices), 0);
+        recorder.recordFootprint("segments", intArrayBytes(deviceSegmentOffsets) + intArrayBytes(deviceSegments), 0);
+        recorder.recordFootprint("restricted", intArrayBytes(restrictedSegments) + restrictedBitmap.heapBytes(), 0);
+    }
+
+    private static long intArrayBytes(final int[] values) {
+        return IdDictionary.ARRAY_HEADER_BYTES + Integer.BYTES * (long) values.length;
+    }
+
+    // stable counting sort of (key, value) pairs into an offsets/values adjacency layout,
+    // so values for a key keep their file order even when a key appears on several lines
+    private static int[] pack(final IntList keys, final IntList values, final int[] offsets) {
+        for (int i = 0; i < keys.size(); i++) {
+            offsets[keys.get(i) + 1]++;
+        }
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] += offsets[i - 1];
+        }
+        final int[] packed = new int[values.size()];
+        final int[] cursor = offsets.clone();
+        for (int i = 0; i < keys.size(); i++) {
+            packed[cursor[keys.get(i)]++] = values.get(i);
+        }
+        return packed;
+    }
+
+    static final class Builder {
+
+        private final IdDictionary users = new IdDictionary();
+        private final IdDictionary devices = new IdDictionary();
+        private final IntList linkUsers = new IntList();
+        private final IntList linkDevices = new IntList();
+        private final IntList segmentDevices = new IntList();
+        private final IntList segmentIds = new IntList();
+        private final IntList restrictedSegments = new IntList();
+
+        private Builder() {
+        }
+
+        Builder linkDevice(final String userId, final String deviceId) {
+            return linkDevice(internUser(userId), internDevice(deviceId));
+        }
+
+        Builder linkDevice(final int user, final int device) {
+            linkUsers.add(user);
+            linkDevices.add(device);
+            return this;
+        }
+
+        Builder addSegment(final int device, final int segmentId) {
+            segmentDevices.add(device);
+            segmentIds.add(segmentId);
+            return this;
+        }
+
+        int internUser(final String userId) {
+            return users.intern(userId);
+        }
+
+        int internDevice(final String deviceId) {
+            return devices.intern(deviceId);
+        }
+
+        boolean containsDevice(final String deviceId) {
+            return devices.ordinal(deviceId) >= 0;
+        }
+
+        Builder addSegments(final String deviceId, final int[] segments) {
+            final int device = internDevice(deviceId);
+            for (final int segment : segments) {
+                addSegment(device, segment);
+            }
+            return this;
+        }
+
+        Builder addRestrictedSegment(final int segmentId) {
+            restrictedSegments.add(segmentId);
+            return this;
+        }
+
+        PackedSegmentIndex build() {
+            return new PackedSegmentIndex(this);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.in.mem.cache.sys;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * A {@link Cache} that can hand out segment data as primitive {@code int} values, so callers
+ * on the lookup path never need to box segment IDs. Returned arrays and indexes are shared with
+ * the cache and must not be modified. The List based {@link Cache} methods are served as read-only
+ * views over the {@link SegmentIndex}.
+ */
+public interface PrimitiveCache extends Cache {
+
+    public SegmentIndex segmentIndex();
+
+    // tiers of resolved segments kept by the cache, or null when lookups should merge from the index
+    public default TieredSegmentCache tieredSegmentCache() {
+        return null;
+    }
+
+    public default int[] getRestrictedSegmentIds() {
+        return segmentIndex().restrictedSegmentIds();
+    }
+
+    public default int[] lookupSegmentIds(final String id) {
+        final SegmentIndex segmentIndex = segmentIndex();
+        final int device = segmentIndex.deviceOrdinal(id);
+        if (device < 0 || segmentIndex.segmentCount(device) == 0) {
+            return null;
+        }
+        final int[] segments = new int[segmentIndex.segmentCount(device)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = segmentIndex.segment(device, i);
+        }
+        return segments;
+    }
+
+    @Override
+    public default List<Integer> getRestrictedSegments() {
+        final int[] restrictedSegments = segmentIndex().restrictedSegmentIds();
+        return new AbstractList<>() {
+            @Override
+            public Integer get(final int index) {
+                return restrictedSegments[index];
+            }
+
+            @Override
+            public int size() {
+                return restrictedSegments.length;
+            }
+        };
+    }
+
+    @Override
+    public default List<String> lookupIdMappings(final String id) {
+        final SegmentIndex segmentIndex = segmentIndex();
+        final int user = segmentIndex.userOrdinal(id);
+        if (user < 0) {
+            return null;
+        }
+        return new AbstractList<>() {
+            @Override
+            public String get(final int index) {
+                return segmentIndex.deviceId(segmentIndex.linkedDevice(user, index));
+            }
+
+            @Override
+            public int size() {
+                return segmentIndex.linkedDeviceCount(user);
+            }
+        };
+    }
+
+    @Override
+    public default List<Integer> lookupSegments(final String id) {
+        final SegmentIndex segmentIndex = segmentIndex();
+        final int device = segmentIndex.deviceOrdinal(id);
+        if (device < 0 || segmentIndex.segmentCount(device) == 0) {
+            return null;
+        }
+        return new AbstractList<>() {
+            @Override
+            public Integer get(final int index) {
+                return segmentIndex.segment(device, index);
+            }
+
+            @Override
+            public int size() {
+                return segmentIndex.segmentCount(device);
+            }
+        };
+    }
+}
@@ -0,0 +1,194 @@
+package com.in.mem.cache.sys;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded materialized view of fully resolved (merged and de-duplicated) segment arrays per user,
+ * kept separately for the restricted-allowed and restricted-filtered variants. Hits are lock free and
+ * allocation free, probing an open-addressing table keyed by the user ordinal; misses resolve the user
+ * against the {@link SegmentIndex} and insert under a lock, evicting with the CLOCK approximation of LRU
+ * once the capacity is reached. Entries live in a view bound to the
+ * index they were built from, and a lookup against another index replaces the whole view, so a
+ * lookup still running against an older generation only ever reads rows of that generation.
+ */
+public final class ResolvedSegmentCache {
+
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile View view;
+
+    public ResolvedSegmentCache(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    // resolved segments for the user ordinal, computed on first access; never modify the result
+    public int[] resolve(final SegmentIndex segmentIndex, final int user, final boolean allowRestrictedSegments) {
+        final View current = view(segmentIndex);
+        final int key = (user << 1) | (allowRestrictedSegments ? 1 : 0);
+        final Entry entry = current.find(key);
+        if (entry != null) {
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            return entry.segments;
+        }
+        final int[] segments = resolveSegments(segmentIndex, user, allowRestrictedSegments);
+        insert(current, key, segments);
+        return segments;
+    }
+
+    // eagerly resolves users in ordinal order until the cache is full
+    public void preload(final SegmentIndex segmentIndex, final boolean allowRestrictedSegments) {
+        final int users = Math.min(segmentIndex.userCount(), capacity - size());
+        for (int user = 0; user < users; user++) {
+            resolve(segmentIndex, user, allowRestrictedSegments);
+        }
+    }
+
+    public void invalidate() {
+        lock.lock();
+        try {
+            view = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return view == null ? 0 : view.clockSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    private View view(final SegmentIndex segmentIndex) {
+        final View current = view;
+        if (current != null && current.segmentIndex == segmentIndex) {
+            return current;
+        }
+        lock.lock();
+        try {
+            if (view == null || view.segmentIndex != segmentIndex) {
+                view = new View(segmentIndex, capacity);
+            }
+            return view;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // a view that has been replaced keeps serving the lookups that hold it, but takes no new rows
+    private void insert(final View current, final int key, final int[] segments) {
+        lock.lock();
+        try {
+            if (view != current || current.find(key) != null) {
+                return;
+            }
+            final Entry entry = new Entry(key, segments);
+            final Entry[] clock = current.clock;
+            if (current.clockSize < capacity) {
+                clock[current.clockSize++] = entry;
+            } else {
+                while (clock[current.hand].referenced) {
+                    clock[current.hand].referenced = false;
+                    current.hand = (current.hand + 1) % capacity;
+                }
+                current.remove(clock[current.hand].key);
+                clock[current.hand] = entry;
+                current.hand = (current.hand + 1) % capacity;
+            }
+            current.put(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int[] resolveSegments(final SegmentIndex segmentIndex, final int user,
+                                         final boolean allowRestrictedSegments) {
+        final int[] segments = new int[SegmentMerger.segmentCapacity(segmentIndex, user)];
+        final SegmentMerger merger = new SegmentMerger();
+        merger.start(segments, segments.length, allowRestrictedSegments ? null : segmentIndex.restrictedBitmap());
+        final int size = merger.mergeUser(segmentIndex, user);
+        return size == segments.length ? segments : Arrays.copyOf(segments, size);
+    }
+
+    // the entries resolved against one index; the table and clock fields change under the lock only
+    private static final class View {
+
+        private final SegmentIndex segmentIndex;
+        private final AtomicReferenceArray<Entry> table;
+        private final int mask;
+        private final Entry[] clock;
+        private int clockSize;
+        private int hand;
+
+        private View(final SegmentIndex segmentIndex, final int capacity) {
+            this.segmentIndex = segmentIndex;
+            // at most half full, so probe runs stay short and always end at an empty slot
+            final int tableSize = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) << 1;
+            this.table = new AtomicReferenceArray<>(tableSize);
+            this.mask = tableSize - 1;
+            this.clock = new Entry[capacity];
+        }
+
+        private Entry find(final int key) {
+            int slot = IdDictionary.spread(key) & mask;
+            Entry entry;
+            while ((entry = table.get(slot)) != null) {
+                if (entry.key == key) {
+                    return entry;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        private void put(final Entry entry) {
+            int slot = IdDictionary.spread(entry.key) & mask;
+            while (table.get(slot) != null) {
+                slot = (slot + 1) & mask;
+            }
+            table.set(slot, entry);
+        }
+
+        // clears the key's slot, moving back every later entry of the run that may take the hole
+        private void remove(final int key) {
+            int hole = IdDictionary.spread(key) & mask;
+            while (table.get(hole).key != key) {
+                hole = (hole + 1) & mask;
+            }
+            Entry entry;
+            for (int slot = (hole + 1) & mask; (entry = table.get(slot)) != null; slot = (slot + 1) & mask) {
+                final int home = IdDictionary.spread(entry.key) & mask;
+                if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                    table.set(hole, entry);
+                    hole = slot;
+                }
+            }
+            table.set(hole, null);
+        }
+    }
+
+    private static final class Entry {
+
+        private final int key;
+        private final int[] segments;
+        private volatile boolean referenced;
+
+        private Entry(final int key, final int[] segments) {
+            this.key = key;
+            this.segments = segments;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.in.mem.cache.sys;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Inverted index from segment ID to the set of user ordinals that reach the segment through any linked
+ * device, as {@link SegmentBitmap}s, so audience questions such as "in segment X and not in Y" are one
+ * bitmap operation. Built in two passes over a {@link SegmentIndex} and tied to that index: ordinals are
+ * only meaningful for the index it was built from.
+ * <p>
+ * For an {@link OverlaySegmentIndex} {@link #update} keeps the index of the base and inverts only the users
+ * the overlay changed, so a delta batch costs the size of the overlay rather than a pass over every row.
+ */
+public final class SegmentAudienceIndex {
+
+    private static final SegmentBitmap NOBODY = SegmentBitmap.of(new int[0]);
+
+    private final SegmentIndex segmentIndex;
+    // ascending segment IDs and, at the same position, the users that have the segment
+    private final int[] segments;
+    private final SegmentBitmap[] audiences;
+    // only held by an index over all users
+    private final DeviceUsers deviceUsers;
+    // for an overlay: the index of its base and the users whose audiences above replace the base ones
+    private final SegmentAudienceIndex base;
+    private final SegmentBitmap changedUsers;
+
+    private SegmentAudienceIndex(final SegmentIndex segmentIndex, final Inverted inverted,
+                                 final DeviceUsers deviceUsers, final SegmentAudienceIndex base,
+                                 final SegmentBitmap changedUsers) {
+        this.segmentIndex = segmentIndex;
+        this.segments = inverted.segments();
+        this.audiences = inverted.audiences();
+        this.deviceUsers = deviceUsers;
+        this.base = base;
+        this.changedUsers = changedUsers;
+    }
+
+    public static SegmentAudienceIndex build(final SegmentIndex segmentIndex) {
+        return new SegmentAudienceIndex(segmentIndex, invert(segmentIndex, null), DeviceUsers.of(segmentIndex),
+                null, NOBODY);
+    }
+
+    // the index for segmentIndex, reusing what previous holds for the same base. Rejected for a lazily
+    // loaded index, whose rows would all be decoded and would flush its row cache.
+    static SegmentAudienceIndex update(final SegmentAudienceIndex previous, final SegmentIndex segmentIndex) {
+        final SegmentIndex baseIndex = OverlaySegmentIndex.baseOf(segmentIndex);
+        if (baseIndex instanceof LazySegmentIndex) {
+            throw new UnsupportedOperationException("audience queries need every row decoded, "
+                    + "which a lazily loaded index does not hold");
+        }
+        SegmentAudienceIndex full = previous == null ? null : previous.base != null ? previous.base : previous;
+        if (full == null || full.segmentIndex != baseIndex) {
+            full = build(baseIndex);
+        }
+        return segmentIndex instanceof OverlaySegmentIndex overlay ? full.overlay(overlay) : full;
+    }
+
+    public SegmentIndex segmentIndex() {
+        return segmentIndex;
+    }
+
+    // ordinals of the users in the segment
+    public SegmentBitmap audience(final int segment) {
+        final int index = Arrays.binarySearch(segments, segment);
+        final SegmentBitmap own = index >= 0 ? audiences[index] : NOBODY;
+        return base == null ? own : base.audience(segment).andNot(changedUsers).or(own);
+    }
+
+    // ordinals of the users in the segment but not in the excluded one
+    public SegmentBitmap audience(final int segment, final int excludedSegment) {
+        return audience(segment).andNot(audience(excludedSegment));
+    }
+
+    // user IDs for a set of ordinals, in ordinal (load) order
+    public List<String> userIds(final SegmentBitmap users) {
+        final int[] ordinals = users.toArray();
+        return new AbstractList<>() {
+            @Override
+            public String get(final int index) {
+                return segmentIndex.userId(ordinals[index]);
+            }
+
+            @Override
+            public int size() {
+                return ordinals.length;
+            }
+        };
+    }
+
+    // users the overlay changed directly, plus the base users linked to a device whose segments it changed;
+    // a user linked to a device only in the overlay has a changed row of its own
+    private SegmentAudienceIndex overlay(final OverlaySegmentIndex overlay) {
+        final IntHashSet seen = new IntHashSet();
+        final IntList changed = new IntList();
+        final IntConsumer collect = user -> {
+            if (seen.add(user)) {
+                changed.add(user);
+            }
+        };
+        overlay.forEachChangedUser(collect);
+        overlay.forEachChangedDevice(device -> deviceUsers.forEachUser(device, collect));
+        final int[] users = changed.toArray();
+        Arrays.sort(users);
+        return new SegmentAudienceIndex(overlay, invert(overlay, users), null, this,
+                SegmentBitmap.ofSorted(users, users.length));
+    }
+
+    // segment to users for the given ascending users, or for every user when users is null
+    private static Inverted invert(final SegmentIndex segmentIndex, final int[] users) {
+        // (segment, user) pairs in user order, each user's segments de-duplicated
+        final IntList pairSegments = new IntList();
+        final IntList pairUsers = new IntList();
+        final IntHashSet seen = new IntHashSet();
+        final int userCount = users == null ? segmentIndex.userCount() : users.length;
+        for (int u = 0; u < userCount; u++) {
+            final int user = users == null ? u : users[u];
+            seen.clear();
+            for (int i = 0; i < segmentIndex.linkedDeviceCount(user); i++) {
+                final int device = segmentIndex.linkedDevice(user, i);
+                for (int j = 0; j < segmentIndex.segmentCount(device); j++) {
+                    final int segment = segmentIndex.segment(device, j);
+                    if (seen.add(segment)) {
+                        pairSegments.add(segment);
+                        pairUsers.add(user);
+                    }
+                }
+            }
+        }
+
+        // bucket the users by segment; users stay ascending within a bucket because pairs are in user order
+        final int[] segments = Arrays.stream(pairSegments.toArray()).sorted().distinct().toArray();
+        final int[] bucketOffsets = new int[segments.length + 1];
+        for (int i = 0; i < pairSegments.size(); i++) {
+            bucketOffsets[Arrays.binarySearch(segments, pairSegments.get(i)) + 1]++;
+        }
+        for (int i = 0; i < segments.length; i++) {
+            bucketOffsets[i + 1] += bucketOffsets[i];
+        }
+        final int[] bucketUsers = new int[pairUsers.size()];
+        final int[] fill = Arrays.copyOf(bucketOffsets, segments.length);
+        for (int i = 0; i < pairSegments.size(); i++) {
+            bucketUsers[fill[Arrays.binarySearch(segments, pairSegments.get(i))]++] = pairUsers.get(i);
+        }
+        final SegmentBitmap[] audiences = new SegmentBitmap[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            final int[] bucket = Arrays.copyOfRange(bucketUsers, bucketOffsets[i], bucketOffsets[i + 1]);
+            audiences[i] = SegmentBitmap.ofSorted(bucket, bucket.length);
+        }
+        return new Inverted(segments, audiences);
+    }
+
+    private record Inverted(int[] segments, SegmentBitmap[] audiences) {
+    }
+}
@@ -0,0 +1,28 @@
+package com.in.mem.cache.sys;
+
+import java.util.Arrays;
+
+/**
+ * Columnar result of a batch lookup: the segments of the i-th requested ID are
+ * {@code segments[offsets[i]]} up to {@code segments[offsets[i + 1]]}, in first-seen order. Unknown IDs
+ * have an empty range.
+ */
+public record SegmentBatch(int[] offsets, int[] segments) {
+
+    // number of IDs in the batch
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    public int count(final int index) {
+        return offsets[index + 1] - offsets[index];
+    }
+
+    public int segment(final int index, final int position) {
+        return segments[offsets[index] + position];
+    }
+
+    public int[] segmentsOf(final int index) {
+        return Arrays.copyOfRange(segments, offsets[index], offsets[index + 1]);
+    }
+}
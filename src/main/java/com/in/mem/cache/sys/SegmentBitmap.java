@@ -0,0 +1,455 @@
+package com.in.mem.cache.sys;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Immutable, compressed set of int IDs in the Roaring layout: IDs are grouped by their high 16 bits and
+ * each group's low 16 bits are held in whichever container is smallest, a sorted array (sparse groups),
+ * a 65536 bit bitmap (dense groups) or a list of runs (consecutive ranges, as segment IDs usually are).
+ * Membership is a binary search over the group keys plus a container probe. {@link #and}, {@link #or} and
+ * {@link #andNot} combine sets container by container. Iteration is in ascending ID order.
+ */
+public final class SegmentBitmap {
+
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+    private static final SegmentBitmap EMPTY = new SegmentBitmap(new char[0], new Container[0]);
+
+    // keys are the high 16 bits with the sign flipped, so unsigned key order is signed ID order
+    private final char[] keys;
+    private final Container[] containers;
+    private final int cardinality;
+
+    private SegmentBitmap(final char[] keys, final Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+        int cardinality = 0;
+        for (final Container container : containers) {
+            cardinality += container.cardinality();
+        }
+        this.cardinality = cardinality;
+    }
+
+    public static SegmentBitmap of(final int[] segmentIds) {
+        if (segmentIds.length == 0) {
+            return EMPTY;
+        }
+        final int[] sorted = segmentIds.clone();
+        Arrays.sort(sorted);
+        return ofSorted(sorted, sorted.length);
+    }
+
+    // the first count IDs of an ascending array, duplicates allowed
+    static SegmentBitmap ofSorted(final int[] sorted, final int count) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        final Builder builder = new Builder();
+        final char[] low = new char[Math.min(count, 1 << 16)];
+        int start = 0;
+        while (start < count) {
+            final char key = key(sorted[start]);
+            int size = 0;
+            int end = start;
+            while (end < count && key(sorted[end]) == key) {
+                final char value = (char) sorted[end];
+                if (size == 0 || low[size - 1] != value) {
+                    low[size++] = value;
+                }
+                end++;
+            }
+            builder.add(key, Container.ofSorted(low, size));
+            start = end;
+        }
+        return builder.build();
+    }
+
+    public boolean contains(final int segmentId) {
+        final int index = Arrays.binarySearch(keys, key(segmentId));
+        return index >= 0 && containers[index].contains((char) segmentId);
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    public SegmentBitmap and(final SegmentBitmap other) {
+        final Builder builder = new Builder();
+        int i = 0;
+        int j = 0;
+        while (i < keys.length && j < other.keys.length) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                builder.add(keys[i], containers[i].and(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return builder.build();
+    }
+
+    public SegmentBitmap or(final SegmentBitmap other) {
+        final Builder builder = new Builder();
+        int i = 0;
+        int j = 0;
+        while (i < keys.length || j < other.keys.length) {
+            if (j == other.keys.length || i < keys.length && keys[i] < other.keys[j]) {
+                builder.add(keys[i], containers[i]);
+                i++;
+            } else if (i == keys.length || keys[i] > other.keys[j]) {
+                builder.add(other.keys[j], other.containers[j]);
+                j++;
+            } else {
+                builder.add(keys[i], containers[i].or(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return builder.build();
+    }
+
+    // the IDs of this set that are not in the other
+    public SegmentBitmap andNot(final SegmentBitmap other) {
+        final Builder builder = new Builder();
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            while (j < other.keys.length && other.keys[j] < keys[i]) {
+                j++;
+            }
+            if (j < other.keys.length && other.keys[j] == keys[i]) {
+                builder.add(keys[i], containers[i].andNot(other.containers[j]));
+            } else {
+                builder.add(keys[i], containers[i]);
+            }
+        }
+        return builder.build();
+    }
+
+    public void forEach(final IntConsumer action) {
+        for (int i = 0; i < keys.length; i++) {
+            final int high = (keys[i] ^ 0x8000) << 16;
+            containers[i].forEach(low -> action.accept(high | low));
+        }
+    }
+
+    public int[] toArray() {
+        final int[] values = new int[cardinality];
+        final int[] size = new int[1];
+        forEach(value -> values[size[0]++] = value);
+        return values;
+    }
+
+    long heapBytes() {
+        long bytes = 2 * IdDictionary.ARRAY_HEADER_BYTES + Character.BYTES * (long) keys.length
+                + Integer.BYTES * (long) containers.length;
+        for (final Container container : containers) {
+            bytes += container.heapBytes();
+        }
+        return bytes;
+    }
+
+    private static char key(final int value) {
+        return (char) ((value ^ Integer.MIN_VALUE) >>> 16);
+    }
+
+    // collects non-empty containers in ascending key order
+    private static final class Builder {
+
+        private char[] keys = new char[4];
+        private Container[] containers = new Container[4];
+        private int size;
+
+        private void add(final char key, final Container container) {
+            if (container.cardinality() == 0) {
+                return;
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size << 1);
+                containers = Arrays.copyOf(containers, size << 1);
+            }
+            keys[size] = key;
+            containers[size] = container;
+            size++;
+        }
+
+        private SegmentBitmap build() {
+            return size == 0 ? EMPTY : new SegmentBitmap(Arrays.copyOf(keys, size), Arrays.copyOf(containers, size));
+        }
+    }
+
+    // the low 16 bits of one group; binary operations work on bitmap words unless an array side is cheaper
+    private abstract static sealed class Container permits ArrayContainer, BitmapContainer, RunContainer {
+
+        abstract int cardinality();
+
+        abstract boolean contains(char value);
+
+        abstract void forEach(IntConsumer action);
+
+        abstract void orInto(long[] words);
+
+        abstract long heapBytes();
+
+        Container and(final Container other) {
+            if (this instanceof ArrayContainer array) {
+                return array.filter(other, true);
+            }
+            if (other instanceof ArrayContainer array) {
+                return array.filter(this, true);
+            }
+            final long[] words = words();
+            final long[] otherWords = other.words();
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                words[i] &= otherWords[i];
+            }
+            return ofWords(words);
+        }
+
+        Container or(final Container other) {
+            final long[] words = words();
+            other.orInto(words);
+            return ofWords(words);
+        }
+
+        Container andNot(final Container other) {
+            if (this instanceof ArrayContainer array) {
+                return array.filter(other, false);
+            }
+            final long[] words = words();
+            final long[] otherWords = other.words();
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                words[i] &= ~otherWords[i];
+            }
+            return ofWords(words);
+        }
+
+        final long[] words() {
+            final long[] words = new long[BITMAP_WORDS];
+            orInto(words);
+            return words;
+        }
+
+        // smallest of the three representations for ascending distinct values
+        static Container ofSorted(final char[] values, final int size) {
+            int runs = size == 0 ? 0 : 1;
+            for (int i = 1; i < size; i++) {
+                if (values[i] != values[i - 1] + 1) {
+                    runs++;
+                }
+            }
+            if (runs * 2 * Character.BYTES < Math.min(size * Character.BYTES, BITMAP_WORDS * Long.BYTES)) {
+                return RunContainer.ofSorted(values, size, runs);
+            }
+            if (size <= ARRAY_MAX) {
+                return new ArrayContainer(Arrays.copyOf(values, size));
+            }
+            final long[] words = new long[BITMAP_WORDS];
+            for (int i = 0; i < size; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return new BitmapContainer(words, size);
+        }
+
+        // smallest of the three representations for a bitmap
+        static Container ofWords(final long[] words) {
+            int cardinality = 0;
+            int runs = 0;
+            long previous = 0;
+            for (final long word : words) {
+                cardinality += Long.bitCount(word);
+                // a run starts at every set bit whose lower neighbour is clear
+                runs += Long.bitCount(word & ~((word << 1) | (previous >>> 63)));
+                previous = word;
+            }
+            if (cardinality > ARRAY_MAX && runs * 2 * Character.BYTES >= BITMAP_WORDS * Long.BYTES) {
+                return new BitmapContainer(words, cardinality);
+            }
+            final char[] values = new char[cardinality];
+            int size = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    values[size++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return ofSorted(values, size);
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+
+        private final char[] values;
+
+        private ArrayContainer(final char[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int cardinality() {
+            return values.length;
+        }
+
+        @Override
+        boolean contains(final char value) {
+            return Arrays.binarySearch(values, value) >= 0;
+        }
+
+        @Override
+        void forEach(final IntConsumer action) {
+            for (final char value : values) {
+                action.accept(value);
+            }
+        }
+
+        @Override
+        void orInto(final long[] words) {
+            for (final char value : values) {
+                words[value >>> 6] |= 1L << value;
+            }
+        }
+
+        @Override
+        long heapBytes() {
+            return IdDictionary.ARRAY_HEADER_BYTES + Character.BYTES * (long) values.length;
+        }
+
+        // the values that are (keep == true) or are not in the other container
+        private Container filter(final Container other, final boolean keep) {
+            final char[] kept = new char[values.length];
+            int size = 0;
+            for (final char value : values) {
+                if (other.contains(value) == keep) {
+                    kept[size++] = value;
+                }
+            }
+            return ofSorted(kept, size);
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+
+        private final long[] words;
+        private final int cardinality;
+
+        private BitmapContainer(final long[] words, final int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(final char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        void forEach(final IntConsumer action) {
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    action.accept((i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        void orInto(final long[] target) {
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                target[i] |= words[i];
+            }
+        }
+
+        @Override
+        long heapBytes() {
+            return IdDictionary.ARRAY_HEADER_BYTES + Long.BYTES * (long) BITMAP_WORDS;
+        }
+    }
+
+    private static final class RunContainer extends Container {
+
+        // run i covers starts[i] to starts[i] + lengths[i], inclusive
+        private final char[] starts;
+        private final char[] lengths;
+        private final int cardinality;
+
+        private RunContainer(final char[] starts, final char[] lengths, final int cardinality) {
+            this.starts = starts;
+            this.lengths = lengths;
+            this.cardinality = cardinality;
+        }
+
+        private static RunContainer ofSorted(final char[] values, final int size, final int runs) {
+            final char[] starts = new char[runs];
+            final char[] lengths = new char[runs];
+            int run = -1;
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || values[i] != values[i - 1] + 1) {
+                    starts[++run] = values[i];
+                } else {
+                    lengths[run]++;
+                }
+            }
+            return new RunContainer(starts, lengths, size);
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(final char value) {
+            int index = Arrays.binarySearch(starts, value);
+            if (index >= 0) {
+                return true;
+            }
+            index = -index - 2;
+            return index >= 0 && value - starts[index] <= lengths[index];
+        }
+
+        @Override
+        void forEach(final IntConsumer action) {
+            for (int i = 0; i < starts.length; i++) {
+                for (int value = starts[i]; value <= starts[i] + lengths[i]; value++) {
+                    action.accept(value);
+                }
+            }
+        }
+
+        @Override
+        void orInto(final long[] words) {
+            for (int i = 0; i < starts.length; i++) {
+                final int end = starts[i] + lengths[i];
+                for (int value = starts[i]; value <= end; ) {
+                    // whole words at a time once aligned
+                    if ((value & 63) == 0 && end - value >= 63) {
+                        words[value >>> 6] = -1L;
+                        value += 64;
+                    } else {
+                        words[value >>> 6] |= 1L << value;
+                        value++;
+                    }
+                }
+            }
+        }
+
+        @Override
+        long heapBytes() {
+            return 2 * IdDictionary.ARRAY_HEADER_BYTES + 2L * Character.BYTES * starts.length;
+        }
+    }
+}
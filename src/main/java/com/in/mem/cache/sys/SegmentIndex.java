@@ -0,0 +1,39 @@
+package com.in.mem.cache.sys;
+
+/**
+ * Read-only, ordinal based view of the cache data. User and device IDs are resolved to dense
+ * ordinals once, after which linked devices and their segments are walked by index without any
+ * further hashing or allocation. Ordinals are only meaningful for the index that issued them.
+ */
+public interface SegmentIndex {
+
+    public int userCount();
+
+    public int deviceCount();
+
+    // ordinal of the user, or -1 when the user is unknown
+    public int userOrdinal(final String userId);
+
+    // ordinal of the device, or -1 when the device is unknown
+    public int deviceOrdinal(final String deviceId);
+
+    public String userId(final int user);
+
+    public String deviceId(final int device);
+
+    public int linkedDeviceCount(final int user);
+
+    public int linkedDevice(final int user, final int index);
+
+    public int segmentCount(final int device);
+
+    public int segment(final int device, final int index);
+
+    public int[] restrictedSegmentIds();
+
+    public SegmentBitmap restrictedBitmap();
+
+    // reports the approximate heap and off-heap bytes held by each structure of the index
+    public default void reportFootprint(final MetricsRecorder recorder) {
+    }
+}
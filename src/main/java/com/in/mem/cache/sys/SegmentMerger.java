@@ -0,0 +1,82 @@
+package com.in.mem.cache.sys;
+
+/**
+ * Single pass merge of a user's per-device segment lists. Segments are emitted in first-seen
+ * order, duplicates are dropped through an int set and restricted segments through a precomputed
+ * bitmap, and the merge stops as soon as the limit has been reached. Not thread safe; instances are
+ * scratch state that can be reused across lookups.
+ */
+final class SegmentMerger {
+
+    private final IntHashSet seen = new IntHashSet();
+    private SegmentBitmap restricted;
+    private int[] out;
+    private int limit;
+    private int size;
+    private int offered;
+    private int filtered;
+
+    // restricted may be null when restricted segments are allowed
+    void start(final int[] out, final int limit, final SegmentBitmap restricted) {
+        this.out = out;
+        this.limit = Math.min(limit, out.length);
+        this.restricted = restricted;
+        this.size = 0;
+        this.offered = 0;
+        this.filtered = 0;
+        seen.clear();
+    }
+
+    // false once the limit has been reached and the caller can stop feeding segments
+    boolean add(final int segment) {
+        if (size >= limit) {
+            return false;
+        }
+        offered++;
+        if (restricted != null && restricted.contains(segment)) {
+            filtered++;
+        } else if (seen.add(segment)) {
+            out[size++] = segment;
+        }
+        return size < limit;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // segments fed to the merge before it stopped, i.e. before de-duplication
+    int offered() {
+        return offered;
+    }
+
+    // segments dropped by the restricted filter
+    int filtered() {
+        return filtered;
+    }
+
+    // merges all devices linked to the user, reading straight from the index arrays
+    int mergeUser(final SegmentIndex segmentIndex, final int user) {
+        final int deviceCount = segmentIndex.linkedDeviceCount(user);
+        for (int i = 0; i < deviceCount; i++) {
+            final int device = segmentIndex.linkedDevice(user, i);
+            final int segmentCount = segmentIndex.segmentCount(device);
+            for (int j = 0; j < segmentCount; j++) {
+                if (!add(segmentIndex.segment(device, j))) {
+                    return size;
+                }
+            }
+        }
+        return size;
+    }
+
+    // upper bound on the number of segments a user can produce, used to size result buffers
+    static int segmentCapacity(final SegmentIndex segmentIndex, final int user) {
+        final int deviceCount = segmentIndex.linkedDeviceCount(user);
+        int total = 0;
+        for (int i = 0; i < deviceCount; i++) {
+            total += segmentIndex.segmentCount(segmentIndex.linkedDevice(user, i));
+        }
+        return total;
+    }
+}
@@ -0,0 +1,129 @@
+package com.in.mem.cache.sys;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Binary framing spoken by {@link SegmentServer}, and through it {@link ShardServer}, and by
+ * {@link ShardedTargetingClient}. Every message is an {@code int} length followed by that many bytes, all
+ * big-endian. Pipelined requests on a connection are answered in order.
+ * <pre>
+ * request:  opcode(byte) flags(byte) segmentLimit(int) count(int) { length(unsigned short) UTF-8 id }*count
+ * response: status(byte) = OK     count(int) segmentCount(int)*count segment(int)*
+ *           status(byte) = ERROR  length(unsigned short) UTF-8 message
+ * </pre>
+ * Responses carry one segment count per requested ID, in request order, so they decode straight into a
+ * {@link SegmentBatch}. Lengths and counts are checked against the frame before anything is allocated.
+ */
+final class SegmentProtocol {
+
+    static final int MAX_FRAME_BYTES = 16 << 20;
+    static final byte OP_LOOKUP = 1;
+    static final byte FLAG_ALLOW_RESTRICTED = 1;
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    private static final int MAX_ID_BYTES = 0xFFFF;
+
+    private SegmentProtocol() {
+    }
+
+    static byte[] encodeLookup(final List<String> ids, final boolean allowRestrictedSegments,
+                               final int segmentLimit) throws ProtocolException {
+        final byte[][] encoded = new byte[ids.size()][];
+        long size = 10;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = ids.get(i).getBytes(StandardCharsets.UTF_8);
+            if (encoded[i].length > MAX_ID_BYTES) {
+                throw new ProtocolException("ID longer than " + MAX_ID_BYTES + " bytes");
+            }
+            size += 2 + encoded[i].length;
+        }
+        checkFrameSize(size);
+        final ByteBuffer frame = ByteBuffer.allocate((int) size)
+                .put(OP_LOOKUP)
+                .put(allowRestrictedSegments ? FLAG_ALLOW_RESTRICTED : 0)
+                .putInt(segmentLimit)
+                .putInt(encoded.length);
+        for (final byte[] id : encoded) {
+            frame.putShort((short) id.length).put(id);
+        }
+        return frame.array();
+    }
+
+    static byte[] encodeError(final String message) {
+        byte[] bytes = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_ID_BYTES) {
+            bytes = "error message too long".getBytes(StandardCharsets.UTF_8);
+        }
+        return ByteBuffer.allocate(3 + bytes.length).put(STATUS_ERROR).putShort((short) bytes.length).put(bytes)
+                .array();
+    }
+
+    // a shard that answered with an error fails the call with that message
+    static SegmentBatch decodeBatch(final ByteBuffer frame, final int expectedCount) throws IOException {
+        try {
+            final byte status = frame.get();
+            if (status == STATUS_ERROR) {
+                final byte[] message = new byte[Short.toUnsignedInt(frame.getShort())];
+                frame.get(message);
+                throw new ShardErrorException("shard error: " + new String(message, StandardCharsets.UTF_8));
+            }
+            if (status != STATUS_OK) {
+                throw new ProtocolException("unknown status " + status);
+            }
+            final int count = frame.getInt();
+            if (count != expectedCount || count > frame.remaining() / 4) {
+                throw new ProtocolException("expected " + expectedCount + " results, got " + count);
+            }
+            final int[] offsets = new int[count + 1];
+            for (int i = 0; i < count; i++) {
+                final int segments = frame.getInt();
+                if (segments < 0 || offsets[i] + (long) segments > MAX_FRAME_BYTES / 4) {
+                    throw new ProtocolException("invalid segment count " + segments);
+                }
+                offsets[i + 1] = offsets[i] + segments;
+            }
+            if (offsets[count] * 4L != frame.remaining()) {
+                throw new ProtocolException("segment counts do not match the frame");
+            }
+            final int[] segments = new int[offsets[count]];
+            frame.asIntBuffer().get(segments);
+            return new SegmentBatch(offsets, segments);
+        } catch (final BufferUnderflowException e) {
+            throw new ProtocolException("truncated response");
+        }
+    }
+
+    // the frame body, or null when the stream ended cleanly between frames
+    static ByteBuffer readFrame(final DataInputStream in) throws IOException {
+        final int length;
+        try {
+            length = in.readInt();
+        } catch (final EOFException e) {
+            return null;
+        }
+        checkFrameSize(length);
+        final byte[] frame = new byte[length];
+        in.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    static void writeFrame(final DataOutputStream out, final byte[] frame) throws IOException {
+        out.writeInt(frame.length);
+        out.write(frame);
+        out.flush();
+    }
+
+    private static void checkFrameSize(final long size) throws ProtocolException {
+        if (size < 0 || size > MAX_FRAME_BYTES) {
+            throw new ProtocolException("frame of " + size + " bytes exceeds " + MAX_FRAME_BYTES);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking lookup server speaking {@link SegmentProtocol}. Connections are spread over a few event loops,
+ * each a platform thread with its own selector. Every read is drained of all complete request frames and
+ * their responses are encoded straight into the connection's pooled direct write buffer: segments go from
+ * the index through a reused int scratch array into the buffer, so apart from one String per requested ID
+ * nothing is allocated per lookup. Pipelined responses leave in request order, in as few writes as the
+ * socket allows. Once a connection has 256 KiB of responses queued its remaining frames wait in the read
+ * buffer and it is not read again until the responses have drained, so a client that pipelines without
+ * reading holds at most that much, plus one response, on the server.
+ */
+public final class SegmentServer implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 << 10;
+    private static final int MAX_POOLED_BUFFERS = 256;
+    private static final int MAX_SEGMENTS_PER_ID = SegmentProtocol.MAX_FRAME_BYTES / Integer.BYTES;
+    private static final int MAX_QUEUED_BYTES = 4 * BUFFER_SIZE;
+
+    private final TargetingSystem targetingSystem;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final BufferPool buffers = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    // only touched by the first event loop, which accepts
+    private int nextLoop;
+
+    private SegmentServer(final TargetingSystem targetingSystem, final ServerSocketChannel serverChannel,
+                          final int eventLoops) throws IOException {
+        this.targetingSystem = targetingSystem;
+        this.serverChannel = serverChannel;
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop(Selector.open());
+        }
+    }
+
+    // binds the address (port 0 picks a free port) and starts the event loops
+    public static SegmentServer start(final TargetingSystem targetingSystem, final InetSocketAddress address,
+                                      final int eventLoops) throws IOException {
+        if (eventLoops <= 0) {
+            throw new IllegalArgumentException("eventLoops must be positive: " + eventLoops);
+        }
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(address, 128);
+            serverChannel.configureBlocking(false);
+            final SegmentServer server = new SegmentServer(targetingSystem, serverChannel, eventLoops);
+            serverChannel.register(server.loops[0].selector, SelectionKey.OP_ACCEPT);
+            final Thread.Builder threads = Thread.ofPlatform().name("segment-server-", 0).daemon();
+            for (final EventLoop loop : server.loops) {
+                loop.thread = threads.start(loop);
+            }
+            return server;
+        } catch (final IOException | RuntimeException e) {
+            serverChannel.close();
+            throw e;
+        }
+    }
+
+    public InetSocketAddress address() {
+        return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+    }
+
+    // stops accepting, closes every connection and waits for the event loops to finish
+    @Override
+    public void close() throws IOException {
+        for (final EventLoop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+        try {
+            for (final EventLoop loop : loops) {
+                loop.thread.join();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            serverChannel.close();
+        }
+    }
+
+    // hands the pending connections to the event loops in turn; a failed accept is reported and dropped so
+    // that the first event loop keeps serving its own connections
+    private void accept() {
+        while (true) {
+            final SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (final IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (final IOException e) {
+                e.printStackTrace();
+                try {
+                    channel.close();
+                } catch (final IOException closeError) {
+                    // already unusable
+                }
+                continue;
+            }
+            final EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.registrations.add(channel);
+            loop.selector.wakeup();
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+        private Thread thread;
+
+        private EventLoop(final Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = registrations.poll()) != null) {
+                        register(channel);
+                    }
+                    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid()) {
+                            handle(key);
+                        }
+                    }
+                }
+            } catch (final IOException | ClosedSelectorException e) {
+                e.printStackTrace();
+            } finally {
+                for (final SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection connection) {
+                        connection.close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void register(final SocketChannel channel) {
+            try {
+                final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(channel, key));
+            } catch (final ClosedChannelException e) {
+                // the peer went away before it was registered
+            }
+        }
+
+        private void handle(final SelectionKey key) {
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            final Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isWritable() && connection.flush() && connection.paused) {
+                    connection.respond();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.read();
+                }
+            } catch (final IOException e) {
+                connection.close();
+            }
+        }
+    }
+
+    // per connection state, only ever touched by its event loop; both buffers are kept in fill mode
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer in = buffers.acquire(BUFFER_SIZE);
+        private ByteBuffer out = buffers.acquire(BUFFER_SIZE);
+        private int[] segments = new int[64];
+        private byte[] idBytes = new byte[64];
+        // set after a malformed frame: the stream cannot be trusted, so close once the error is sent
+        private boolean closing;
+        // set while complete frames wait in the read buffer because enough responses are queued
+        private boolean paused;
+        private boolean closed;
+
+        private Connection(final SocketChannel channel, final SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        private void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            respond();
+        }
+
+        // answers the buffered frames and writes what the socket takes, again while the socket keeps up with
+        // the responses and frames are left
+        private void respond() throws IOException {
+            do {
+                in.flip();
+                respondToFrames();
+                in.compact();
+                if (in.position() == 0 && in.capacity() > BUFFER_SIZE) {
+                    buffers.release(in);
+                    in = buffers.acquire(BUFFER_SIZE);
+                }
+            } while (flush() && paused);
+        }
+
+        // answers complete frames in the read buffer, which is in drain mode here, until MAX_QUEUED_BYTES of
+        // responses are queued
+        private void respondToFrames() {
+            paused = false;
+            while (!closing && in.remaining() >= Integer.BYTES) {
+                if (out.position() >= MAX_QUEUED_BYTES) {
+                    paused = true;
+                    return;
+                }
+                final int length = in.getInt(in.position());
+                if (length < 0 || length > SegmentProtocol.MAX_FRAME_BYTES) {
+                    writeError("frame of " + length + " bytes exceeds " + SegmentProtocol.MAX_FRAME_BYTES);
+                    closing = true;
+                    return;
+                }
+                if (in.remaining() < Integer.BYTES + length) {
+                    if (in.capacity() < Integer.BYTES + length) {
+                        final ByteBuffer grown = buffers.acquire(Integer.BYTES + length);
+                        grown.put(in).flip();
+                        buffers.release(in);
+                        in = grown;
+                    }
+                    return;
+                }
+                final int end = in.position() + Integer.BYTES + length;
+                final int limit = in.limit();
+                in.position(in.position() + Integer.BYTES).limit(end);
+                respondToFrame();
+                in.limit(limit).position(end);
+            }
+        }
+
+        // one request frame, between the read buffer's position and limit
+        private void respondToFrame() {
+            final int frameStart = out.position();
+            try {
+                final byte opcode = in.get();
+                if (opcode != SegmentProtocol.OP_LOOKUP) {
+                    throw new ProtocolException("unknown opcode " + opcode);
+                }
+                final boolean allowRestrictedSegments = (in.get() & SegmentProtocol.FLAG_ALLOW_RESTRICTED) != 0;
+                final int segmentLimit = in.getInt();
+                final int count = in.getInt();
+                if (count < 0 || count > in.remaining() / 2) {
+                    throw new ProtocolException("invalid ID count " + count);
+                }
+                reserve(Integer.BYTES + 5 + Integer.BYTES * count);
+                out.putInt(0).put(SegmentProtocol.STATUS_OK).putInt(count);
+                final int counts = out.position();
+                out.position(counts + Integer.BYTES * count);
+                for (int i = 0; i < count; i++) {
+                    final int segmentCount = lookup(readId(), allowRestrictedSegments, segmentLimit);
+                    reserve(Integer.BYTES * segmentCount);
+                    for (int j = 0; j < segmentCount; j++) {
+                        out.putInt(segments[j]);
+                    }
+                    out.putInt(counts + Integer.BYTES * i, segmentCount);
+                }
+                final int length = out.position() - frameStart - Integer.BYTES;
+                if (length > SegmentProtocol.MAX_FRAME_BYTES) {
+                    out.position(frameStart);
+                    writeError("response of " + length + " bytes exceeds " + SegmentProtocol.MAX_FRAME_BYTES);
+                    return;
+                }
+                out.putInt(frameStart, length);
+            } catch (final ProtocolException | BufferUnderflowException e) {
+                out.position(frameStart);
+                writeError(e instanceof ProtocolException ? e.getMessage() : "truncated request");
+                closing = true;
+            } catch (final RuntimeException e) {
+                out.position(frameStart);
+                writeError(String.valueOf(e.getMessage()));
+            }
+        }
+
+        private String readId() throws ProtocolException {
+            final int length = Short.toUnsignedInt(in.getShort());
+            if (length > in.remaining()) {
+                throw new ProtocolException("ID overruns the frame");
+            }
+            if (idBytes.length < length) {
+                idBytes = new byte[Math.max(length, idBytes.length << 1)];
+            }
+            in.get(idBytes, 0, length);
+            return new String(idBytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        // merges into the scratch array, growing it while the merge fills it and the limit allows more
+        private int lookup(final String id, final boolean allowRestrictedSegments, final int segmentLimit) {
+            int count;
+            while ((count = targetingSystem.lookupUserSegments(id, allowRestrictedSegments, segmentLimit, segments))
+                    == segments.length && segments.length < Math.min(segmentLimit, MAX_SEGMENTS_PER_ID)) {
+                segments = new int[(int) Math.min((long) segments.length << 1, MAX_SEGMENTS_PER_ID)];
+            }
+            return count;
+        }
+
+        private void writeError(final String message) {
+            final byte[] frame = SegmentProtocol.encodeError(message);
+            reserve(Integer.BYTES + frame.length);
+            out.putInt(frame.length).put(frame);
+        }
+
+        private void reserve(final int bytes) {
+            if (out.remaining() < bytes) {
+                out = buffers.grow(out, out.position() + bytes);
+            }
+        }
+
+        // writes what the socket takes and tells whether every response went; reading pauses while responses
+        // are still queued
+        private boolean flush() throws IOException {
+            if (closed) {
+                return false;
+            }
+            out.flip();
+            channel.write(out);
+            out.compact();
+            if (out.position() > 0) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+            if (closing) {
+                close();
+                return false;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (out.capacity() > BUFFER_SIZE) {
+                buffers.release(out);
+                out = buffers.acquire(BUFFER_SIZE);
+            }
+            return true;
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                // already unusable
+            }
+            buffers.release(in);
+            buffers.release(out);
+        }
+    }
+}
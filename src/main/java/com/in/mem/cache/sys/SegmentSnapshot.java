@@ -0,0 +1,275 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+import static com.in.mem.cache.sys.OffHeapSegmentIndex.INT;
+import static com.in.mem.cache.sys.OffHeapSegmentIndex.LONG;
+
+/**
+ * Versioned, checksummed binary image of a {@link SegmentIndex}. The image is a fixed header followed by
+ * 8 byte aligned little endian sections: restricted segments, the two adjacency arrays, and for users
+ * and devices a string dictionary (UTF-8 bytes, offsets and an open addressing hash table). Besides the
+ * fingerprint of the text files it was built from, the header records how far into the delta feed the
+ * image goes, so a compacted image only needs the feed replayed from there. The same image is used for
+ * snapshot files and for off-heap copies in an {@link Arena}. Opening a snapshot maps it read-only and
+ * validates the header only; the payload checksum is checked on demand with {@link #verify(Path)}.
+ */
+public final class SegmentSnapshot {
+
+    static final int MAGIC = 0x53454758;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 128;
+
+    // header field offsets
+    static final int MAGIC_OFFSET = 0;
+    static final int VERSION_OFFSET = 4;
+    static final int USER_COUNT_OFFSET = 8;
+    static final int DEVICE_COUNT_OFFSET = 12;
+    static final int RESTRICTED_COUNT_OFFSET = 16;
+    static final int LINK_COUNT_OFFSET = 20;
+    static final int SEGMENT_COUNT_OFFSET = 24;
+    static final int USER_SLOTS_OFFSET = 28;
+    static final int DEVICE_SLOTS_OFFSET = 32;
+    static final int USER_ID_BYTES_OFFSET = 40;
+    static final int DEVICE_ID_BYTES_OFFSET = 48;
+    static final int FINGERPRINT_OFFSET = 56;
+    static final int PAYLOAD_LENGTH_OFFSET = 64;
+    static final int PAYLOAD_CRC_OFFSET = 72;
+    static final int FEED_POSITION_OFFSET = 80;
+    static final int HEADER_CRC_OFFSET = 88;
+
+    private static final int CRC_BUFFER_SIZE = 1 << 16;
+
+    private SegmentSnapshot() {
+    }
+
+    // cheap identity of the text files a snapshot was built from: sizes and modification times
+    public static long fingerprint(final Path... sources) throws IOException {
+        long fingerprint = 17;
+        for (final Path source : sources) {
+            fingerprint = fingerprint * 31 + Files.size(source);
+            fingerprint = fingerprint * 31 + Files.getLastModifiedTime(source).toMillis();
+        }
+        return fingerprint;
+    }
+
+    public static void write(final SegmentIndex segmentIndex, final Path file, final long fingerprint)
+            throws IOException {
+        write(segmentIndex, file, fingerprint, 0);
+    }
+
+    // an image of the text files plus the delta feed lines before feedPosition
+    public static void write(final SegmentIndex segmentIndex, final Path file, final long fingerprint,
+                             final long feedPosition) throws IOException {
+        final Encoder encoder = new Encoder(segmentIndex, fingerprint, feedPosition);
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             Arena arena = Arena.ofConfined()) {
+            final MemorySegment target = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    encoder.layout.byteSize(), arena);
+            encoder.encode(target);
+            target.force();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // maps the snapshot and checks its header; fails when it was built from other source files
+    public static SegmentIndex open(final Path file, final long expectedFingerprint) throws IOException {
+        final OffHeapSegmentIndex index = open(file, Arena.ofAuto());
+        if (index.layout().fingerprint() != expectedFingerprint) {
+            throw new IOException("Snapshot " + file + " is stale for the current source files");
+        }
+        return index;
+    }
+
+    // maps the snapshot for the lifetime of the arena; the automatic arena unmaps it once unreachable
+    static OffHeapSegmentIndex open(final Path file, final Arena arena) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+            final MemorySegment mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            return new OffHeapSegmentIndex(mapped, SnapshotLayout.of(mapped));
+        }
+    }
+
+    // copies the index into native memory owned by the arena
+    static OffHeapSegmentIndex copyOf(final SegmentIndex segmentIndex, final Arena arena) {
+        final Encoder encoder = new Encoder(segmentIndex, 0, 0);
+        final MemorySegment target = arena.allocate(encoder.layout.byteSize(), Long.BYTES);
+        return new OffHeapSegmentIndex(target, encoder.encode(target));
+    }
+
+    // offset in the delta feed up to which the deltas are part of the image; 0 for anything but a snapshot
+    static long feedPosition(final SegmentIndex segmentIndex) {
+        return segmentIndex instanceof OffHeapSegmentIndex snapshot
+                ? header(snapshot.image()).getLong(FEED_POSITION_OFFSET) : 0;
+    }
+
+    public static void verify(final Path file) throws IOException {
+        try (Arena arena = Arena.ofConfined()) {
+            final OffHeapSegmentIndex index = open(file, arena);
+            if (payloadCrc(index.image(), index.layout().payloadLength()) != index.layout().payloadCrc()) {
+                throw new IOException("Snapshot " + file + " payload checksum mismatch");
+            }
+        }
+    }
+
+    static int headerCrc(final ByteBuffer header) {
+        final CRC32C crc = new CRC32C();
+        crc.update(header.duplicate().position(0).limit(HEADER_CRC_OFFSET));
+        return (int) crc.getValue();
+    }
+
+    static int slotsFor(final int count) {
+        return Integer.highestOneBit(Math.max(count, 4) * 2 - 1) << 1;
+    }
+
+    // copies through a heap buffer: CRC32C cannot read buffers backed by a shared arena
+    private static int payloadCrc(final MemorySegment image, final long payloadLength) {
+        final CRC32C crc = new CRC32C();
+        final byte[] buffer = new byte[CRC_BUFFER_SIZE];
+        for (long offset = 0; offset < payloadLength; offset += buffer.length) {
+            final int length = (int) Math.min(buffer.length, payloadLength - offset);
+            MemorySegment.copy(image, ValueLayout.JAVA_BYTE, HEADER_SIZE + offset, buffer, 0, length);
+            crc.update(buffer, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    static ByteBuffer header(final MemorySegment image) {
+        return ByteBuffer.wrap(image.asSlice(0, HEADER_SIZE).toArray(ValueLayout.JAVA_BYTE))
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // lays a SegmentIndex out into a pre-sized image, header last so the payload checksum can be included
+    private static final class Encoder {
+
+        private final SegmentIndex segmentIndex;
+        private final byte[][] userIds;
+        private final byte[][] deviceIds;
+        private final int[] userHashes;
+        private final int[] deviceHashes;
+        private final long feedPosition;
+        private final SnapshotLayout layout;
+
+        private Encoder(final SegmentIndex segmentIndex, final long fingerprint, final long feedPosition) {
+            this.segmentIndex = segmentIndex;
+            this.feedPosition = feedPosition;
+            this.userIds = new byte[segmentIndex.userCount()][];
+            this.deviceIds = new byte[segmentIndex.deviceCount()][];
+            this.userHashes = new int[userIds.length];
+            this.deviceHashes = new int[deviceIds.length];
+            long userIdBytes = 0;
+            long deviceIdBytes = 0;
+            int links = 0;
+            int segments = 0;
+            for (int user = 0; user < userIds.length; user++) {
+                final String userId = segmentIndex.userId(user);
+                userIds[user] = userId.getBytes(StandardCharsets.UTF_8);
+                userHashes[user] = userId.hashCode();
+                userIdBytes += userIds[user].length;
+                links += segmentIndex.linkedDeviceCount(user);
+            }
+            for (int device = 0; device < deviceIds.length; device++) {
+                final String deviceId = segmentIndex.deviceId(device);
+                deviceIds[device] = deviceId.getBytes(StandardCharsets.UTF_8);
+                deviceHashes[device] = deviceId.hashCode();
+                deviceIdBytes += deviceIds[device].length;
+                segments += segmentIndex.segmentCount(device);
+            }
+            this.layout = SnapshotLayout.compute(userIds.length, deviceIds.length,
+                    segmentIndex.restrictedSegmentIds().length, links, segments, userIdBytes, deviceIdBytes,
+                    fingerprint, 0);
+        }
+
+        // returns the layout of the written image, including its payload checksum
+        private SnapshotLayout encode(final MemorySegment target) {
+            final int[] restricted = segmentIndex.restrictedSegmentIds();
+            for (int i = 0; i < restricted.length; i++) {
+                target.set(INT, layout.restrictedOffset() + (long) i * Integer.BYTES, restricted[i]);
+            }
+
+            long links = 0;
+            target.set(INT, layout.userDeviceOffsetsOffset(), 0);
+            for (int user = 0; user < userIds.length; user++) {
+                final int deviceCount = segmentIndex.linkedDeviceCount(user);
+                for (int i = 0; i < deviceCount; i++) {
+                    target.set(INT, layout.userDevicesOffset() + links++ * Integer.BYTES,
+                            segmentIndex.linkedDevice(user, i));
+                }
+                target.set(INT, layout.userDeviceOffsetsOffset() + (user + 1L) * Integer.BYTES, (int) links);
+            }
+
+            long segments = 0;
+            target.set(INT, layout.deviceSegmentOffsetsOffset(), 0);
+            for (int device = 0; device < deviceIds.length; device++) {
+                final int segmentCount = segmentIndex.segmentCount(device);
+                for (int i = 0; i < segmentCount; i++) {
+                    target.set(INT, layout.deviceSegmentsOffset() + segments++ * Integer.BYTES,
+                            segmentIndex.segment(device, i));
+                }
+                target.set(INT, layout.deviceSegmentOffsetsOffset() + (device + 1L) * Integer.BYTES,
+                        (int) segments);
+            }
+
+            encodeDictionary(target, userIds, userHashes, layout.userIdOffsetsOffset(), layout.userSlotsOffset(),
+                    layout.userSlots(), layout.userIdBytesOffset());
+            encodeDictionary(target, deviceIds, deviceHashes, layout.deviceIdOffsetsOffset(), layout.deviceSlotsOffset(),
+                    layout.deviceSlots(), layout.deviceIdBytesOffset());
+
+            target.set(INT, MAGIC_OFFSET, MAGIC);
+            target.set(INT, VERSION_OFFSET, VERSION);
+            target.set(INT, USER_COUNT_OFFSET, layout.userCount());
+            target.set(INT, DEVICE_COUNT_OFFSET, layout.deviceCount());
+            target.set(INT, RESTRICTED_COUNT_OFFSET, layout.restrictedCount());
+            target.set(INT, LINK_COUNT_OFFSET, layout.linkCount());
+            target.set(INT, SEGMENT_COUNT_OFFSET, layout.segmentCount());
+            target.set(INT, USER_SLOTS_OFFSET, layout.userSlots());
+            target.set(INT, DEVICE_SLOTS_OFFSET, layout.deviceSlots());
+            target.set(LONG, USER_ID_BYTES_OFFSET, layout.userIdBytes());
+            target.set(LONG, DEVICE_ID_BYTES_OFFSET, layout.deviceIdBytes());
+            target.set(LONG, FINGERPRINT_OFFSET, layout.fingerprint());
+            target.set(LONG, PAYLOAD_LENGTH_OFFSET, layout.payloadLength());
+            target.set(LONG, FEED_POSITION_OFFSET, feedPosition);
+            final int payloadCrc = payloadCrc(target, layout.payloadLength());
+            target.set(INT, PAYLOAD_CRC_OFFSET, payloadCrc);
+            target.set(INT, HEADER_CRC_OFFSET, headerCrc(header(target)));
+            return SnapshotLayout.compute(layout.userCount(), layout.deviceCount(), layout.restrictedCount(),
+                    layout.linkCount(), layout.segmentCount(), layout.userIdBytes(), layout.deviceIdBytes(),
+                    layout.fingerprint(), payloadCrc);
+        }
+
+        // offsets (long per ordinal plus one), hash slots (ordinal + 1, 0 when empty) and the UTF-8 bytes
+        private static void encodeDictionary(final MemorySegment target, final byte[][] ids, final int[] hashes,
+                                             final long offsets, final long slots, final int slotCount,
+                                             final long bytes) {
+            long offset = 0;
+            target.set(LONG, offsets, 0);
+            for (int ordinal = 0; ordinal < ids.length; ordinal++) {
+                MemorySegment.copy(ids[ordinal], 0, target, ValueLayout.JAVA_BYTE, bytes + offset, ids[ordinal].length);
+                offset += ids[ordinal].length;
+                target.set(LONG, offsets + (ordinal + 1L) * Long.BYTES, offset);
+
+                int slot = IdDictionary.spread(hashes[ordinal]) & (slotCount - 1);
+                while (target.get(INT, slots + (long) slot * Integer.BYTES) != 0) {
+                    slot = (slot + 1) & (slotCount - 1);
+                }
+                target.set(INT, slots + (long) slot * Integer.BYTES, ordinal + 1);
+            }
+        }
+    }
+}
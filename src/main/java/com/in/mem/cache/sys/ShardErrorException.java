@@ -0,0 +1,15 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+
+/**
+ * A shard that was reached and answered the request with an error of its own, as opposed to a transport
+ * failure. The shard is alive and its replicas would answer the same request the same way, so
+ * {@link ShardedTargetingClient} fails the call instead of failing over.
+ */
+public final class ShardErrorException extends IOException {
+
+    public ShardErrorException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,91 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+
+/**
+ * One shard of a sharded cache. The shard loads only the users that {@link HashRing#owners} assigns to it,
+ * with their devices and segments, and serves {@link SegmentProtocol} lookups for them through a
+ * {@link SegmentServer} on the address it is given. Clients reach it through {@link ShardedTargetingClient}.
+ */
+public final class ShardServer implements AutoCloseable {
+
+    private static final int EVENT_LOOPS = 2;
+
+    private final String shardId;
+    private final int replicas;
+    private final CacheImplementation cache;
+    private final TargetingSystem targetingSystem;
+    private final SegmentServer server;
+    private volatile HashRing ring;
+
+    private ShardServer(final String shardId, final HashRing ring, final int replicas, final Path dataDirectory,
+                        final InetSocketAddress address) throws IOException {
+        this.shardId = shardId;
+        this.replicas = replicas;
+        this.ring = ring;
+        // the filter reads the current ring, so a reload after a ring change picks up the new slice
+        this.cache = CacheImplementation.slice(dataDirectory,
+                userId -> this.ring.owners(userId, this.replicas).contains(this.shardId));
+        this.targetingSystem = new TargetingSystem(cache);
+        try {
+            this.server = SegmentServer.start(targetingSystem, address, EVENT_LOOPS);
+        } catch (final IOException | RuntimeException e) {
+            cache.close();
+            throw e;
+        }
+    }
+
+    // loads the slice, then listens on the loopback interface, for tests and single host setups; port 0
+    // picks a free port
+    public static ShardServer start(final String shardId, final HashRing ring, final int replicas,
+                                    final Path dataDirectory, final int port) throws IOException {
+        return start(shardId, ring, replicas, dataDirectory,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    // loads the slice, then listens on the given address; a wildcard address accepts clients on every interface
+    public static ShardServer start(final String shardId, final HashRing ring, final int replicas,
+                                    final Path dataDirectory, final InetSocketAddress address) throws IOException {
+        if (replicas < 1) {
+            throw new IllegalArgumentException("replicas must be positive: " + replicas);
+        }
+        if (!ring.shards().contains(shardId)) {
+            throw new IllegalArgumentException("shard " + shardId + " is not on the ring");
+        }
+        return new ShardServer(shardId, ring, replicas, dataDirectory, address);
+    }
+
+    public String shardId() {
+        return shardId;
+    }
+
+    public InetSocketAddress address() {
+        return server.address();
+    }
+
+    public SegmentIndex segmentIndex() {
+        return cache.segmentIndex();
+    }
+
+    // reloads the slice owned under the new ring. Call it on existing shards only after clients route with
+    // the new ring, so the users that move are served by their new shard before they are dropped here.
+    public long rebalance(final HashRing ring) throws IOException {
+        if (!ring.shards().contains(shardId)) {
+            throw new IllegalArgumentException("shard " + shardId + " is not on the ring");
+        }
+        this.ring = ring;
+        return cache.reload();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            server.close();
+        } finally {
+            cache.close();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.in.mem.cache.sys;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Client side of a sharded cache. Each ID is routed to the first owner {@link HashRing#owners} gives for
+ * it; a batch is split into one request per shard, all requests are written before any response is read,
+ * and the results are put back in request order. When a shard cannot be reached or fails, its IDs are
+ * retried on their next replica; an error the shard answers with fails the call as a
+ * {@link ShardErrorException}, since every replica would answer the same. Connections are pooled per shard
+ * address and reused across calls.
+ * Lookups go over the network and can fail with an {@link IOException}, so this is an API of its own rather
+ * than a {@link Cache} behind a {@link TargetingSystem}.
+ */
+public final class ShardedTargetingClient implements AutoCloseable {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 1_000;
+    private static final int READ_TIMEOUT_MILLIS = 5_000;
+
+    private final int replicas;
+    private final Map<InetSocketAddress, Queue<Connection>> pools = new ConcurrentHashMap<>();
+    private volatile Routing routing;
+
+    public ShardedTargetingClient(final HashRing ring, final Map<String, InetSocketAddress> addresses,
+                                  final int replicas) {
+        if (replicas < 1) {
+            throw new IllegalArgumentException("replicas must be positive: " + replicas);
+        }
+        this.routing = new Routing(ring, Map.copyOf(addresses));
+        this.replicas = replicas;
+    }
+
+    // switches routing for calls that start afterwards; calls in flight finish with the previous ring
+    public void rebalance(final HashRing ring, final Map<String, InetSocketAddress> addresses) {
+        this.routing = new Routing(ring, Map.copyOf(addresses));
+    }
+
+    public int[] lookupUserSegments(final String id, final boolean allowRestrictedSegments,
+                                    final int segmentLimit) throws IOException {
+        return lookupUserSegmentsBatch(List.of(id), allowRestrictedSegments, segmentLimit).segmentsOf(0);
+    }
+
+    public SegmentBatch lookupUserSegmentsBatch(final List<String> ids, final boolean allowRestrictedSegments,
+                                                final int segmentLimit) throws IOException {
+        final Routing current = routing;
+        final List<List<String>> owners = new ArrayList<>(ids.size());
+        for (final String id : ids) {
+            owners.add(current.ring().owners(id, replicas));
+        }
+        final int[][] results = new int[ids.size()][];
+        final Set<String> failed = new HashSet<>();
+        IOException failure = null;
+        List<Integer> pending = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            pending.add(i);
+        }
+        while (!pending.isEmpty()) {
+            final Map<String, List<Integer>> byShard = new LinkedHashMap<>();
+            for (final int position : pending) {
+                final String shard = firstLive(owners.get(position), failed);
+                if (shard == null) {
+                    final IOException unavailable = new IOException("no live replica for " + ids.get(position));
+                    if (failure != null) {
+                        unavailable.addSuppressed(failure);
+                    }
+                    throw unavailable;
+                }
+                byShard.computeIfAbsent(shard, key -> new ArrayList<>()).add(position);
+            }
+            pending = new ArrayList<>();
+
+            // encoded before anything is sent: a request that cannot be encoded would fail on every replica
+            final Map<String, byte[]> requests = new LinkedHashMap<>();
+            for (final Map.Entry<String, List<Integer>> entry : byShard.entrySet()) {
+                final List<String> shardIds = new ArrayList<>(entry.getValue().size());
+                for (final int position : entry.getValue()) {
+                    shardIds.add(ids.get(position));
+                }
+                requests.put(entry.getKey(),
+                        SegmentProtocol.encodeLookup(shardIds, allowRestrictedSegments, segmentLimit));
+            }
+
+            // write every request first, so the shards work concurrently
+            final Map<String, Connection> sent = new LinkedHashMap<>();
+            for (final Map.Entry<String, List<Integer>> entry : byShard.entrySet()) {
+                Connection connection = null;
+                try {
+                    connection = acquire(current.address(entry.getKey()));
+                    connection.send(requests.get(entry.getKey()));
+                    sent.put(entry.getKey(), connection);
+                } catch (final IOException e) {
+                    discard(connection);
+                    failure = shardFailed(entry.getKey(), e, failed, failure);
+                    pending.addAll(entry.getValue());
+                }
+            }
+            final Iterator<Map.Entry<String, Connection>> responses = sent.entrySet().iterator();
+            while (responses.hasNext()) {
+                final Map.Entry<String, Connection> entry = responses.next();
+                final List<Integer> positions = byShard.get(entry.getKey());
+                final Connection connection = entry.getValue();
+                try {
+                    final SegmentBatch batch = SegmentProtocol.decodeBatch(connection.receive(), positions.size());
+                    release(connection);
+                    for (int i = 0; i < positions.size(); i++) {
+                        results[positions.get(i)] = batch.segmentsOf(i);
+                    }
+                } catch (final ShardErrorException e) {
+                    // the shard read the whole request and answered it, so it is alive and the connection is
+                    // clean; its replicas would reject the request the same way. Responses not read yet are
+                    // dropped with their connections.
+                    release(connection);
+                    while (responses.hasNext()) {
+                        discard(responses.next().getValue());
+                    }
+                    throw e;
+                } catch (final IOException e) {
+                    discard(connection);
+                    failure = shardFailed(entry.getKey(), e, failed, failure);
+                    pending.addAll(positions);
+                }
+            }
+        }
+
+        final int[] offsets = new int[ids.size() + 1];
+        for (int i = 0; i < results.length; i++) {
+            offsets[i + 1] = offsets[i] + results[i].length;
+        }
+        final int[] segments = new int[offsets[ids.size()]];
+        for (int i = 0; i < results.length; i++) {
+            System.arraycopy(results[i], 0, segments, offsets[i], results[i].length);
+        }
+        return new SegmentBatch(offsets, segments);
+    }
+
+    @Override
+    public void close() {
+        for (final Queue<Connection> pool : pools.values()) {
+            Connection connection;
+            while ((connection = pool.poll()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private static String firstLive(final List<String> owners, final Set<String> failed) {
+        for (final String owner : owners) {
+            if (!failed.contains(owner)) {
+                return owner;
+            }
+        }
+        return null;
+    }
+
+    private static IOException shardFailed(final String shard, final IOException cause, final Set<String> failed,
+                                           final IOException failure) {
+        failed.add(shard);
+        final IOException shardFailure = new IOException("shard " + shard + " failed: " + cause.getMessage(),
+                cause);
+        if (failure != null) {
+            shardFailure.addSuppressed(failure);
+        }
+        return shardFailure;
+    }
+
+    private Connection acquire(final InetSocketAddress address) throws IOException {
+        final Connection pooled = pools.computeIfAbsent(address, key -> new ConcurrentLinkedQueue<>()).poll();
+        return pooled != null ? pooled : new Connection(address);
+    }
+
+    private void release(final Connection connection) {
+        pools.computeIfAbsent(connection.address, key -> new ConcurrentLinkedQueue<>()).offer(connection);
+    }
+
+    // a connection that failed mid-request may hold a partial response, so it is never reused
+    private static void discard(final Connection connection) {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    private record Routing(HashRing ring, Map<String, InetSocketAddress> addresses) {
+
+        private InetSocketAddress address(final String shard) throws IOException {
+            final InetSocketAddress address = addresses.get(shard);
+            if (address == null) {
+                throw new IOException("no address for shard " + shard);
+            }
+            return address;
+        }
+    }
+
+    private static final class Connection {
+
+        private final InetSocketAddress address;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        private Connection(final InetSocketAddress address) throws IOException {
+            this.address = address;
+            this.socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            } catch (final IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        private void send(final byte[] frame) throws IOException {
+            SegmentProtocol.writeFrame(out, frame);
+        }
+
+        private ByteBuffer receive() throws IOException {
+            final ByteBuffer frame = SegmentProtocol.readFrame(in);
+            if (frame == null) {
+                throw new IOException("connection closed by " + address);
+            }
+            return frame;
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                // already unusable
+            }
+        }
+    }
+}
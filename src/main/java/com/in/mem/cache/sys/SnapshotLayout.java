@@ -0,0 +1,75 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+
+import static com.in.mem.cache.sys.SegmentSnapshot.*;
+
+// section offsets of a snapshot, derived from and validated against its header
+record SnapshotLayout(int userCount, int deviceCount, int restrictedCount, int linkCount, int segmentCount,
+                      int userSlots, int deviceSlots, long userIdBytes, long deviceIdBytes, long fingerprint,
+                      long payloadLength, int payloadCrc, long restrictedOffset, long userDeviceOffsetsOffset,
+                      long userDevicesOffset, long deviceSegmentOffsetsOffset, long deviceSegmentsOffset,
+                      long userIdOffsetsOffset, long userSlotsOffset, long deviceIdOffsetsOffset,
+                      long deviceSlotsOffset, long userIdBytesOffset, long deviceIdBytesOffset) {
+
+    static SnapshotLayout of(final MemorySegment snapshot) throws IOException {
+        final ByteBuffer header = header(snapshot);
+        if (header.getInt(MAGIC_OFFSET) != MAGIC) {
+            throw new IOException("Not a segment snapshot");
+        }
+        if (header.getInt(VERSION_OFFSET) != VERSION) {
+            throw new IOException("Unsupported snapshot version " + header.getInt(VERSION_OFFSET));
+        }
+        if (header.getInt(HEADER_CRC_OFFSET) != headerCrc(header)) {
+            throw new IOException("Snapshot header checksum mismatch");
+        }
+        final int userSlots = header.getInt(USER_SLOTS_OFFSET);
+        final int deviceSlots = header.getInt(DEVICE_SLOTS_OFFSET);
+        final SnapshotLayout layout = compute(header.getInt(USER_COUNT_OFFSET), header.getInt(DEVICE_COUNT_OFFSET),
+                header.getInt(RESTRICTED_COUNT_OFFSET), header.getInt(LINK_COUNT_OFFSET),
+                header.getInt(SEGMENT_COUNT_OFFSET), header.getLong(USER_ID_BYTES_OFFSET),
+                header.getLong(DEVICE_ID_BYTES_OFFSET), header.getLong(FINGERPRINT_OFFSET),
+                header.getInt(PAYLOAD_CRC_OFFSET));
+        if (userSlots != layout.userSlots() || deviceSlots != layout.deviceSlots()) {
+            throw new IOException("Snapshot dictionary sizes are inconsistent");
+        }
+        if (layout.payloadLength() != header.getLong(PAYLOAD_LENGTH_OFFSET) || layout.byteSize() > snapshot.byteSize()) {
+            throw new IOException("Snapshot is truncated or its sections are inconsistent");
+        }
+        return layout;
+    }
+
+    static SnapshotLayout compute(final int userCount, final int deviceCount, final int restrictedCount,
+                                  final int linkCount, final int segmentCount, final long userIdBytes,
+                                  final long deviceIdBytes, final long fingerprint, final int payloadCrc) {
+        final int userSlots = slotsFor(userCount);
+        final int deviceSlots = slotsFor(deviceCount);
+        final long restrictedOffset = HEADER_SIZE;
+        final long userDeviceOffsetsOffset = align(restrictedOffset + Integer.BYTES * (long) restrictedCount);
+        final long userDevicesOffset = align(userDeviceOffsetsOffset + Integer.BYTES * (userCount + 1L));
+        final long deviceSegmentOffsetsOffset = align(userDevicesOffset + Integer.BYTES * (long) linkCount);
+        final long deviceSegmentsOffset = align(deviceSegmentOffsetsOffset + Integer.BYTES * (deviceCount + 1L));
+        final long userIdOffsetsOffset = align(deviceSegmentsOffset + Integer.BYTES * (long) segmentCount);
+        final long userSlotsOffset = userIdOffsetsOffset + Long.BYTES * (userCount + 1L);
+        final long deviceIdOffsetsOffset = align(userSlotsOffset + Integer.BYTES * (long) userSlots);
+        final long deviceSlotsOffset = deviceIdOffsetsOffset + Long.BYTES * (deviceCount + 1L);
+        final long userIdBytesOffset = align(deviceSlotsOffset + Integer.BYTES * (long) deviceSlots);
+        final long deviceIdBytesOffset = align(userIdBytesOffset + userIdBytes);
+        final long end = align(deviceIdBytesOffset + deviceIdBytes);
+        return new SnapshotLayout(userCount, deviceCount, restrictedCount, linkCount, segmentCount, userSlots,
+                deviceSlots, userIdBytes, deviceIdBytes, fingerprint, end - HEADER_SIZE, payloadCrc, restrictedOffset,
+                userDeviceOffsetsOffset, userDevicesOffset, deviceSegmentOffsetsOffset, deviceSegmentsOffset,
+                userIdOffsetsOffset, userSlotsOffset, deviceIdOffsetsOffset, deviceSlotsOffset, userIdBytesOffset,
+                deviceIdBytesOffset);
+    }
+
+    long byteSize() {
+        return HEADER_SIZE + payloadLength;
+    }
+
+    private static long align(final long offset) {
+        return (offset + Long.BYTES - 1) & -Long.BYTES;
+    }
+}
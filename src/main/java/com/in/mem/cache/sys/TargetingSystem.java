@@ -1,71 +1,502 @@
 package com.in.mem.cache.sys;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class TargetingSystem {
 
+    private static final int BATCH_CHUNK_SIZE = 256;
+    private static final ThreadLocal<SegmentMerger> MERGERS = ThreadLocal.withInitial(SegmentMerger::new);
+    private static final AtomicReferenceArray<SegmentMerger> POOLED_MERGERS = new AtomicReferenceArray<>(
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1);
+
     private final Cache userDataCache;
+    private final ResolvedSegmentCache resolvedSegmentCache;
+    private final MetricsRecorder metrics;
+    private final boolean recording;
+    private final ReentrantLock audienceLock = new ReentrantLock();
+    private volatile SegmentAudienceIndex audienceIndex;
 
     public TargetingSystem(Cache cacheImplementation) {
+        this(cacheImplementation, null);
+    }
+
+    // resolved segments are only materialized for PrimitiveCache implementations, whose index
+    // identity tells the view when the underlying data has changed
+    public TargetingSystem(Cache cacheImplementation, ResolvedSegmentCache resolvedSegmentCache) {
+        this(cacheImplementation, resolvedSegmentCache, MetricsRecorder.NOOP);
+    }
+
+    // with MetricsRecorder.NOOP the lookup paths skip timing and recording altogether
+    public TargetingSystem(Cache cacheImplementation, ResolvedSegmentCache resolvedSegmentCache,
+                           MetricsRecorder metrics) {
         this.userDataCache = cacheImplementation;
+        this.resolvedSegmentCache = resolvedSegmentCache;
+        this.metrics = metrics;
+        this.recording = metrics != MetricsRecorder.NOOP;
     }
 
     public Collection<Integer> lookupUserSegments(final String id, boolean allowRestrictedSegments,
                                                   final int segmentLimit) {
-        // Get all values from all linked ids
-        ArrayList<Integer> idSegments = getAllValuesFromLinkedIds(id);
+        if (userDataCache instanceof PrimitiveCache primitiveCache) {
+            return lookupUserSegments(primitiveCache.segmentIndex(), primitiveCache.tieredSegmentCache(), id,
+                    allowRestrictedSegments, segmentLimit);
+        }
+
+        final long start = recording ? System.nanoTime() : 0;
 
-        // De-duplicate the returned values
-        ArrayList<Integer> deDupedList = deDupSegments(idSegments);
+        // Get all values from all linked ids, unknown ids have none
+        List<int[]> idSegments = getAllValuesFromLinkedIds(id);
+        if (idSegments == null) {
+            if (recording) {
+                recordMiss(start);
+            }
+            return new ArrayList<>();
+        }
 
-        // Remove all restricted values
-        deDupedList = removeRestrictedSegments(allowRestrictedSegments, deDupedList);
+        // Build the restricted segment filter, if restricted values have to be removed
+        SegmentBitmap restrictedSegments = getRestrictedSegments(allowRestrictedSegments);
 
-        // Apply limit to values returned
-        return applyLimit(segmentLimit, deDupedList);
+        // De-duplicate, remove restricted values and apply limit in a single pass
+        int[] segments = new int[Math.max(segmentLimit, 0)];
+        SegmentMerger merger = new SegmentMerger();
+        merger.start(segments, segmentLimit, restrictedSegments);
+        merge:
+        for (int[] deviceSegments : idSegments) {
+            for (int segment : deviceSegments) {
+                if (!merger.add(segment)) {
+                    break merge;
+                }
+            }
+        }
+        if (recording) {
+            recordLookup(start, idSegments.size(), merger);
+        }
+        return toList(segments, merger.size());
     }
 
-    private List<Integer> applyLimit(int segmentLimit, ArrayList<Integer> deDupedList) {
-        List<Integer> limitedSegments = new ArrayList<>();
-        if (segmentLimit > 0) {
-            for (int i = 0; i < segmentLimit; i++) {
-                limitedSegments.add(deDupedList.get(i));
+    // writes at most min(segmentLimit, out.length) segments into out and returns how many were written;
+    // once the merger of the calling thread (or of the pool virtual threads share) has warmed up, a
+    // PrimitiveCache lookup allocates nothing, and with a ResolvedSegmentCache or tiers only misses,
+    // evictions and promotions do
+    public int lookupUserSegments(final String id, final boolean allowRestrictedSegments, final int segmentLimit,
+                                  final int[] out) {
+        if (userDataCache instanceof PrimitiveCache primitiveCache) {
+            final long start = recording ? System.nanoTime() : 0;
+            final SegmentIndex segmentIndex = primitiveCache.segmentIndex();
+            final int user = segmentIndex.userOrdinal(id);
+            if (user < 0) {
+                if (recording) {
+                    recordMiss(start);
+                }
+                return 0;
             }
+            return resolveUser(primitiveCache, segmentIndex, user, allowRestrictedSegments, segmentLimit, out, start);
         }
-        return limitedSegments;
+
+        // plain caches hand out boxed lists, so only the result buffer is saved here
+        int count = 0;
+        for (Integer segment : lookupUserSegments(id, allowRestrictedSegments, Math.min(segmentLimit, out.length))) {
+            out[count++] = segment;
+        }
+        return count;
     }
 
-    private ArrayList<Integer> removeRestrictedSegments(boolean allowRestrictedSegments, ArrayList<Integer> deDupedList) {
-        List<Integer> restrictedSegments = userDataCache.getRestrictedSegments();
-        if (!allowRestrictedSegments) {
-            for (Integer restrictedSegment : restrictedSegments) {
-                deDupedList.remove(restrictedSegment);
+    // one ID's segments in an array of their own, for callers that hand the result on; for a PrimitiveCache
+    // the array is sized from the user's rows, so it is the only allocation once the mergers are warm
+    int[] lookupUserSegmentArray(final String id, final boolean allowRestrictedSegments, final int segmentLimit) {
+        if (userDataCache instanceof PrimitiveCache primitiveCache) {
+            final long start = recording ? System.nanoTime() : 0;
+            final SegmentIndex segmentIndex = primitiveCache.segmentIndex();
+            final int user = segmentIndex.userOrdinal(id);
+            if (user < 0) {
+                if (recording) {
+                    recordMiss(start);
+                }
+                return new int[0];
+            }
+            final int[] segments = new int[Math.max(0,
+                    Math.min(segmentLimit, SegmentMerger.segmentCapacity(segmentIndex, user)))];
+            final int count = resolveUser(primitiveCache, segmentIndex, user, allowRestrictedSegments, segmentLimit,
+                    segments, start);
+            return count == segments.length ? segments : Arrays.copyOf(segments, count);
+        }
+        return toIntArray(new ArrayList<>(lookupUserSegments(id, allowRestrictedSegments, segmentLimit)));
+    }
+
+    public SegmentBatch lookupUserSegmentsBatch(final List<String> ids, final boolean allowRestrictedSegments,
+                                                final int segmentLimit) {
+        return lookupUserSegmentsBatch(ids, allowRestrictedSegments, segmentLimit, false);
+    }
+
+    // resolves every ID against one generation and one restricted filter; parallel splits the batch into
+    // chunks merged on the common fork-join pool, each chunk with its own scratch buffers
+    public SegmentBatch lookupUserSegmentsBatch(final List<String> ids, final boolean allowRestrictedSegments,
+                                                final int segmentLimit, final boolean parallel) {
+        final BatchLookup lookup;
+        if (userDataCache instanceof PrimitiveCache primitiveCache) {
+            final SegmentIndex segmentIndex = primitiveCache.segmentIndex();
+            lookup = new BatchLookup(segmentIndex, primitiveCache.tieredSegmentCache(),
+                    allowRestrictedSegments ? null : segmentIndex.restrictedBitmap(), allowRestrictedSegments,
+                    segmentLimit);
+        } else {
+            lookup = new BatchLookup(null, null, getRestrictedSegments(allowRestrictedSegments),
+                    allowRestrictedSegments, segmentLimit);
+        }
+
+        final int[] offsets = new int[ids.size() + 1];
+        final List<BatchLookup> chunks = new ArrayList<>();
+        if (!parallel || ids.size() <= BATCH_CHUNK_SIZE) {
+            lookup.lookup(ids, 0, ids.size(), offsets);
+            chunks.add(lookup);
+        } else {
+            final List<ForkJoinTask<BatchLookup>> tasks = new ArrayList<>();
+            for (int from = 0; from < ids.size(); from += BATCH_CHUNK_SIZE) {
+                final int start = from;
+                final int end = Math.min(from + BATCH_CHUNK_SIZE, ids.size());
+                tasks.add(ForkJoinPool.commonPool().submit(() -> lookup.fork().lookup(ids, start, end, offsets)));
+            }
+            for (final ForkJoinTask<BatchLookup> task : tasks) {
+                chunks.add(task.join());
+            }
+        }
+
+        // counts were written to offsets[i + 1]; turn them into offsets and concatenate the chunks
+        for (int i = 0; i < ids.size(); i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        final int[] segments = new int[offsets[ids.size()]];
+        int position = 0;
+        for (final BatchLookup chunk : chunks) {
+            chunk.segments.copyTo(segments, position);
+            position += chunk.segments.size();
+        }
+        return new SegmentBatch(offsets, segments);
+    }
+
+    // the user's distinct segments as a set, without order or limit: the union of the device sets minus the
+    // restricted set
+    public SegmentBitmap lookupUserSegmentSet(final String id, final boolean allowRestrictedSegments) {
+        final IntList segments = new IntList();
+        final SegmentBitmap restricted;
+        if (userDataCache instanceof PrimitiveCache primitiveCache) {
+            final SegmentIndex segmentIndex = primitiveCache.segmentIndex();
+            final int user = segmentIndex.userOrdinal(id);
+            for (int i = 0; user >= 0 && i < segmentIndex.linkedDeviceCount(user); i++) {
+                final int device = segmentIndex.linkedDevice(user, i);
+                for (int j = 0; j < segmentIndex.segmentCount(device); j++) {
+                    segments.add(segmentIndex.segment(device, j));
+                }
+            }
+            restricted = segmentIndex.restrictedBitmap();
+        } else {
+            final List<int[]> idSegments = getAllValuesFromLinkedIds(id);
+            for (int i = 0; idSegments != null && i < idSegments.size(); i++) {
+                segments.addAll(idSegments.get(i), idSegments.get(i).length);
             }
+            restricted = getRestrictedSegments(false);
         }
-        return deDupedList;
+        final SegmentBitmap segmentSet = SegmentBitmap.of(segments.toArray());
+        return allowRestrictedSegments ? segmentSet : segmentSet.andNot(restricted);
+    }
+
+    // IDs of the users in the segment, in load order; needs a PrimitiveCache
+    public List<String> lookupSegmentAudience(final int segment) {
+        final SegmentAudienceIndex index = audienceIndex();
+        return index.userIds(index.audience(segment));
+    }
+
+    // IDs of the users in the segment but not in the excluded one, in load order; needs a PrimitiveCache
+    public List<String> lookupSegmentAudience(final int segment, final int excludedSegment) {
+        final SegmentAudienceIndex index = audienceIndex();
+        return index.userIds(index.audience(segment, excludedSegment));
     }
 
-    private ArrayList<Integer> deDupSegments(ArrayList<Integer> idSegments) {
-        ArrayList<Integer> deDupedList = new ArrayList<>();
-        for (Integer idSegment : idSegments) {
-            if (!deDupedList.contains(idSegment)) {
-                deDupedList.add(idSegment);
+    // the inverted index of the current generation, built by the first audience query after each reload and
+    // brought up to date with the overlay after a delta batch; not available on a lazily loaded index
+    public SegmentAudienceIndex audienceIndex() {
+        if (!(userDataCache instanceof PrimitiveCache primitiveCache)) {
+            throw new UnsupportedOperationException("audience queries need a PrimitiveCache");
+        }
+        final SegmentIndex segmentIndex = primitiveCache.segmentIndex();
+        SegmentAudienceIndex index = audienceIndex;
+        if (index != null && index.segmentIndex() == segmentIndex) {
+            return index;
+        }
+        audienceLock.lock();
+        try {
+            index = audienceIndex;
+            if (index == null || index.segmentIndex() != segmentIndex) {
+                index = SegmentAudienceIndex.update(index, segmentIndex);
+                audienceIndex = index;
+            }
+            return index;
+        } finally {
+            audienceLock.unlock();
+        }
+    }
+
+    private Collection<Integer> lookupUserSegments(SegmentIndex segmentIndex, TieredSegmentCache tiers, String id,
+                                                   boolean allowRestrictedSegments, int segmentLimit) {
+        long start = recording ? System.nanoTime() : 0;
+        int user = segmentIndex.userOrdinal(id);
+        if (user < 0) {
+            if (recording) {
+                recordMiss(start);
+            }
+            return new ArrayList<>();
+        }
+        if (segmentLimit <= 0) {
+            return new ArrayList<>();
+        }
+        if (resolvedSegmentCache != null) {
+            int[] resolved = resolvedSegmentCache.resolve(segmentIndex, user, allowRestrictedSegments);
+            int count = Math.min(segmentLimit, resolved.length);
+            if (recording) {
+                recordLookup(start, segmentIndex.linkedDeviceCount(user), count);
+            }
+            return toList(resolved, count);
+        }
+        int[] segments = new int[Math.min(segmentLimit, SegmentMerger.segmentCapacity(segmentIndex, user))];
+        if (tiers != null) {
+            int count = tiers.resolve(segmentIndex, user, allowRestrictedSegments, segmentLimit, segments);
+            if (recording) {
+                recordLookup(start, segmentIndex.linkedDeviceCount(user), count);
+            }
+            return toList(segments, count);
+        }
+        SegmentMerger merger = new SegmentMerger();
+        merger.start(segments, segmentLimit, allowRestrictedSegments ? null : segmentIndex.restrictedBitmap());
+        merger.mergeUser(segmentIndex, user);
+        if (recording) {
+            recordLookup(start, segmentIndex.linkedDeviceCount(user), merger);
+        }
+        return toList(segments, merger.size());
+    }
+
+    // a known user of a PrimitiveCache, against the index the ordinal came from
+    private int resolveUser(final PrimitiveCache primitiveCache, final SegmentIndex segmentIndex, final int user,
+                            final boolean allowRestrictedSegments, final int segmentLimit, final int[] out,
+                            final long start) {
+        if (segmentLimit <= 0) {
+            return 0;
+        }
+        if (resolvedSegmentCache != null) {
+            final int[] resolved = resolvedSegmentCache.resolve(segmentIndex, user, allowRestrictedSegments);
+            final int count = Math.min(Math.min(segmentLimit, out.length), resolved.length);
+            System.arraycopy(resolved, 0, out, 0, count);
+            if (recording) {
+                recordLookup(start, segmentIndex.linkedDeviceCount(user), count);
             }
+            return count;
         }
-        return deDupedList;
+        final TieredSegmentCache tiers = primitiveCache.tieredSegmentCache();
+        if (tiers != null) {
+            final int count = tiers.resolve(segmentIndex, user, allowRestrictedSegments, segmentLimit, out);
+            if (recording) {
+                recordLookup(start, segmentIndex.linkedDeviceCount(user), count);
+            }
+            return count;
+        }
+        final SegmentMerger merger = acquireMerger();
+        merger.start(out, segmentLimit, allowRestrictedSegments ? null : segmentIndex.restrictedBitmap());
+        final int count = merger.mergeUser(segmentIndex, user);
+        if (recording) {
+            recordLookup(start, segmentIndex.linkedDeviceCount(user), merger);
+        }
+        releaseMerger(merger);
+        return count;
+    }
+
+    // platform threads keep a merger each; virtual threads rarely live for more than a few lookups, so they
+    // borrow one from a small shared pool instead of building a new one per thread
+    private static SegmentMerger acquireMerger() {
+        if (!Thread.currentThread().isVirtual()) {
+            return MERGERS.get();
+        }
+        final SegmentMerger merger = POOLED_MERGERS.getAndSet(poolSlot(), null);
+        return merger != null ? merger : new SegmentMerger();
+    }
+
+    private static void releaseMerger(final SegmentMerger merger) {
+        if (Thread.currentThread().isVirtual()) {
+            POOLED_MERGERS.compareAndSet(poolSlot(), null, merger);
+        }
+    }
+
+    private static int poolSlot() {
+        return IdDictionary.spread((int) Thread.currentThread().threadId()) & (POOLED_MERGERS.length() - 1);
     }
 
-    private ArrayList<Integer> getAllValuesFromLinkedIds(String id) {
-        ArrayList<Integer> idSegments = new ArrayList<>();
+    // lookups answered by a merge also report the merge counters; resolved view hits ran no merge
+    private void recordLookup(long start, int devices, SegmentMerger merger) {
+        metrics.recordMerge(merger.offered(), merger.filtered(), merger.size());
+        recordLookup(start, devices, merger.size());
+    }
+
+    private void recordLookup(long start, int devices, int segments) {
+        metrics.recordLookup(System.nanoTime() - start, devices, segments);
+    }
+
+    private void recordMiss(long start) {
+        metrics.recordMiss(System.nanoTime() - start);
+    }
+
+    private SegmentBitmap getRestrictedSegments(boolean allowRestrictedSegments) {
+        List<Integer> restrictedSegments = userDataCache.getRestrictedSegments();
+        if (allowRestrictedSegments) {
+            return null;
+        }
+        return SegmentBitmap.of(toIntArray(restrictedSegments));
+    }
+
+    private List<int[]> getAllValuesFromLinkedIds(String id) {
         List<String> idMappings = userDataCache.lookupIdMappings(id);
+        if (idMappings == null) {
+            return null;
+        }
+        List<int[]> idSegments = new ArrayList<>(idMappings.size());
         for (String idMapping : idMappings) {
             List<Integer> x = userDataCache.lookupSegments(idMapping);
             if (x != null) {
-                idSegments.addAll(x);
+                idSegments.add(toIntArray(x));
             }
         }
         return idSegments;
     }
+
+    // scratch state for one run of consecutive IDs of a batch; the restricted filter is shared
+    private final class BatchLookup {
+
+        private final SegmentIndex segmentIndex;
+        private final TieredSegmentCache tiers;
+        private final SegmentBitmap restricted;
+        private final boolean allowRestrictedSegments;
+        private final int segmentLimit;
+        private final SegmentMerger merger = new SegmentMerger();
+        private final IntList segments = new IntList();
+        private int[] scratch = new int[16];
+
+        // segmentIndex is null for caches that are not a PrimitiveCache, tiers whenever the cache keeps none
+        private BatchLookup(SegmentIndex segmentIndex, TieredSegmentCache tiers, SegmentBitmap restricted,
+                            boolean allowRestrictedSegments, int segmentLimit) {
+            this.segmentIndex = segmentIndex;
+            this.tiers = tiers;
+            this.restricted = restricted;
+            this.allowRestrictedSegments = allowRestrictedSegments;
+            this.segmentLimit = segmentLimit;
+        }
+
+        private BatchLookup fork() {
+            return new BatchLookup(segmentIndex, tiers, restricted, allowRestrictedSegments, segmentLimit);
+        }
+
+        // appends the segments of ids[from, to) and stores each count at counts[i + 1]
+        private BatchLookup lookup(List<String> ids, int from, int to, int[] counts) {
+            for (int i = from; i < to; i++) {
+                final int count = segmentLimit <= 0 ? 0
+                        : segmentIndex != null ? lookup(ids.get(i)) : lookupLinkedIds(ids.get(i));
+                segments.addAll(scratch, count);
+                counts[i + 1] = count;
+            }
+            return this;
+        }
+
+        private int lookup(String id) {
+            final long start = recording ? System.nanoTime() : 0;
+            final int user = segmentIndex.userOrdinal(id);
+            if (user < 0) {
+                if (recording) {
+                    recordMiss(start);
+                }
+                return 0;
+            }
+            if (resolvedSegmentCache != null) {
+                final int[] resolved = resolvedSegmentCache.resolve(segmentIndex, user, allowRestrictedSegments);
+                final int count = Math.min(segmentLimit, resolved.length);
+                ensureScratch(count);
+                System.arraycopy(resolved, 0, scratch, 0, count);
+                if (recording) {
+                    recordLookup(start, segmentIndex.linkedDeviceCount(user), count);
+                }
+                return count;
+            }
+            ensureScratch(Math.min(segmentLimit, SegmentMerger.segmentCapacity(segmentIndex, user)));
+            if (tiers != null) {
+                final int count = tiers.resolve(segmentIndex, user, allowRestrictedSegments, segmentLimit, scratch);
+                if (recording) {
+                    recordLookup(start, segmentIndex.linkedDeviceCount(user), count);
+                }
+                return count;
+            }
+            merger.start(scratch, segmentLimit, restricted);
+            final int count = merger.mergeUser(segmentIndex, user);
+            if (recording) {
+                recordLookup(start, segmentIndex.linkedDeviceCount(user), merger);
+            }
+            return count;
+        }
+
+        private int lookupLinkedIds(String id) {
+            final long start = recording ? System.nanoTime() : 0;
+            final List<String> idMappings = userDataCache.lookupIdMappings(id);
+            if (idMappings == null) {
+                if (recording) {
+                    recordMiss(start);
+                }
+                return 0;
+            }
+            final List<List<Integer>> deviceSegments = new ArrayList<>(idMappings.size());
+            int capacity = 0;
+            for (String idMapping : idMappings) {
+                final List<Integer> segmentList = userDataCache.lookupSegments(idMapping);
+                if (segmentList != null) {
+                    deviceSegments.add(segmentList);
+                    capacity += segmentList.size();
+                }
+            }
+            ensureScratch(Math.min(segmentLimit, capacity));
+            merger.start(scratch, segmentLimit, restricted);
+            merge:
+            for (List<Integer> segmentList : deviceSegments) {
+                for (Integer segment : segmentList) {
+                    if (!merger.add(segment)) {
+                        break merge;
+                    }
+                }
+            }
+            if (recording) {
+                recordLookup(start, deviceSegments.size(), merger);
+            }
+            return merger.size();
+        }
+
+        private void ensureScratch(int capacity) {
+            if (scratch.length < capacity) {
+                scratch = new int[Math.max(capacity, scratch.length << 1)];
+            }
+        }
+    }
+
+    private static List<Integer> toList(int[] segments, int size) {
+        List<Integer> limitedSegments = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            limitedSegments.add(segments[i]);
+        }
+        return limitedSegments;
+    }
+
+    private static int[] toIntArray(List<Integer> values) {
+        int[] primitives = new int[values.size()];
+        for (int i = 0; i < primitives.length; i++) {
+            primitives[i] = values.get(i);
+        }
+        return primitives;
+    }
 }
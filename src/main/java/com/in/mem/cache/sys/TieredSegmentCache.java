@@ -0,0 +1,645 @@
+package com.in.mem.cache.sys;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Two tier materialized view of resolved segments per user, bounded by memory budgets rather than entry
+ * counts. The hot tier holds fully resolved, restriction-filtered arrays on the heap, ready to be copied; the
+ * cold tier holds each user's unfiltered merged row off-heap, zigzag delta and varint encoded, and filters
+ * while decoding. A count-min {@link FrequencySketch} of the lookups decides promotion: a row only enters a
+ * full hot tier when it is looked up more often than the CLOCK victim it demotes. The cold tier is filled on
+ * first access and reclaimed a block at a time, oldest first, carrying rows the sketch still counts as used
+ * into the newest block. Lookups never take a lock. {@link #publish} moves the tiers to a new index on the
+ * publishing thread: across delta batches over the same base they keep their rows and drop only the users
+ * whose rows or devices changed, and for any other index they start empty.
+ * <p>
+ * Each budget first pays for its tier's directory, sized by the users of the index: the hot tier's row slots,
+ * reference bits and frequency sketch, 18 to 26 bytes per user, and the cold tier's row locations, 8 bytes
+ * per user. A tier whose budget cannot hold its directory stays off; {@link #reportFootprint} reports both. Only
+ * the device to user table kept once deltas arrive is not counted. The cold tier pays off over a lazily
+ * loaded index ({@link CacheImplementation#lazy}), where it keeps merged rows that would otherwise be parsed
+ * from the file again; over an eagerly loaded index it is a second, compressed copy of rows already on the
+ * heap and only saves the merge.
+ */
+public final class TieredSegmentCache {
+
+    private static final int COLD_BLOCK_BYTES = 1 << 20;
+    // lookups a row needs before it competes for a full hot tier, or keeps its cold row when its block goes
+    private static final int MIN_FREQUENCY = 2;
+
+    private final long hotBudgetBytes;
+    private final long coldBudgetBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LongAdder hotHits = new LongAdder();
+    private final LongAdder coldHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder promotions = new LongAdder();
+    private final LongAdder demotions = new LongAdder();
+    // clock slots of the victims a promotion has picked so far, only used under the lock
+    private final IntList victims = new IntList();
+    private volatile Tiers tiers;
+
+    // a budget of 0 disables that tier
+    public TieredSegmentCache(final long hotBudgetBytes, final long coldBudgetBytes) {
+        if (hotBudgetBytes < 0 || coldBudgetBytes < 0) {
+            throw new IllegalArgumentException("tier budgets must not be negative");
+        }
+        this.hotBudgetBytes = hotBudgetBytes;
+        this.coldBudgetBytes = coldBudgetBytes;
+    }
+
+    // writes at most min(segmentLimit, out.length) resolved segments of the user ordinal into out and returns
+    // how many were written; hot hits only copy, cold hits decode without allocating. Users the tiers have
+    // no room for, added by deltas, and lookups on an index not published yet are merged without caching.
+    public int resolve(final SegmentIndex segmentIndex, final int user, final boolean allowRestrictedSegments,
+                       final int segmentLimit, final int[] out) {
+        final Tiers current = tiers(segmentIndex);
+        final SegmentBitmap restricted = allowRestrictedSegments ? null : segmentIndex.restrictedBitmap();
+        final int limit = Math.min(segmentLimit, out.length);
+        if (current == null || user >= current.userCapacity) {
+            misses.increment();
+            final int[] row = mergeRow(segmentIndex, user);
+            return copy(restricted == null ? row : filter(row, restricted), limit, out);
+        }
+        final int key = (user << 1) | (allowRestrictedSegments ? 1 : 0);
+        current.sketch.increment(key);
+        final int[] hot = key < current.hot.length() ? current.hot.get(key) : null;
+        if (hot != null) {
+            current.referenced[key] = true;
+            hotHits.increment();
+            return copy(hot, limit, out);
+        }
+
+        final long location = current.coldLocations.length() == 0 ? 0 : current.coldLocations.get(user);
+        final ColdBlock block = location == 0 ? null : current.coldBlock(location);
+        if (block != null) {
+            coldHits.increment();
+            final int offset = (int) location;
+            if (!current.competes(key)) {
+                return decode(block.memory, offset, restricted, limit, out);
+            }
+            final int[] resolved = new int[(int) readVarint(block.memory, offset)];
+            final int size = decode(block.memory, offset, restricted, resolved.length, resolved);
+            final int[] trimmed = size == resolved.length ? resolved : Arrays.copyOf(resolved, size);
+            promote(current, segmentIndex, key, trimmed);
+            return copy(trimmed, limit, out);
+        }
+
+        misses.increment();
+        final int[] row = mergeRow(segmentIndex, user);
+        if (current.coldLocations.length() > 0) {
+            admitCold(current, segmentIndex, user, row);
+        }
+        final int[] resolved = restricted == null ? row : filter(row, restricted);
+        if (current.competes(key)) {
+            promote(current, segmentIndex, key, resolved);
+        }
+        return copy(resolved, limit, out);
+    }
+
+    // moves the tiers to a newly published index before lookups ask for it. An overlay over the same base
+    // as the current index keeps the tiers and drops the rows of the users it changed, and the filtered
+    // rows when the restricted segments changed; any other index gets empty tiers.
+    public void publish(final SegmentIndex segmentIndex) {
+        lock.lock();
+        try {
+            final Tiers current = tiers;
+            if (current != null && OverlaySegmentIndex.baseOf(current.segmentIndex)
+                    == OverlaySegmentIndex.baseOf(segmentIndex)) {
+                current.moveTo(segmentIndex);
+            } else {
+                tiers = new Tiers(segmentIndex);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidate() {
+        lock.lock();
+        try {
+            tiers = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Stats stats() {
+        final Tiers current = tiers;
+        return new Stats(hotHits.sum(), coldHits.sum(), misses.sum(), promotions.sum(), demotions.sum(),
+                current == null ? 0 : current.hotRows, current == null ? 0 : current.hotBytes,
+                current == null ? 0 : current.coldRows, current == null ? 0 : current.coldBytes);
+    }
+
+    public long hotBudgetBytes() {
+        return hotBudgetBytes;
+    }
+
+    public long coldBudgetBytes() {
+        return coldBudgetBytes;
+    }
+
+    // heap taken by each tier's directory and rows, and off the heap by the cold blocks allocated so far
+    public void reportFootprint(final MetricsRecorder recorder) {
+        lock.lock();
+        try {
+            final Tiers current = tiers;
+            if (current != null) {
+                recorder.recordFootprint("hotTier", hotDirectory(current.hot.length())
+                        + IdDictionary.ARRAY_HEADER_BYTES + Integer.BYTES * (long) current.clockKeys.length
+                        + current.hotBytes, 0);
+                recorder.recordFootprint("coldTier", coldDirectoryBytes(current.coldLocations.length())
+                        + IdDictionary.ARRAY_HEADER_BYTES + Integer.BYTES * (long) current.coldBlockRing.length(),
+                        (long) Math.min(current.lastBlockNumber, current.coldBlockRing.length())
+                                * current.coldBlockBytes);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // what the hot tier's directory takes for an index of that many users, out of its budget
+    static long hotDirectoryBytes(final int users) {
+        return hotDirectory(users << 1);
+    }
+
+    // what the cold tier's directory takes for an index of that many users, out of its budget
+    static long coldDirectoryBytes(final int users) {
+        return IdDictionary.ARRAY_HEADER_BYTES + Long.BYTES * (long) users;
+    }
+
+    // row slots, reference bits and the sketch for that many keys
+    private static long hotDirectory(final int keys) {
+        return 2L * IdDictionary.ARRAY_HEADER_BYTES + (Integer.BYTES + 1L) * keys + FrequencySketch.heapBytes(keys);
+    }
+
+    // the tiers for the index, built on first use when nothing was published; null for any other index
+    private Tiers tiers(final SegmentIndex segmentIndex) {
+        final Tiers current = tiers;
+        if (current != null) {
+            return current.segmentIndex == segmentIndex ? current : null;
+        }
+        lock.lock();
+        try {
+            if (tiers == null) {
+                tiers = new Tiers(segmentIndex);
+            }
+            return tiers.segmentIndex == segmentIndex ? tiers : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // TinyLFU admission: CLOCK picks the victims, and each must be looked up less often than the candidate;
+    // nothing is demoted unless the candidate beats every victim it needs room from
+    private void promote(final Tiers current, final SegmentIndex segmentIndex, final int key,
+                         final int[] resolved) {
+        final long bytes = rowBytes(resolved);
+        if (bytes > current.hotRowBudget) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (tiers != current || current.segmentIndex != segmentIndex || current.hot.get(key) != null) {
+                return;
+            }
+            final int frequency = current.sketch.estimate(key);
+            victims.clear();
+            long freed = 0;
+            while (current.hotBytes - freed + bytes > current.hotRowBudget) {
+                final int slot = current.nextVictimSlot();
+                final int victim = current.clockKeys[slot];
+                // marked as empty so that the hand passes it while the promotion is decided
+                current.clockKeys[slot] = ~victim;
+                victims.add(slot);
+                if (current.sketch.estimate(victim) >= frequency) {
+                    current.unmark(victims);
+                    return;
+                }
+                freed += rowBytes(current.hot.get(victim));
+            }
+            current.unmark(victims);
+            for (int i = 0; i < victims.size(); i++) {
+                current.demote(victims.get(i));
+                demotions.increment();
+            }
+            current.addHot(key, resolved, bytes, victims.size() > 0 ? victims.get(0) : -1);
+            promotions.increment();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void admitCold(final Tiers current, final SegmentIndex segmentIndex, final int user,
+                           final int[] row) {
+        final int size = encodedSize(row);
+        if (size > current.coldBlockBytes) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (tiers == current && current.segmentIndex == segmentIndex && current.coldLocations.get(user) == 0) {
+                current.appendCold(user, row, size);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int[] mergeRow(final SegmentIndex segmentIndex, final int user) {
+        final int[] row = new int[SegmentMerger.segmentCapacity(segmentIndex, user)];
+        final SegmentMerger merger = new SegmentMerger();
+        merger.start(row, row.length, null);
+        final int size = merger.mergeUser(segmentIndex, user);
+        return size == row.length ? row : Arrays.copyOf(row, size);
+    }
+
+    private static int[] filter(final int[] row, final SegmentBitmap restricted) {
+        final int[] filtered = new int[row.length];
+        int size = 0;
+        for (final int segment : row) {
+            if (!restricted.contains(segment)) {
+                filtered[size++] = segment;
+            }
+        }
+        return size == filtered.length ? filtered : Arrays.copyOf(filtered, size);
+    }
+
+    private static long rowBytes(final int[] row) {
+        return IdDictionary.ARRAY_HEADER_BYTES + Integer.BYTES * (long) row.length;
+    }
+
+    private static int copy(final int[] segments, final int limit, final int[] out) {
+        final int count = Math.max(0, Math.min(limit, segments.length));
+        System.arraycopy(segments, 0, out, 0, count);
+        return count;
+    }
+
+    // a cold row is its segment count followed by the zigzag encoded differences between neighbours, all
+    // as varints, so rows of close segment IDs take one or two bytes per segment
+    private static int encodedSize(final int[] row) {
+        int size = varintSize(row.length);
+        int previous = 0;
+        for (final int segment : row) {
+            size += varintSize(zigzag(segment - previous));
+            previous = segment;
+        }
+        return size;
+    }
+
+    private static long encode(final MemorySegment memory, final long offset, final int[] row) {
+        long position = writeVarint(memory, offset, row.length);
+        int previous = 0;
+        for (final int segment : row) {
+            position = writeVarint(memory, position, zigzag(segment - previous));
+            previous = segment;
+        }
+        return position;
+    }
+
+    private static int decode(final MemorySegment memory, final long offset, final SegmentBitmap restricted,
+                              final int limit, final int[] out) {
+        long position = offset;
+        int count = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = memory.get(ValueLayout.JAVA_BYTE, position++);
+            count |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        int written = 0;
+        int previous = 0;
+        for (int i = 0; i < count && written < limit; i++) {
+            int value = 0;
+            shift = 0;
+            do {
+                b = memory.get(ValueLayout.JAVA_BYTE, position++);
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            previous += (value >>> 1) ^ -(value & 1);
+            if (restricted == null || !restricted.contains(previous)) {
+                out[written++] = previous;
+            }
+        }
+        return written;
+    }
+
+    private static long readVarint(final MemorySegment memory, final long offset) {
+        long position = offset;
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = memory.get(ValueLayout.JAVA_BYTE, position++);
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return Integer.toUnsignedLong(value);
+    }
+
+    private static long writeVarint(final MemorySegment memory, final long offset, final int value) {
+        long position = offset;
+        int remaining = value;
+        while ((remaining & ~0x7f) != 0) {
+            memory.set(ValueLayout.JAVA_BYTE, position++, (byte) ((remaining & 0x7f) | 0x80));
+            remaining >>>= 7;
+        }
+        memory.set(ValueLayout.JAVA_BYTE, position++, (byte) remaining);
+        return position;
+    }
+
+    private static int varintSize(final int value) {
+        return (38 - Integer.numberOfLeadingZeros(value | 1)) / 7;
+    }
+
+    private static int zigzag(final int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    // bytes taken by the cold row at the offset
+    private static int rowLength(final MemorySegment memory, final long offset) {
+        long position = offset;
+        final int count = (int) readVarint(memory, position);
+        position += varintSize(count);
+        for (int i = 0; i < count; i++) {
+            while (memory.get(ValueLayout.JAVA_BYTE, position++) < 0) {
+                // continuation bytes
+            }
+        }
+        return (int) (position - offset);
+    }
+
+    /**
+     * Lookups answered by each tier since the cache was created, with the current size of each tier.
+     */
+    public record Stats(long hotHits, long coldHits, long misses, long promotions, long demotions, int hotRows,
+                        long hotBytes, int coldRows, long coldBytes) {
+
+        public long lookups() {
+            return hotHits + coldHits + misses;
+        }
+
+        public double hotHitRate() {
+            return lookups() == 0 ? 0 : (double) hotHits / lookups();
+        }
+
+        // share of the lookups that missed the hot tier and were answered by the cold tier
+        public double coldHitRate() {
+            return coldHits + misses == 0 ? 0 : (double) coldHits / (coldHits + misses);
+        }
+    }
+
+    // both tiers for one base index and the overlays published over it; readers only touch the atomic arrays
+    // and the index, everything else changes under the lock
+    private final class Tiers {
+
+        private volatile SegmentIndex segmentIndex;
+        // users known when the tiers were built; users added by deltas later are not cached
+        private final int userCapacity;
+        // what is left of each budget once the directories are paid for; 0 when a tier is off
+        private final long hotRowBudget;
+        private final int coldBlockBytes;
+        private final FrequencySketch sketch;
+        // hot rows and their CLOCK reference bits by key, the user ordinal shifted left once plus the flag;
+        // empty when the hot tier is off
+        private final AtomicReferenceArray<int[]> hot;
+        private final boolean[] referenced;
+        // cold rows by user ordinal: block number in the high half, offset in the low half, 0 when absent;
+        // empty when the cold tier is off
+        private final AtomicLongArray coldLocations;
+        private final AtomicReferenceArray<ColdBlock> coldBlockRing;
+        private int[] clockKeys = new int[64];
+        private int clockSize;
+        private int hand;
+        private volatile long hotBytes;
+        private int hotRows;
+        private ColdBlock writeBlock;
+        private int lastBlockNumber;
+        private int coldRows;
+        private long coldBytes;
+        // users by linked device in the base, built when a delta first changes a device
+        private DeviceUsers baseDeviceUsers;
+
+        private Tiers(final SegmentIndex segmentIndex) {
+            this.segmentIndex = segmentIndex;
+            this.userCapacity = segmentIndex.userCount();
+            final long hotDirectoryBytes = hotDirectoryBytes(userCapacity);
+            final long coldDirectoryBytes = coldDirectoryBytes(userCapacity);
+            this.hotRowBudget = hotBudgetBytes > hotDirectoryBytes ? hotBudgetBytes - hotDirectoryBytes : 0;
+            final long coldRowBudget = coldBudgetBytes > coldDirectoryBytes ? coldBudgetBytes - coldDirectoryBytes : 0;
+            this.coldBlockBytes = (int) Math.min(COLD_BLOCK_BYTES, coldRowBudget);
+            final int coldBlocks = coldBlockBytes == 0 ? 0 : (int) Math.min(coldRowBudget / coldBlockBytes, 1 << 20);
+            // without a hot tier the sketch only decides which cold rows a reclaimed block carries over
+            final int keys = hotRowBudget == 0 ? 0 : userCapacity << 1;
+            this.sketch = new FrequencySketch(keys);
+            this.hot = new AtomicReferenceArray<>(keys);
+            this.referenced = new boolean[keys];
+            this.coldLocations = new AtomicLongArray(coldBlocks == 0 ? 0 : userCapacity);
+            this.coldBlockRing = new AtomicReferenceArray<>(coldBlocks);
+        }
+
+        // cheap check before building a hot row: either there is room, or the key is used often enough to
+        // be compared against a victim
+        private boolean competes(final int key) {
+            return hotRowBudget > 0 && (hotBytes < hotRowBudget || sketch.estimate(key) >= MIN_FREQUENCY);
+        }
+
+        private ColdBlock coldBlock(final long location) {
+            final int number = (int) (location >>> 32);
+            final ColdBlock block = coldBlockRing.get(number % coldBlockRing.length());
+            return block != null && block.number == number ? block : null;
+        }
+
+        private int nextVictimSlot() {
+            while (true) {
+                if (hand >= clockSize) {
+                    hand = 0;
+                }
+                final int slot = hand++;
+                final int key = clockKeys[slot];
+                if (key < 0) {
+                    continue;
+                }
+                if (referenced[key]) {
+                    referenced[key] = false;
+                    continue;
+                }
+                return slot;
+            }
+        }
+
+        // restores the keys of the slots a promotion marked as empty
+        private void unmark(final IntList slots) {
+            for (int i = 0; i < slots.size(); i++) {
+                clockKeys[slots.get(i)] = ~clockKeys[slots.get(i)];
+            }
+        }
+
+        private void demote(final int slot) {
+            final int key = clockKeys[slot];
+            final int[] row = hot.getAndSet(key, null);
+            hotBytes -= rowBytes(row);
+            hotRows--;
+            clockKeys[slot] = -1;
+        }
+
+        // switches to an index over the same base, dropping the rows the change between the two indexes
+        // makes stale: those of users with changed links and of users linked to devices with changed
+        // segments, through the base or through the overlay
+        private void moveTo(final SegmentIndex next) {
+            final SegmentIndex previous = segmentIndex;
+            OverlaySegmentIndex.forEachUserDiffering(previous, next, this::dropUser);
+            final IntHashSet changedDevices = new IntHashSet();
+            final IntList devices = new IntList();
+            OverlaySegmentIndex.forEachDeviceDiffering(previous, next, device -> {
+                changedDevices.add(device);
+                devices.add(device);
+            });
+            if (devices.size() > 0) {
+                if (baseDeviceUsers == null) {
+                    baseDeviceUsers = DeviceUsers.of(OverlaySegmentIndex.baseOf(next));
+                }
+                for (int i = 0; i < devices.size(); i++) {
+                    baseDeviceUsers.forEachUser(devices.get(i), this::dropUser);
+                }
+                if (next instanceof OverlaySegmentIndex overlay) {
+                    overlay.forEachChangedUser(user -> {
+                        for (int i = 0; i < next.linkedDeviceCount(user); i++) {
+                            if (changedDevices.contains(next.linkedDevice(user, i))) {
+                                dropUser(user);
+                                return;
+                            }
+                        }
+                    });
+                }
+            }
+            final boolean restrictedChanged = !Arrays.equals(previous.restrictedSegmentIds(),
+                    next.restrictedSegmentIds());
+            for (int slot = 0; slot < clockSize; slot++) {
+                final int key = clockKeys[slot];
+                if (key >= 0 && hot.get(key) == null) {
+                    clockKeys[slot] = -1;
+                } else if (key >= 0 && restrictedChanged && (key & 1) == 0) {
+                    demote(slot);
+                }
+            }
+            compactClock();
+            segmentIndex = next;
+        }
+
+        private void dropUser(final int user) {
+            if (user >= userCapacity) {
+                return;
+            }
+            for (int key = user << 1; key <= ((user << 1) | 1) && key < hot.length(); key++) {
+                final int[] row = hot.getAndSet(key, null);
+                if (row != null) {
+                    hotBytes -= rowBytes(row);
+                    hotRows--;
+                }
+            }
+            if (coldLocations.length() > 0 && coldLocations.getAndSet(user, 0) != 0) {
+                coldRows--;
+            }
+        }
+
+        private void addHot(final int key, final int[] resolved, final long bytes, final int freeSlot) {
+            int slot = freeSlot;
+            if (slot < 0) {
+                if (clockSize > 2 * hotRows + 64) {
+                    compactClock();
+                }
+                if (clockSize == clockKeys.length) {
+                    clockKeys = Arrays.copyOf(clockKeys, clockKeys.length << 1);
+                }
+                slot = clockSize++;
+            }
+            clockKeys[slot] = key;
+            referenced[key] = false;
+            hotBytes += bytes;
+            hotRows++;
+            hot.set(key, resolved);
+        }
+
+        // drops the slots left empty by demotions that freed more than one slot
+        private void compactClock() {
+            int size = 0;
+            for (int i = 0; i < clockSize; i++) {
+                if (clockKeys[i] >= 0) {
+                    clockKeys[size++] = clockKeys[i];
+                }
+            }
+            clockSize = size;
+            hand = 0;
+        }
+
+        private void appendCold(final int user, final int[] row, final int size) {
+            if (writeBlock == null || writeBlock.used + size > coldBlockBytes) {
+                nextBlock();
+            }
+            final long offset = writeBlock.used;
+            writeBlock.used = (int) encode(writeBlock.memory, offset, row);
+            writeBlock.users.add(user);
+            coldLocations.set(user, ((long) writeBlock.number << 32) | offset);
+            coldRows++;
+            coldBytes += size;
+        }
+
+        // opens a new block in place of the oldest one once the budget is used up, carrying the oldest
+        // block's still used rows over as long as they fill at most half the new block
+        private void nextBlock() {
+            final int number = ++lastBlockNumber;
+            final int slot = number % coldBlockRing.length();
+            final ColdBlock oldest = coldBlockRing.get(slot);
+            writeBlock = new ColdBlock(number, Arena.ofAuto().allocate(coldBlockBytes));
+            coldBlockRing.set(slot, writeBlock);
+            if (oldest == null) {
+                return;
+            }
+            coldBytes -= oldest.used;
+            for (int i = 0; i < oldest.users.size(); i++) {
+                final int user = oldest.users.get(i);
+                final long location = coldLocations.get(user);
+                if ((int) (location >>> 32) != oldest.number) {
+                    continue;
+                }
+                final int offset = (int) location;
+                final int length = rowLength(oldest.memory, offset);
+                if (sketch.estimate(user << 1) + sketch.estimate((user << 1) | 1) >= MIN_FREQUENCY
+                        && writeBlock.used + length <= coldBlockBytes / 2) {
+                    MemorySegment.copy(oldest.memory, offset, writeBlock.memory, writeBlock.used, length);
+                    writeBlock.users.add(user);
+                    coldLocations.set(user, ((long) number << 32) | writeBlock.used);
+                    writeBlock.used += length;
+                    coldBytes += length;
+                } else {
+                    coldLocations.set(user, 0);
+                    coldRows--;
+                }
+            }
+        }
+    }
+
+    // an off-heap block of cold rows, appended to under the lock and freed by the collector once replaced
+    private static final class ColdBlock {
+
+        private final int number;
+        private final MemorySegment memory;
+        private final IntList users = new IntList();
+        private int used;
+
+        private ColdBlock(final int number, final MemorySegment memory) {
+            this.number = number;
+            this.memory = memory;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.in.mem.cache.sys;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AsyncTargetingServiceTest {
+
+    // object under test
+    private AsyncTargetingService service;
+
+    // test values, variables, constants
+    private static final String TEST_ID_1 = "ID19876";
+    private static final String TEST_ID_2 = "ID29876";
+    private static final Duration DEADLINE = Duration.ofSeconds(5);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @BeforeEach
+    public void setUp() {
+        service = AsyncTargetingService.ofVirtualThreads(new TargetingSystem(new CacheImplementation()), 4, DEADLINE);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        release.countDown();
+        service.close();
+    }
+
+    @Test
+    public void whenLookingUpAsynchronously_thenResultMatchesSynchronousLookup() throws Exception {
+        // when
+        int[] result = service.lookup(TEST_ID_1, false, 3).get(5, TimeUnit.SECONDS);
+        SegmentBatch batch = service.lookupBatch(Arrays.asList(TEST_ID_1, TEST_ID_2), true, 2, DEADLINE)
+                .get(5, TimeUnit.SECONDS);
+
+        // then
+        assertThat(result, is(equalTo(new int[]{11112, 11113, 11114})));
+        assertThat(batch.offsets(), is(equalTo(new int[]{0, 2, 4})));
+        assertThat(service.availablePermits(), is(4));
+    }
+
+    @Test
+    public void whenAllPermitsAreTaken_thenFurtherLookupsAreRejected() throws Exception {
+        // given
+        service.close();
+        service = new AsyncTargetingService(new TargetingSystem(blockingCache()),
+                Executors.newVirtualThreadPerTaskExecutor(), 1, DEADLINE);
+        CompletableFuture<int[]> blocked = service.lookup(TEST_ID_1, true, 3);
+
+        // when
+        CompletableFuture<int[]> rejected = service.lookup(TEST_ID_2, true, 3);
+
+        // then
+        ExecutionException e = assertThrows(ExecutionException.class, () -> rejected.get(5, TimeUnit.SECONDS));
+        assertThat(e.getCause(), is(instanceOf(RejectedExecutionException.class)));
+        release.countDown();
+        assertThat(blocked.get(5, TimeUnit.SECONDS).length, is(0));
+    }
+
+    @Test
+    public void whenDeadlinePasses_thenLookupTimesOut() {
+        // given
+        service.close();
+        service = new AsyncTargetingService(new TargetingSystem(blockingCache()),
+                Executors.newVirtualThreadPerTaskExecutor(), 1, DEADLINE);
+
+        // when
+        CompletableFuture<int[]> result = service.lookup(TEST_ID_1, true, 3, Duration.ofMillis(50));
+
+        // then
+        ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertThat(e.getCause(), is(instanceOf(TimeoutException.class)));
+    }
+
+    @Test
+    public void whenSubscriberRequestsOneAtATime_thenPublisherHonoursDemand() throws Exception {
+        // given
+        List<String> ids = Arrays.asList(TEST_ID_1, "unknown", TEST_ID_2);
+        List<int[]> received = new ArrayList<>();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        CountDownLatch finished = new CountDownLatch(1);
+
+        // when
+        service.publish(ids, false, 2).subscribe(new Flow.Subscriber<>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(int[] segments) {
+                received.add(segments);
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error.set(throwable);
+                finished.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                finished.countDown();
+            }
+        });
+
+        // then
+        assertThat(finished.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(error.get(), is(nullValue()));
+        assertThat(received.size(), is(3));
+        assertThat(received.get(0), is(equalTo(new int[]{11112, 11113})));
+        assertThat(received.get(1), is(equalTo(new int[0])));
+        assertThat(service.availablePermits(), is(4));
+    }
+
+    @Test
+    public void whenNoPermitIsLeft_thenThePublisherSignalsTheRejection() throws Exception {
+        // given
+        service.close();
+        service = AsyncTargetingService.ofVirtualThreads(new TargetingSystem(blockingCache()), 1, DEADLINE);
+        CompletableFuture<int[]> blocked = service.lookup(TEST_ID_1, false, 3);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        CountDownLatch finished = new CountDownLatch(1);
+
+        // when
+        service.publish(Arrays.asList(TEST_ID_1), false, 3).subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(int[] segments) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error.set(throwable);
+                finished.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                finished.countDown();
+            }
+        });
+
+        // then
+        assertThat(finished.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(error.get(), is(instanceOf(RejectedExecutionException.class)));
+        release.countDown();
+        assertThat(blocked.get(5, TimeUnit.SECONDS).length, is(0));
+        assertThat(service.availablePermits(), is(1));
+    }
+
+    @Test
+    public void whenNothingIsToBeLookedUp_thenThePublisherCompletesWithoutARequest() throws Exception {
+        // given
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+
+        // when
+        service.publish(List.of(), false, 3).subscribe(subscriber);
+
+        // then
+        assertThat(subscriber.finished.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(subscriber.error.get(), is(nullValue()));
+        assertThat(service.availablePermits(), is(4));
+    }
+
+    @Test
+    public void whenANonPositiveAmountIsRequested_thenTheErrorIsSignalledByThePublisher() throws Exception {
+        // given
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+
+        // when
+        service.publish(Arrays.asList(TEST_ID_1, TEST_ID_2), false, 3).subscribe(subscriber);
+        subscriber.subscription.request(0);
+
+        // then
+        assertThat(subscriber.finished.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(subscriber.error.get(), is(instanceOf(IllegalArgumentException.class)));
+        assertThat(subscriber.signalThread.get() == Thread.currentThread(), is(false));
+        assertThat(service.availablePermits(), is(4));
+    }
+
+    // requests nothing by itself and records how the subscription ends
+    private static final class RecordingSubscriber implements Flow.Subscriber<int[]> {
+
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private final AtomicReference<Thread> signalThread = new AtomicReference<>();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(int[] segments) {
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error.set(throwable);
+            signalThread.set(Thread.currentThread());
+            finished.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            signalThread.set(Thread.currentThread());
+            finished.countDown();
+        }
+    }
+
+    // a cache whose ID lookups wait until the test releases them
+    private Cache blockingCache() {
+        Cache cache = mock(Cache.class);
+        when(cache.getRestrictedSegments()).thenReturn(new ArrayList<>());
+        when(cache.lookupIdMappings(anyString())).thenAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            return new ArrayList<String>();
+        });
+        return cache;
+    }
+}
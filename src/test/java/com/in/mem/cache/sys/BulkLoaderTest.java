@@ -0,0 +1,133 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThan;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class BulkLoaderTest {
+
+    // test values, variables, constants
+    private static final int USERS = 200;
+    private static final int DEVICES_PER_USER = 3;
+    private static final int TINY_CHUNK_SIZE = 64;
+    private static final int ROW_CACHE_CAPACITY = 16;
+
+    @TempDir
+    Path dataDirectory;
+
+    @Test
+    public void whenLoadingInSmallChunks_thenEveryLineIsParsedOnce() throws IOException {
+        // given
+        writeTestData();
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        // when
+        BulkLoader loader = new BulkLoader(pool, TINY_CHUNK_SIZE);
+        SegmentIndex index = loader.load(dataDirectory.resolve("idmappings.txt"),
+                dataDirectory.resolve("segmentdata.txt"), dataDirectory.resolve("restrictedsegments.txt"));
+        pool.shutdown();
+
+        // then
+        assertThat(index.userCount(), is(USERS));
+        assertThat(index.deviceCount(), is(USERS * DEVICES_PER_USER));
+        for (int u = 0; u < USERS; u++) {
+            int user = index.userOrdinal("user" + u);
+            assertThat(index.linkedDeviceCount(user), is(DEVICES_PER_USER));
+            for (int d = 0; d < DEVICES_PER_USER; d++) {
+                int device = index.linkedDevice(user, d);
+                assertThat(index.deviceId(device), is(equalTo("device" + u + "_" + d)));
+                assertThat(index.segmentCount(device), is(2));
+                assertThat(index.segment(device, 0), is(u * 10 + d));
+                assertThat(index.segment(device, 1), is(-1));
+            }
+        }
+        assertThat(index.restrictedSegmentIds(), is(equalTo(new int[]{5, 15})));
+        assertThat(loader.loadStats().files().get(1).chunks(), is(greaterThan(1)));
+        assertThat(loader.loadStats().files().get(1).records(), is((long) USERS * DEVICES_PER_USER));
+    }
+
+    @Test
+    public void whenLoadingLazily_thenRowsAreParsedOnDemandAndMatchAFullLoad() throws IOException {
+        // given
+        writeTestData();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        BulkLoader loader = new BulkLoader(pool, TINY_CHUNK_SIZE);
+        SegmentIndex full = loader.load(dataDirectory.resolve("idmappings.txt"),
+                dataDirectory.resolve("segmentdata.txt"), dataDirectory.resolve("restrictedsegments.txt"));
+
+        // when
+        LazySegmentIndex lazy = loader.loadLazy(dataDirectory.resolve("idmappings.txt"),
+                dataDirectory.resolve("segmentdata.txt"), dataDirectory.resolve("restrictedsegments.txt"),
+                ROW_CACHE_CAPACITY);
+        pool.shutdown();
+
+        // then
+        assertThat(lazy.cachedRows(), is(0));
+        assertThat(lazy.deviceCount(), is(full.deviceCount()));
+        for (int device = 0; device < full.deviceCount(); device++) {
+            assertThat(lazy.deviceId(device), is(equalTo(full.deviceId(device))));
+            assertThat(lazy.segmentCount(device), is(full.segmentCount(device)));
+            for (int i = 0; i < full.segmentCount(device); i++) {
+                assertThat(lazy.segment(device, i), is(full.segment(device, i)));
+            }
+        }
+        assertThat(lazy.cachedRows(), is(ROW_CACHE_CAPACITY));
+        assertThat(lazy.rowCacheMisses(), is((long) USERS * DEVICES_PER_USER));
+        assertThat(lazy.restrictedSegmentIds(), is(equalTo(new int[]{5, 15})));
+        assertThat(loader.loadStats().files().get(1).records(), is((long) USERS * DEVICES_PER_USER));
+    }
+
+    @Test
+    public void whenLazyRowsAreEvictedAndReadAgain_thenEveryReadMatchesAFullLoad() throws IOException {
+        // given
+        writeTestData();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        BulkLoader loader = new BulkLoader(pool, TINY_CHUNK_SIZE);
+        SegmentIndex full = loader.load(dataDirectory.resolve("idmappings.txt"),
+                dataDirectory.resolve("segmentdata.txt"), dataDirectory.resolve("restrictedsegments.txt"));
+        LazySegmentIndex lazy = loader.loadLazy(dataDirectory.resolve("idmappings.txt"),
+                dataDirectory.resolve("segmentdata.txt"), dataDirectory.resolve("restrictedsegments.txt"),
+                ROW_CACHE_CAPACITY);
+        pool.shutdown();
+
+        // when a few hot devices are read between scattered cold ones
+        for (int i = 0; i < 2_000; i++) {
+            int device = i % 3 == 0 ? i % 5 : (i * 37) % full.deviceCount();
+
+            // then
+            assertThat(lazy.segmentCount(device), is(full.segmentCount(device)));
+            assertThat(lazy.segment(device, 0), is(full.segment(device, 0)));
+        }
+        assertThat(lazy.cachedRows(), is(ROW_CACHE_CAPACITY));
+        assertThat(lazy.rowCacheHits(), is(greaterThan(0L)));
+    }
+
+    private void writeTestData() throws IOException {
+        List<String> idMappings = new ArrayList<>();
+        List<String> segmentData = new ArrayList<>();
+        for (int u = 0; u < USERS; u++) {
+            List<String> devices = new ArrayList<>();
+            for (int d = 0; d < DEVICES_PER_USER; d++) {
+                devices.add("device" + u + "_" + d);
+                segmentData.add("device" + u + "_" + d + ":" + (u * 10 + d) + ",-1\r");
+            }
+            idMappings.add("user" + u + ":" + String.join(",", devices));
+        }
+        idMappings.add("no delimiter on this line");
+        Files.write(dataDirectory.resolve("idmappings.txt"), idMappings);
+        Files.write(dataDirectory.resolve("segmentdata.txt"), segmentData);
+        Files.writeString(dataDirectory.resolve("restrictedsegments.txt"), "5\n15");
+    }
+}
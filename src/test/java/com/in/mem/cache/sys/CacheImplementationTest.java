@@ -0,0 +1,198 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CacheImplementationTest {
+
+    // object under test
+    private CacheImplementation cache;
+
+    // test values, variables, constants
+    private static final String TEST_ID_1 = "ID19876";
+    private static final String TEST_DEVICE_ID_1 = "device12345";
+    private static final String UNKNOWN_ID = "ID00000";
+
+    @TempDir
+    Path dataDirectory;
+
+    @BeforeEach
+    public void setUp() {
+        cache = new CacheImplementation();
+    }
+
+    @Test
+    public void whenLookingUpIdMappings_thenLinkedDevicesAreReturnedInFileOrder() {
+        // when
+        List<String> result = cache.lookupIdMappings(TEST_ID_1);
+
+        // then
+        assertThat(result, is(equalTo(Arrays.asList("device12345", "device13456", "device14567",
+                "device15678"))));
+    }
+
+    @Test
+    public void whenLookingUpUnknownIds_thenNullIsReturned() {
+        // then
+        assertThat(cache.lookupIdMappings(UNKNOWN_ID), is(nullValue()));
+        assertThat(cache.lookupSegments(UNKNOWN_ID), is(nullValue()));
+        assertThat(cache.lookupSegments("device15678"), is(nullValue()));
+    }
+
+    @Test
+    public void whenLookingUpSegments_thenBoxedAndPrimitiveViewsMatch() {
+        // when
+        List<Integer> boxed = cache.lookupSegments(TEST_DEVICE_ID_1);
+        int[] primitive = cache.lookupSegmentIds(TEST_DEVICE_ID_1);
+
+        // then
+        assertThat(boxed, is(equalTo(Arrays.asList(11111, 11112, 11113, 11114, 11115, 11110, 88880))));
+        assertThat(primitive, is(equalTo(new int[]{11111, 11112, 11113, 11114, 11115, 11110, 88880})));
+    }
+
+    @Test
+    public void whenWalkingSegmentIndex_thenDeviceOrdinalsAreSharedBetweenMappingsAndSegments() {
+        // given
+        SegmentIndex index = cache.segmentIndex();
+        int user = index.userOrdinal(TEST_ID_1);
+
+        // when
+        int device = index.linkedDevice(user, 0);
+
+        // then
+        assertThat(index.deviceId(device), is(TEST_DEVICE_ID_1));
+        assertThat(index.deviceOrdinal(TEST_DEVICE_ID_1), is(device));
+        assertThat(index.segmentCount(device), is(7));
+        assertThat(index.segment(device, 6), is(88880));
+        assertThat(index.userCount(), is(3));
+    }
+
+    @Test
+    public void whenReloading_thenNewGenerationIsPublishedAndOldIndexStaysReadable() throws IOException {
+        // given
+        copyTestData();
+        CacheImplementation reloadableCache = new CacheImplementation(dataDirectory);
+        SegmentIndex oldIndex = reloadableCache.segmentIndex();
+        Files.writeString(dataDirectory.resolve("segmentdata.txt"), "device12345:99999\n");
+
+        // when
+        long generation = reloadableCache.reload();
+
+        // then
+        assertThat(generation, is(2L));
+        assertThat(reloadableCache.generation(), is(2L));
+        assertThat(reloadableCache.lookupSegmentIds(TEST_DEVICE_ID_1), is(equalTo(new int[]{99999})));
+        assertThat(oldIndex.segmentCount(oldIndex.deviceOrdinal(TEST_DEVICE_ID_1)), is(7));
+        reloadableCache.close();
+    }
+
+    @Test
+    public void whenReloadFails_thenCurrentGenerationIsKept() throws IOException {
+        // given
+        copyTestData();
+        CacheImplementation reloadableCache = new CacheImplementation(dataDirectory);
+        Files.delete(dataDirectory.resolve("restrictedsegments.txt"));
+
+        // then
+        assertThrows(IOException.class, reloadableCache::reload);
+        assertThat(reloadableCache.generation(), is(1L));
+        assertThat(reloadableCache.lookupSegments(TEST_DEVICE_ID_1).size(), is(7));
+        reloadableCache.close();
+    }
+
+    @Test
+    public void whenLoadingLazily_thenLookupsMatchAnEagerLoad() throws IOException {
+        // given
+        copyTestData();
+        Files.writeString(dataDirectory.resolve("segmentdata.txt"), "\ndevice12345:77777\n",
+                StandardOpenOption.APPEND);
+
+        // when
+        CacheImplementation eagerCache = new CacheImplementation(dataDirectory);
+        CacheImplementation lazyCache = CacheImplementation.lazy(dataDirectory, 2);
+
+        // then
+        for (String id : Arrays.asList(TEST_ID_1, "ID29876", "ID39876", UNKNOWN_ID)) {
+            assertThat(new TargetingSystem(lazyCache).lookupUserSegments(id, false, 100),
+                    is(equalTo(new TargetingSystem(eagerCache).lookupUserSegments(id, false, 100))));
+        }
+        assertThat(lazyCache.lookupSegmentIds(TEST_DEVICE_ID_1)[7], is(77777));
+        eagerCache.close();
+        lazyCache.close();
+    }
+
+    @Test
+    public void whenTheLazilyMappedFileIsRewrittenInPlace_thenRowsNotReadYetFailCleanly() throws IOException {
+        // given one device row already decoded
+        copyTestData();
+        CacheImplementation lazyCache = CacheImplementation.lazy(dataDirectory, 16);
+        int[] decoded = lazyCache.lookupSegmentIds(TEST_DEVICE_ID_1);
+
+        // when the file is truncated and rewritten through the same inode
+        Files.writeString(dataDirectory.resolve("segmentdata.txt"), "device12345:1\n");
+
+        // then
+        IllegalStateException error = assertThrows(IllegalStateException.class,
+                () -> lazyCache.lookupSegmentIds("device44567"));
+        assertThat(error.getMessage().contains("modified in place"), is(true));
+        assertThat(lazyCache.lookupSegmentIds(TEST_DEVICE_ID_1), is(equalTo(decoded)));
+        lazyCache.close();
+    }
+
+    @Test
+    public void whenTheLazilyMappedFileIsReplacedByAMove_thenTheMappedRowsStayReadable() throws IOException {
+        // given
+        copyTestData();
+        CacheImplementation lazyCache = CacheImplementation.lazy(dataDirectory, 16);
+        CacheImplementation eagerCache = new CacheImplementation(dataDirectory);
+
+        // when
+        Path replacement = dataDirectory.resolve("segmentdata.new");
+        Files.writeString(replacement, "device44567:1\n");
+        Files.move(replacement, dataDirectory.resolve("segmentdata.txt"), StandardCopyOption.REPLACE_EXISTING);
+
+        // then
+        assertThat(lazyCache.lookupSegmentIds("device44567"), is(equalTo(eagerCache.lookupSegmentIds("device44567"))));
+        eagerCache.close();
+        lazyCache.close();
+    }
+
+    @Test
+    public void whenLoadedLazily_thenAudienceQueriesAreRejected() throws IOException {
+        // given
+        copyTestData();
+        CacheImplementation lazyCache = CacheImplementation.lazy(dataDirectory, 2);
+
+        // when
+        TargetingSystem targetingSystem = new TargetingSystem(lazyCache);
+        lazyCache.applyDeltas(List.of(Delta.addSegment(TEST_DEVICE_ID_1, 77777)));
+
+        // then
+        assertThrows(UnsupportedOperationException.class, () -> targetingSystem.lookupSegmentAudience(77777));
+        lazyCache.close();
+    }
+
+    private void copyTestData() throws IOException {
+        Path resources = Path.of(getClass().getClassLoader().getResource("idmappings.txt").getPath()).getParent();
+        for (String file : Arrays.asList("idmappings.txt", "segmentdata.txt", "restrictedsegments.txt")) {
+            Files.copy(resources.resolve(file), dataDirectory.resolve(file));
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class DeltaFeedTest {
+
+    // object under test
+    private CacheImplementation cache;
+
+    // test values, variables, constants
+    private static final String TEST_ID_1 = "ID19876";
+    private static final String TEST_DEVICE_ID_1 = "device12345";
+    private static final String NEW_ID = "ID40000";
+    private static final String NEW_DEVICE_ID = "device40000";
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    public void setUp() {
+        cache = new CacheImplementation();
+    }
+
+    @Test
+    public void whenParsingFeedLines_thenDeltasRoundTrip() {
+        // given
+        List<String> lines = Arrays.asList("+segment device1:11111", "-segment device1:11111", "+link ID1:device1",
+                "-link ID1:device1", "+restricted 11111", "-restricted 11111");
+
+        // then
+        for (String line : lines) {
+            assertThat(Delta.parse(line).toString(), is(line));
+        }
+        assertThrows(IllegalArgumentException.class, () -> Delta.parse("+segment device1"));
+        assertThrows(IllegalArgumentException.class, () -> Delta.parse("*link ID1:device1"));
+    }
+
+    @Test
+    public void whenApplyingDeltas_thenOnlyChangedRowsDiffer() {
+        // given
+        SegmentIndex before = cache.segmentIndex();
+
+        // when
+        long generation = cache.applyDeltas(Arrays.asList(
+                Delta.removeSegment(TEST_DEVICE_ID_1, 11112),
+                Delta.addSegment(TEST_DEVICE_ID_1, 99999),
+                Delta.addSegment(NEW_DEVICE_ID, 12345),
+                Delta.linkDevice(NEW_ID, NEW_DEVICE_ID),
+                Delta.unlinkDevice(TEST_ID_1, "device13456"),
+                Delta.removeRestricted(11111)));
+
+        // then
+        assertThat(generation, is(2L));
+        assertThat(cache.lookupSegmentIds(TEST_DEVICE_ID_1),
+                is(equalTo(new int[]{11111, 11113, 11114, 11115, 11110, 88880, 99999})));
+        assertThat(cache.lookupIdMappings(NEW_ID), is(equalTo(Arrays.asList(NEW_DEVICE_ID))));
+        assertThat(cache.lookupIdMappings(TEST_ID_1), is(equalTo(Arrays.asList("device12345", "device14567",
+                "device15678"))));
+        assertThat(new TargetingSystem(cache).lookupUserSegments(NEW_ID, false, 10),
+                is(equalTo(Arrays.asList(12345))));
+        assertThat(new TargetingSystem(cache).lookupUserSegments(TEST_ID_1, false, 2),
+                is(equalTo(Arrays.asList(11111, 11113))));
+        assertThat(before.segmentCount(before.deviceOrdinal(TEST_DEVICE_ID_1)), is(7));
+    }
+
+    @Test
+    public void whenManyBatchesAreApplied_thenEachGenerationKeepsItsOwnRows() {
+        // given
+        SegmentIndex first = null;
+
+        // when
+        for (int i = 0; i < 200; i++) {
+            cache.applyDeltas(Arrays.asList(Delta.linkDevice(NEW_ID, "device" + i), Delta.addSegment("device" + i, i),
+                    Delta.addSegment(TEST_DEVICE_ID_1, 100_000 + i)));
+            if (first == null) {
+                first = cache.segmentIndex();
+            }
+        }
+        SegmentIndex last = cache.segmentIndex();
+
+        // then
+        assertThat(first.linkedDeviceCount(first.userOrdinal(NEW_ID)), is(1));
+        assertThat(first.deviceOrdinal("device199"), is(-1));
+        assertThat(first.segmentCount(first.deviceOrdinal(TEST_DEVICE_ID_1)), is(8));
+        assertThat(last.linkedDeviceCount(last.userOrdinal(NEW_ID)), is(200));
+        assertThat(last.segmentCount(last.deviceOrdinal(TEST_DEVICE_ID_1)), is(207));
+        for (int i = 0; i < 200; i++) {
+            int device = last.deviceOrdinal("device" + i);
+            assertThat(last.deviceId(device), is("device" + i));
+            assertThat(last.linkedDevice(last.userOrdinal(NEW_ID), i), is(device));
+            assertThat(last.segment(device, 0), is(i));
+        }
+        assertThat(PackedSegmentIndex.copyOf(last).segmentCount(last.deviceOrdinal("device7")), is(1));
+    }
+
+    @Test
+    public void whenFeedIsTailedAndCompacted_thenStateMatchesAndBaseIsPacked() throws IOException {
+        // given
+        Path feedFile = directory.resolve("deltas.log");
+        DeltaFeed feed = new DeltaFeed(feedFile);
+        Files.writeString(feedFile, "+segment device12345:99999\n# comment\n+link ID19876:device9");
+
+        // when
+        cache.applyDeltas(feed);
+        Files.writeString(feedFile, "\n+segment device9:77\n", StandardOpenOption.APPEND);
+        cache.applyDeltas(feed);
+        Collection<Integer> beforeCompaction = new TargetingSystem(cache).lookupUserSegments(TEST_ID_1, true, 100);
+        long generation = cache.compact();
+
+        // then
+        assertThat(generation, is(4L));
+        assertThat(cache.segmentIndex(), is(instanceOf(PackedSegmentIndex.class)));
+        assertThat(new TargetingSystem(cache).lookupUserSegments(TEST_ID_1, true, 100), is(equalTo(beforeCompaction)));
+        assertThat(cache.lookupSegmentIds("device9"), is(equalTo(new int[]{77})));
+        assertThat(feed.position(), is(Files.size(feedFile)));
+    }
+
+    @Test
+    public void whenBatchesArriveDuringACompaction_thenNoneIsLost() throws IOException {
+        // given
+        cache.setCompactionThreshold(Integer.MAX_VALUE);
+        cache.applyDeltas(List.of(Delta.addSegment("device7", 0)));
+
+        // when
+        CompletableFuture<Long> compaction = cache.compactAsync();
+        for (int segment = 1; segment < 500; segment++) {
+            cache.applyDeltas(List.of(Delta.addSegment("device7", segment)));
+        }
+        compaction.join();
+        int[] afterConcurrentCompaction = cache.lookupSegmentIds("device7");
+        cache.compact();
+
+        // then
+        assertThat(afterConcurrentCompaction, is(equalTo(IntStream.range(0, 500).toArray())));
+        assertThat(cache.segmentIndex(), is(instanceOf(PackedSegmentIndex.class)));
+        assertThat(cache.lookupSegmentIds("device7"), is(equalTo(IntStream.range(0, 500).toArray())));
+    }
+
+    @Test
+    public void whenTheFeedIsLargerThanAChunk_thenLinesAcrossChunkEndsAreReadWhole() throws IOException {
+        // given lines cut by every 64 KiB chunk end, one of them longer than a chunk
+        Path feedFile = directory.resolve("deltas.log");
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            lines.append("+segment device").append(i).append(':').append(i).append('\n');
+        }
+        String longDeviceId = "device" + "9".repeat(100_000);
+        lines.append("+segment ").append(longDeviceId).append(":7\n+segment device1:2");
+        Files.writeString(feedFile, lines);
+        DeltaFeed feed = new DeltaFeed(feedFile);
+
+        // when
+        List<Delta> polled = feed.poll();
+        List<Delta> replayed = feed.replay(0);
+
+        // then
+        assertThat(polled.size(), is(10_001));
+        assertThat(polled.get(9_999).toString(), is("+segment device9999:9999"));
+        assertThat(polled.get(10_000), is(equalTo(Delta.addSegment(longDeviceId, 7))));
+        assertThat(replayed, is(equalTo(polled)));
+        assertThat(feed.position(), is(Files.size(feedFile) - "+segment device1:2".length()));
+    }
+
+    @Test
+    public void whenAFeedLineIsMalformed_thenItIsReportedOnceAndTheFeedCarriesOn() throws IOException {
+        // given
+        Path feedFile = directory.resolve("deltas.log");
+        DeltaFeed feed = new DeltaFeed(feedFile);
+        Files.writeString(feedFile, "+segment device12345:99999\n+segment device12345\n+segment device12345:88888\n");
+
+        // when
+        long beforeBadLine = cache.applyDeltas(feed);
+        IOException error = assertThrows(IOException.class, () -> cache.applyDeltas(feed));
+        long afterBadLine = cache.applyDeltas(feed);
+
+        // then
+        assertThat(beforeBadLine, is(2L));
+        assertThat(error.getMessage(), is(equalTo("Invalid delta at offset 27 of " + feedFile)));
+        assertThat(afterBadLine, is(3L));
+        assertThat(feed.position(), is(Files.size(feedFile)));
+        assertThat(cache.lookupSegmentIds(TEST_DEVICE_ID_1),
+                is(equalTo(new int[]{11111, 11112, 11113, 11114, 11115, 11110, 88880, 99999, 88888})));
+        assertThat(feed.replay(0), is(equalTo(Arrays.asList(Delta.addSegment(TEST_DEVICE_ID_1, 99999),
+                Delta.addSegment(TEST_DEVICE_ID_1, 88888)))));
+    }
+
+    @Test
+    public void whenACompactedSnapshotIsLoaded_thenOnlyTheFeedAfterItIsReplayed() throws IOException {
+        // given
+        Path dataDirectory = Path.of(getClass().getClassLoader().getResource("idmappings.txt").getPath()).getParent();
+        Path snapshotFile = directory.resolve("cache.snapshot");
+        Path feedFile = directory.resolve("deltas.log");
+        CacheImplementation firstStart = new CacheImplementation(dataDirectory, snapshotFile);
+        DeltaFeed feed = new DeltaFeed(feedFile);
+        Files.writeString(feedFile, "+segment device12345:99999\n");
+        firstStart.applyDeltas(feed);
+        firstStart.compact();
+
+        // when the compacted lines change, which only a replay from the start would pick up
+        Files.writeString(feedFile, "+segment device12345:55555\n+segment device9:77\n");
+        firstStart.reload();
+        firstStart.applyDeltas(feed);
+        CacheImplementation secondStart = new CacheImplementation(dataDirectory, snapshotFile);
+        secondStart.applyDeltas(new DeltaFeed(feedFile));
+
+        // then
+        for (CacheImplementation started : Arrays.asList(firstStart, secondStart)) {
+            assertThat(started.lookupSegmentIds(TEST_DEVICE_ID_1),
+                    is(equalTo(new int[]{11111, 11112, 11113, 11114, 11115, 11110, 88880, 99999})));
+            assertThat(started.lookupSegmentIds("device9"), is(equalTo(new int[]{77})));
+        }
+        assertThat(SegmentSnapshot.feedPosition(SegmentSnapshot.open(snapshotFile,
+                SegmentSnapshot.fingerprint(dataDirectory.resolve("idmappings.txt"),
+                        dataDirectory.resolve("segmentdata.txt"), dataDirectory.resolve("restrictedsegments.txt")))),
+                is(27L));
+    }
+
+    @Test
+    public void whenDeltasInNoFeedAreCompacted_thenTheSnapshotIsNotRewritten() throws IOException {
+        // given
+        Path dataDirectory = Path.of(getClass().getClassLoader().getResource("idmappings.txt").getPath()).getParent();
+        Path snapshotFile = directory.resolve("cache.snapshot");
+        CacheImplementation firstStart = new CacheImplementation(dataDirectory, snapshotFile);
+
+        // when
+        firstStart.applyDeltas(Arrays.asList(Delta.addSegment(TEST_DEVICE_ID_1, 99999)));
+        firstStart.compact();
+        CacheImplementation secondStart = new CacheImplementation(dataDirectory, snapshotFile);
+
+        // then
+        assertThat(firstStart.lookupSegmentIds(TEST_DEVICE_ID_1).length, is(8));
+        assertThat(secondStart.lookupSegmentIds(TEST_DEVICE_ID_1).length, is(7));
+    }
+
+    @Test
+    public void whenDeltasAreReplayed_thenResultIsUnchanged() {
+        // given
+        List<Delta> deltas = Arrays.asList(Delta.addSegment(TEST_DEVICE_ID_1, 1), Delta.removeSegment(TEST_DEVICE_ID_1, 1),
+                Delta.addRestricted(11112), Delta.linkDevice(TEST_ID_1, NEW_DEVICE_ID));
+        cache.applyDeltas(deltas);
+        Collection<Integer> first = new TargetingSystem(cache).lookupUserSegments(TEST_ID_1, false, 100);
+
+        // when
+        cache.applyDeltas(deltas);
+
+        // then
+        assertThat(new TargetingSystem(cache).lookupUserSegments(TEST_ID_1, false, 100), is(equalTo(first)));
+        assertThat(cache.lookupIdMappings(TEST_ID_1).size(), is(5));
+    }
+}
@@ -0,0 +1,106 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class LookupMetricsTest {
+
+    // object under test
+    private LookupMetrics metrics;
+
+    // test values, variables, constants
+    private static final String TEST_ID_1 = "ID19876";
+    private CacheImplementation cache;
+
+    @BeforeEach
+    public void setUp() {
+        metrics = new LookupMetrics();
+        cache = new CacheImplementation();
+    }
+
+    @Test
+    public void whenLookingUpThroughTargetingSystem_thenLookupsMergesAndMissesAreRecorded() {
+        // given
+        TargetingSystem targetingSystem = new TargetingSystem(cache, null, metrics);
+
+        // when
+        targetingSystem.lookupUserSegments(TEST_ID_1, false, 100);
+        targetingSystem.lookupUserSegments("unknown", false, 100);
+
+        // then
+        assertThat(metrics.getLookups(), is(1L));
+        assertThat(metrics.getMisses(), is(1L));
+        assertThat(metrics.latency().count(), is(2L));
+        assertThat(metrics.getDevicesPerLookup(), is(4.0));
+        assertThat(metrics.getSegmentsBeforeDedup(), is(19L));
+        assertThat(metrics.getSegmentsAfterDedup(), is(15L));
+        assertThat(metrics.getRestrictedHitRate(), is(closeTo(2 / 19d, 1e-9)));
+    }
+
+    @Test
+    public void whenRecorderIsAttachedToCache_thenLoadAndFootprintAreExposedOverJmx() throws Exception {
+        // given
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        // when
+        cache.setMetricsRecorder(metrics);
+        ObjectName name = metrics.register("test-" + System.nanoTime());
+
+        // then
+        assertThat(server.getAttribute(name, "Loads"), is(1L));
+        assertThat(metrics.getHeapBytes(), hasKey("segments"));
+        assertThat(metrics.getHeapBytes().get("users"), is(greaterThan(0L)));
+        assertThat(metrics.getOffHeapBytes().values().stream().mapToLong(Long::longValue).sum(), is(0L));
+        server.unregisterMBean(name);
+    }
+
+    @Test
+    public void whenDeltasAreCompacted_thenTheCompactionIsRecorded() throws IOException {
+        // given
+        cache.setMetricsRecorder(metrics);
+        cache.applyDeltas(List.of(Delta.addSegment("device12345", 99999)));
+
+        // when
+        cache.compact();
+
+        // then
+        assertThat(metrics.getCompactions(), is(1L));
+        assertThat(metrics.getLoads(), is(1L));
+        assertThat(metrics.getLastCompactionMillis(), is(greaterThan(0d)));
+        assertThat(metrics.getHeapBytes(), hasKey("segments"));
+        assertThat(metrics.getHeapBytes().containsKey("overlay"), is(false));
+    }
+
+    @Test
+    public void whenRecordingLatencies_thenPercentilesAreWithinBucketPrecision() {
+        // given
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        // when
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1_000);
+        }
+
+        // then
+        assertThat(histogram.count(), is(100_000L));
+        assertThat((double) histogram.valueAtPercentile(0.5), is(closeTo(50_000_000, 50_000_000 * 0.016)));
+        assertThat((double) histogram.valueAtPercentile(0.99), is(closeTo(99_000_000, 99_000_000 * 0.016)));
+        assertThat(histogram.valueAtPercentile(1.0), is(lessThanOrEqualTo((long) (100_000_000 * 1.016))));
+        assertThat(histogram.mean(), is(closeTo(50_000_500, 1)));
+    }
+}
@@ -0,0 +1,85 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import static org.hamcrest.Matchers.greaterThan;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class OffHeapCacheTest {
+
+    // test values, variables, constants
+    private static final String TEST_ID_1 = "ID19876";
+    private static final List<Integer> EXPECTED_SEGMENTS = Arrays.asList(11112, 11113, 11114);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void whenLoadedOffHeap_thenLookupsMatchHeapCache() throws IOException {
+        // given
+        try (OffHeapCache cache = OffHeapCache.load(dataDirectory())) {
+            // when
+            Collection<Integer> result = new TargetingSystem(cache).lookupUserSegments(TEST_ID_1, false, 3);
+
+            // then
+            assertThat(result, is(equalTo(EXPECTED_SEGMENTS)));
+            assertThat(cache.lookupIdMappings(TEST_ID_1), is(equalTo(new CacheImplementation().lookupIdMappings(TEST_ID_1))));
+        }
+    }
+
+    @Test
+    public void whenSnapshotIsOpenedOffHeap_thenLookupsWorkUntilClosed() throws IOException {
+        // given
+        Path snapshotFile = directory.resolve("cache.snapshot");
+        SegmentSnapshot.write(new CacheImplementation().segmentIndex(), snapshotFile, 0L);
+        OffHeapCache cache = OffHeapCache.open(snapshotFile);
+
+        // when
+        Collection<Integer> result = new TargetingSystem(cache).lookupUserSegments(TEST_ID_1, false, 3);
+        cache.close();
+
+        // then
+        assertThat(result, is(equalTo(EXPECTED_SEGMENTS)));
+        assertThrows(IllegalStateException.class, () -> cache.segmentIndex().userOrdinal(TEST_ID_1));
+    }
+
+    @Test
+    public void whenSnapshotIsOpenedOffHeap_thenOnlyRestrictedSegmentsAreOnTheHeap() throws IOException {
+        // given
+        Path snapshotFile = directory.resolve("cache.snapshot");
+        SegmentSnapshot.write(new CacheImplementation().segmentIndex(), snapshotFile, 0L);
+        LookupMetrics metrics = new LookupMetrics();
+
+        // when
+        try (OffHeapCache cache = OffHeapCache.open(snapshotFile)) {
+            cache.setMetricsRecorder(metrics);
+
+            // then
+            for (final Map.Entry<String, Long> structure : metrics.getHeapBytes().entrySet()) {
+                if (!structure.getKey().equals("restricted")) {
+                    assertThat(structure.getKey(), structure.getValue(), is(0L));
+                }
+            }
+            assertThat(metrics.getOffHeapBytes().get("segments"), is(greaterThan(0L)));
+            assertThat(metrics.getLoads(), is(0L));
+        }
+    }
+
+    private Path dataDirectory() {
+        return Path.of(getClass().getClassLoader().getResource("idmappings.txt").getPath()).getParent();
+    }
+}
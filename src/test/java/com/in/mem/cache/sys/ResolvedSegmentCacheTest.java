@@ -0,0 +1,241 @@
+package com.in.mem.cache.sys;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import com.sun.management.ThreadMXBean;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class ResolvedSegmentCacheTest {
+
+    // object under test
+    private ResolvedSegmentCache resolvedSegmentCache;
+
+    // test values, variables, constants
+    private static final String TEST_ID_1 = "ID19876";
+    private SegmentIndex segmentIndex;
+
+    @BeforeEach
+    public void setUp() {
+        resolvedSegmentCache = new ResolvedSegmentCache(2);
+        segmentIndex = new CacheImplementation().segmentIndex();
+    }
+
+    @Test
+    public void whenResolvingTwice_thenMaterializedArrayIsReused() {
+        // given
+        int user = segmentIndex.userOrdinal(TEST_ID_1);
+
+        // when
+        int[] first = resolvedSegmentCache.resolve(segmentIndex, user, false);
+        int[] second = resolvedSegmentCache.resolve(segmentIndex, user, false);
+
+        // then
+        assertThat(second, is(sameInstance(first)));
+        assertThat(resolvedSegmentCache.resolve(segmentIndex, user, true), is(not(sameInstance(first))));
+        assertThat(first.length, is(15));
+    }
+
+    @Test
+    public void whenCapacityIsExceeded_thenEntriesAreEvicted() {
+        // when
+        resolvedSegmentCache.preload(segmentIndex, true);
+        resolvedSegmentCache.resolve(segmentIndex, 2, true);
+
+        // then
+        assertThat(resolvedSegmentCache.size(), is(2));
+    }
+
+    @Test
+    public void whenIndexChanges_thenEntriesAreInvalidated() {
+        // given
+        int user = segmentIndex.userOrdinal(TEST_ID_1);
+        int[] first = resolvedSegmentCache.resolve(segmentIndex, user, true);
+        SegmentIndex reloadedIndex = new CacheImplementation().segmentIndex();
+
+        // when
+        int[] second = resolvedSegmentCache.resolve(reloadedIndex, user, true);
+
+        // then
+        assertThat(second, is(not(sameInstance(first))));
+        assertThat(second, is(equalTo(first)));
+        assertThat(resolvedSegmentCache.size(), is(1));
+    }
+
+    @Test
+    public void whenLookingUpThroughTargetingSystem_thenLimitIsAppliedToResolvedSegments() {
+        // given
+        TargetingSystem targetingSystem = new TargetingSystem(new CacheImplementation(), resolvedSegmentCache);
+        List<Integer> expectedResult = Arrays.asList(11112, 11113, 11114);
+
+        // when
+        Collection<Integer> result = targetingSystem.lookupUserSegments(TEST_ID_1, false, 3);
+        Collection<Integer> repeated = targetingSystem.lookupUserSegments(TEST_ID_1, false, 3);
+
+        // then
+        assertThat(result, is(equalTo(expectedResult)));
+        assertThat(repeated, is(equalTo(expectedResult)));
+        assertThat(resolvedSegmentCache.size(), is(1));
+    }
+
+    @Test
+    public void whenEntriesAreEvictedRepeatedly_thenEveryLookupReturnsItsOwnUsersSegments() {
+        // given
+        ResolvedSegmentCache small = new ResolvedSegmentCache(3);
+        ResolvedSegmentCache reference = new ResolvedSegmentCache(segmentIndex.userCount() * 2);
+        int users = Math.min(segmentIndex.userCount(), 40);
+
+        // when
+        boolean matching = true;
+        for (int i = 0; i < 2_000; i++) {
+            int user = (i * 7 + i / 13) % users;
+            boolean allowRestricted = (i & 1) == 0;
+            matching &= Arrays.equals(small.resolve(segmentIndex, user, allowRestricted),
+                    reference.resolve(segmentIndex, user, allowRestricted));
+        }
+
+        // then
+        assertThat(matching, is(true));
+        assertThat(small.size(), is(3));
+    }
+
+    @Test
+    public void whenResolvingAHit_thenNothingIsAllocated() {
+        // given
+        ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        int user = segmentIndex.userOrdinal(TEST_ID_1);
+        long checksum = 0;
+        for (int i = 0; i < 50_000; i++) {
+            checksum += resolvedSegmentCache.resolve(segmentIndex, user, (i & 1) == 0).length;
+        }
+
+        // when
+        long before = threadMXBean.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 10_000; i++) {
+            checksum += resolvedSegmentCache.resolve(segmentIndex, user, (i & 1) == 0).length;
+        }
+        long allocated = threadMXBean.getCurrentThreadAllocatedBytes() - before;
+
+        // then
+        assertThat(checksum > 0, is(true));
+        assertThat(allocated, is(0L));
+    }
+
+    @Test
+    public void whenGenerationsInterleave_thenEachLookupSeesOnlyItsOwnRows() {
+        // given two generations that give the two users swapped ordinals
+        SegmentIndex older = PackedSegmentIndex.builder()
+                .linkDevice("first", "device1").linkDevice("second", "device2")
+                .addSegments("device1", new int[]{1, 2}).addSegments("device2", new int[]{3})
+                .build();
+        SegmentIndex newer = PackedSegmentIndex.builder()
+                .linkDevice("second", "device2").linkDevice("first", "device1")
+                .addSegments("device2", new int[]{3}).addSegments("device1", new int[]{1, 2})
+                .build();
+        resolvedSegmentCache.resolve(older, 0, true);
+        int[][] olderDuringNewer = new int[1][];
+        SegmentIndex interleaving = new InterleavingIndex(newer,
+                () -> olderDuringNewer[0] = resolvedSegmentCache.resolve(older, 0, true));
+
+        // when
+        int[] newerResult = resolvedSegmentCache.resolve(interleaving, 0, true);
+        int[] olderResult = resolvedSegmentCache.resolve(older, 0, true);
+
+        // then
+        assertThat(newerResult, is(equalTo(new int[]{3})));
+        assertThat(olderDuringNewer[0], is(equalTo(new int[]{1, 2})));
+        assertThat(olderResult, is(equalTo(new int[]{1, 2})));
+        assertThat(resolvedSegmentCache.resolve(interleaving, 0, true), is(equalTo(new int[]{3})));
+    }
+
+    // runs the interleaved lookup once, in the middle of the first merge against the index
+    private static final class InterleavingIndex implements SegmentIndex {
+
+        private final SegmentIndex delegate;
+        private Runnable interleaved;
+
+        private InterleavingIndex(final SegmentIndex delegate, final Runnable interleaved) {
+            this.delegate = delegate;
+            this.interleaved = interleaved;
+        }
+
+        @Override
+        public int linkedDeviceCount(final int user) {
+            if (interleaved != null) {
+                final Runnable running = interleaved;
+                interleaved = null;
+                running.run();
+            }
+            return delegate.linkedDeviceCount(user);
+        }
+
+        @Override
+        public int userCount() {
+            return delegate.userCount();
+        }
+
+        @Override
+        public int deviceCount() {
+            return delegate.deviceCount();
+        }
+
+        @Override
+        public int userOrdinal(final String userId) {
+            return delegate.userOrdinal(userId);
+        }
+
+        @Override
+        public int deviceOrdinal(final String deviceId) {
+            return delegate.deviceOrdinal(deviceId);
+        }
+
+        @Override
+        public String userId(final int user) {
+            return delegate.userId(user);
+        }
+
+        @Override
+        public String deviceId(final int device) {
+            return delegate.deviceId(device);
+        }
+
+        @Override
+        public int linkedDevice(final int user, final int index) {
+            return delegate.linkedDevice(user, index);
+        }
+
+        @Override
+        public int segmentCount(final int device) {
+            return delegate.segmentCount(device);
+        }
+
+        @Override
+        public int segment(final int device, final int index) {
+            return delegate.segment(device, index);
+        }
+
+        @Override
+        public int[] restrictedSegmentIds() {
+            return delegate.restrictedSegmentIds();
+        }
+
+        @Override
+        public SegmentBitmap restrictedBitmap() {
+            return delegate.restrictedBitmap();
+        }
+    }
+}
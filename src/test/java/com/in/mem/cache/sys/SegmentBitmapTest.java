@@ -0,0 +1,91 @@
+package com.in.mem.cache.sys;
+
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class SegmentBitmapTest {
+
+    // test values, variables, constants
+    private static final int[] RESTRICTED = {11111, 22222, 33333, 44444, 55555};
+    private final SplittableRandom random = new SplittableRandom(7);
+
+    @Test
+    public void whenBuildingFromUnsortedIds_thenMembershipAndOrderMatch() {
+        // when
+        SegmentBitmap bitmap = SegmentBitmap.of(new int[]{55555, 11111, -3, 33333, 11111, Integer.MIN_VALUE,
+                Integer.MAX_VALUE, 0});
+
+        // then
+        assertThat(bitmap.toArray(), is(equalTo(new int[]{Integer.MIN_VALUE, -3, 0, 11111, 33333, 55555,
+                Integer.MAX_VALUE})));
+        assertThat(bitmap.cardinality(), is(7));
+        assertThat(bitmap.contains(-3), is(true));
+        assertThat(bitmap.contains(22222), is(false));
+        assertThat(SegmentBitmap.of(RESTRICTED).contains(44444), is(true));
+    }
+
+    @Test
+    public void whenCombiningSets_thenResultsMatchASortedSet() {
+        for (int round = 0; round < 50; round++) {
+            // given
+            int[] left = randomIds();
+            int[] right = randomIds();
+            TreeSet<Integer> leftSet = toSet(left);
+            TreeSet<Integer> rightSet = toSet(right);
+
+            // when
+            SegmentBitmap a = SegmentBitmap.of(left);
+            SegmentBitmap b = SegmentBitmap.of(right);
+
+            // then
+            TreeSet<Integer> and = new TreeSet<>(leftSet);
+            and.retainAll(rightSet);
+            TreeSet<Integer> or = new TreeSet<>(leftSet);
+            or.addAll(rightSet);
+            TreeSet<Integer> andNot = new TreeSet<>(leftSet);
+            andNot.removeAll(rightSet);
+            assertThat(a.toArray(), is(equalTo(toArray(leftSet))));
+            assertThat(a.and(b).toArray(), is(equalTo(toArray(and))));
+            assertThat(a.or(b).toArray(), is(equalTo(toArray(or))));
+            assertThat(a.andNot(b).toArray(), is(equalTo(toArray(andNot))));
+            for (int i = 0; i < 100; i++) {
+                int probe = left[random.nextInt(left.length)] + random.nextInt(-2, 3);
+                assertThat(a.contains(probe), is(leftSet.contains(probe)));
+            }
+        }
+    }
+
+    // a mix of dense ranges, sparse IDs and near-full groups, so all three container kinds are exercised
+    private int[] randomIds() {
+        int[] ids = new int[random.nextInt(1, 20_000)];
+        int size = 0;
+        while (size < ids.length) {
+            int kind = random.nextInt(3);
+            int start = random.nextInt(-200_000, 400_000);
+            int length = Math.min(ids.length - size, kind == 0 ? random.nextInt(1, 40) : random.nextInt(1, 6000));
+            for (int i = 0; i < length; i++) {
+                ids[size++] = kind == 1 ? random.nextInt(-200_000, 400_000) : kind == 2 ? start + 2 * i : start + i;
+            }
+        }
+        return ids;
+    }
+
+    private static TreeSet<Integer> toSet(int[] ids) {
+        TreeSet<Integer> set = new TreeSet<>();
+        for (int id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+
+    private static int[] toArray(TreeSet<Integer> set) {
+        return set.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
@@ -0,0 +1,160 @@
+package com.in.mem.cache.sys;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SegmentServerTest {
+
+    // object under test
+    private SegmentServer server;
+
+    // test values, variables, constants
+    private static final String TEST_ID_1 = "ID19876";
+    private static final String TEST_ID_2 = "ID29876";
+    private CacheImplementation cache;
+    private TargetingSystem targetingSystem;
+    private Socket socket;
+    private DataInputStream in;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        cache = new CacheImplementation();
+        targetingSystem = new TargetingSystem(cache);
+        server = SegmentServer.start(targetingSystem, new InetSocketAddress("127.0.0.1", 0), 2);
+        socket = new Socket(server.address().getAddress(), server.address().getPort());
+        socket.setSoTimeout(5_000);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        socket.close();
+        server.close();
+        cache.close();
+    }
+
+    @Test
+    public void whenTheServerStarts_thenEachEventLoopThreadHasItsOwnName() {
+        // when
+        List<String> names = Thread.getAllStackTraces().keySet().stream()
+                .map(Thread::getName)
+                .filter(name -> name.startsWith("segment-server-"))
+                .sorted()
+                .toList();
+
+        // then
+        assertThat(names, is(List.of("segment-server-0", "segment-server-1")));
+    }
+
+    @Test
+    public void whenRequestsArePipelined_thenResponsesComeBackInRequestOrder() throws IOException {
+        // given
+        List<List<String>> requests = List.of(List.of(TEST_ID_1), List.of(TEST_ID_2, "unknown", TEST_ID_1),
+                List.of());
+        ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+        DataOutputStream frames = new DataOutputStream(pipelined);
+        for (final List<String> ids : requests) {
+            SegmentProtocol.writeFrame(frames, SegmentProtocol.encodeLookup(ids, ids.size() > 1, 4));
+        }
+
+        // when
+        socket.getOutputStream().write(pipelined.toByteArray());
+
+        // then
+        for (final List<String> ids : requests) {
+            SegmentBatch result = SegmentProtocol.decodeBatch(SegmentProtocol.readFrame(in), ids.size());
+            SegmentBatch expected = targetingSystem.lookupUserSegmentsBatch(ids, ids.size() > 1, 4);
+            assertThat(result.offsets(), is(equalTo(expected.offsets())));
+            assertThat(result.segments(), is(equalTo(expected.segments())));
+        }
+    }
+
+    @Test
+    public void whenAResponseOutgrowsTheBuffers_thenItIsStillSentWhole() throws IOException {
+        // given
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            ids.add(i % 2 == 0 ? TEST_ID_1 : TEST_ID_2);
+        }
+
+        // when
+        SegmentProtocol.writeFrame(new DataOutputStream(socket.getOutputStream()),
+                SegmentProtocol.encodeLookup(ids, true, Integer.MAX_VALUE));
+        SegmentBatch result = SegmentProtocol.decodeBatch(SegmentProtocol.readFrame(in), ids.size());
+
+        // then
+        assertThat(result.segments(), is(equalTo(
+                targetingSystem.lookupUserSegmentsBatch(ids, true, Integer.MAX_VALUE).segments())));
+    }
+
+    @Test
+    public void whenPipelinedResponsesOutgrowTheQueue_thenTheRestAreAnsweredOnceTheyDrain() throws Exception {
+        // given requests whose responses, about 150 KiB each, are far more than the server queues at once
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            ids.add(TEST_ID_2);
+        }
+        byte[] request = SegmentProtocol.encodeLookup(ids, true, Integer.MAX_VALUE);
+        int requests = 40;
+        Thread writer = Thread.ofVirtual().start(() -> {
+            try {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                for (int i = 0; i < requests; i++) {
+                    SegmentProtocol.writeFrame(out, request);
+                }
+                out.flush();
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        // when the client only starts reading once the server has stopped
+        Thread.sleep(200);
+        List<SegmentBatch> results = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            results.add(SegmentProtocol.decodeBatch(SegmentProtocol.readFrame(in), ids.size()));
+        }
+        writer.join();
+
+        // then
+        int[] expected = targetingSystem.lookupUserSegmentsBatch(ids, true, Integer.MAX_VALUE).segments();
+        for (final SegmentBatch result : results) {
+            assertThat(result.segments(), is(equalTo(expected)));
+        }
+    }
+
+    @Test
+    public void whenAFrameIsMalformed_thenAnErrorIsSentAndTheConnectionClosed() throws IOException {
+        // given
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+        // when
+        SegmentProtocol.writeFrame(out, new byte[]{42, 0, 0, 0});
+
+        // then
+        IOException error = assertThrows(IOException.class,
+                () -> SegmentProtocol.decodeBatch(SegmentProtocol.readFrame(in), 0));
+        assertThat(error.getMessage(), is(equalTo("shard error: unknown opcode 42")));
+        assertThat(SegmentProtocol.readFrame(in), is(nullValue()));
+    }
+}
@@ -0,0 +1,126 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SegmentSnapshotTest {
+
+    // test values, variables, constants
+    private static final long FINGERPRINT = 42L;
+    private static final String UNICODE_USER_ID = "IDä1";
+
+    @TempDir
+    Path directory;
+
+    private Path snapshotFile;
+    private SegmentIndex sourceIndex;
+
+    @BeforeEach
+    public void setUp() {
+        snapshotFile = directory.resolve("cache.snapshot");
+        sourceIndex = new CacheImplementation().segmentIndex();
+    }
+
+    @Test
+    public void whenSnapshotIsWrittenAndMapped_thenIndexContentsMatch() throws IOException {
+        // when
+        SegmentSnapshot.write(sourceIndex, snapshotFile, FINGERPRINT);
+        SegmentSnapshot.verify(snapshotFile);
+        SegmentIndex mappedIndex = SegmentSnapshot.open(snapshotFile, FINGERPRINT);
+
+        // then
+        assertThat(mappedIndex, is(instanceOf(OffHeapSegmentIndex.class)));
+        assertIndexesMatch(mappedIndex, sourceIndex);
+        assertThat(mappedIndex.userOrdinal("ID00000"), is(-1));
+    }
+
+    @Test
+    public void whenIdsAreNotAscii_thenTheyAreStillFound() throws IOException {
+        // given
+        SegmentIndex index = PackedSegmentIndex.builder()
+                .linkDevice(UNICODE_USER_ID, "device1")
+                .addSegments("device1", new int[]{1, 2})
+                .build();
+
+        // when
+        SegmentSnapshot.write(index, snapshotFile, FINGERPRINT);
+        SegmentIndex mappedIndex = SegmentSnapshot.open(snapshotFile, FINGERPRINT);
+
+        // then
+        assertThat(mappedIndex.userOrdinal(UNICODE_USER_ID), is(0));
+        assertThat(mappedIndex.userId(0), is(UNICODE_USER_ID));
+    }
+
+    @Test
+    public void whenFingerprintDiffers_thenSnapshotIsRejected() throws IOException {
+        // given
+        SegmentSnapshot.write(sourceIndex, snapshotFile, FINGERPRINT);
+
+        // then
+        assertThrows(IOException.class, () -> SegmentSnapshot.open(snapshotFile, FINGERPRINT + 1));
+    }
+
+    @Test
+    public void whenPayloadIsCorrupted_thenVerificationFails() throws IOException {
+        // given
+        SegmentSnapshot.write(sourceIndex, snapshotFile, FINGERPRINT);
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}), SegmentSnapshot.HEADER_SIZE);
+        }
+
+        // then
+        assertThrows(IOException.class, () -> SegmentSnapshot.verify(snapshotFile));
+    }
+
+    @Test
+    public void whenCacheStartsWithSnapshot_thenSecondStartMapsIt() throws IOException {
+        // given
+        Path dataDirectory = Path.of(getClass().getClassLoader().getResource("idmappings.txt").getPath()).getParent();
+
+        // when
+        CacheImplementation firstStart = new CacheImplementation(dataDirectory, snapshotFile);
+        CacheImplementation secondStart = new CacheImplementation(dataDirectory, snapshotFile);
+
+        // then
+        assertThat(Files.exists(snapshotFile), is(true));
+        assertThat(firstStart.segmentIndex(), is(instanceOf(PackedSegmentIndex.class)));
+        assertThat(secondStart.segmentIndex(), is(instanceOf(OffHeapSegmentIndex.class)));
+        assertThat(secondStart.lookupIdMappings("ID19876"), is(equalTo(firstStart.lookupIdMappings("ID19876"))));
+    }
+
+    private static void assertIndexesMatch(SegmentIndex actual, SegmentIndex expected) {
+        assertThat(actual.userCount(), is(expected.userCount()));
+        assertThat(actual.deviceCount(), is(expected.deviceCount()));
+        assertThat(actual.restrictedSegmentIds(), is(equalTo(expected.restrictedSegmentIds())));
+        for (int user = 0; user < expected.userCount(); user++) {
+            assertThat(actual.userOrdinal(expected.userId(user)), is(user));
+            assertThat(actual.linkedDeviceCount(user), is(expected.linkedDeviceCount(user)));
+            for (int i = 0; i < expected.linkedDeviceCount(user); i++) {
+                assertThat(actual.linkedDevice(user, i), is(expected.linkedDevice(user, i)));
+            }
+        }
+        for (int device = 0; device < expected.deviceCount(); device++) {
+            assertThat(actual.deviceOrdinal(expected.deviceId(device)), is(device));
+            assertThat(actual.segmentCount(device), is(expected.segmentCount(device)));
+            for (int i = 0; i < expected.segmentCount(device); i++) {
+                assertThat(actual.segment(device, i), is(expected.segment(device, i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.in.mem.cache.sys;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ShardedCacheTest {
+
+    // object under test
+    private ShardedTargetingClient client;
+
+    // test values, variables, constants
+    private static final int USERS = 300;
+    private static final int REPLICAS = 2;
+    private static final int VIRTUAL_NODES = 64;
+    private final Map<String, ShardServer> servers = new HashMap<>();
+    private HashRing ring;
+    private CacheImplementation fullCache;
+    private TargetingSystem fullTargetingSystem;
+
+    @TempDir
+    Path dataDirectory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        writeDataSet();
+        fullCache = new CacheImplementation(dataDirectory);
+        fullTargetingSystem = new TargetingSystem(fullCache);
+        ring = new HashRing(List.of("shard-a", "shard-b", "shard-c"), VIRTUAL_NODES);
+        for (final String shard : ring.shards()) {
+            servers.put(shard, ShardServer.start(shard, ring, REPLICAS, dataDirectory, 0));
+        }
+        client = new ShardedTargetingClient(ring, addresses(), REPLICAS);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        client.close();
+        for (final ShardServer server : servers.values()) {
+            server.close();
+        }
+        fullCache.close();
+    }
+
+    @Test
+    public void whenShardsLoadTheirSlices_thenEachHoldsOnlyTheUsersItOwns() {
+        for (final ShardServer server : servers.values()) {
+            // when
+            SegmentIndex segmentIndex = server.segmentIndex();
+
+            // then
+            assertThat(segmentIndex.userCount(), is(greaterThan(0)));
+            assertThat(segmentIndex.userCount(), is(lessThan(USERS)));
+            for (int user = 0; user < segmentIndex.userCount(); user++) {
+                assertThat(ring.owners(segmentIndex.userId(user), REPLICAS).contains(server.shardId()), is(true));
+            }
+        }
+    }
+
+    @Test
+    public void whenAShardIsBoundToAnAddress_thenItServesThereAndReplicasAreValidated() throws IOException {
+        // given
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+        // when
+        ShardServer bound = ShardServer.start("shard-a", ring, REPLICAS, dataDirectory, address);
+
+        // then
+        assertThat(bound.address().getAddress(), is(equalTo(InetAddress.getLoopbackAddress())));
+        assertThat(bound.address().getPort(), is(greaterThan(0)));
+        bound.close();
+        assertThrows(IllegalArgumentException.class,
+                () -> ShardServer.start("shard-a", ring, 0, dataDirectory, address));
+        assertThrows(IllegalArgumentException.class, () -> new ShardedTargetingClient(ring, addresses(), 0));
+    }
+
+    @Test
+    public void whenLookingUpThroughTheClient_thenResultsMatchTheUnshardedCache() throws IOException {
+        for (int user = 0; user < USERS; user += 7) {
+            // when
+            int[] result = client.lookupUserSegments(userId(user), false, 4);
+
+            // then
+            assertThat(result, is(equalTo(unshardedLookup(List.of(userId(user)), false, 4).segmentsOf(0))));
+        }
+    }
+
+    @Test
+    public void whenLookingUpABatch_thenResultsAreReturnedInRequestOrder() throws IOException {
+        // given
+        List<String> ids = allUserIds();
+        ids.add(2, "unknown");
+
+        // when
+        SegmentBatch result = client.lookupUserSegmentsBatch(ids, true, 5);
+
+        // then
+        SegmentBatch expected = unshardedLookup(ids, true, 5);
+        assertThat(result.offsets(), is(equalTo(expected.offsets())));
+        assertThat(result.segments(), is(equalTo(expected.segments())));
+    }
+
+    @Test
+    public void whenAShardGoesDown_thenItsUsersAreServedByReplicas() throws IOException {
+        // given
+        client.lookupUserSegmentsBatch(allUserIds(), false, 3);
+        servers.remove("shard-b").close();
+
+        // when
+        SegmentBatch result = client.lookupUserSegmentsBatch(allUserIds(), false, 3);
+
+        // then
+        assertThat(result.segments(), is(equalTo(unshardedLookup(allUserIds(), false, 3).segments())));
+    }
+
+    @Test
+    public void whenAShardIsAdded_thenUsersMoveToItAfterRebalancing() throws IOException {
+        // given
+        HashRing grown = ring.withShard("shard-d");
+        servers.put("shard-d", ShardServer.start("shard-d", grown, REPLICAS, dataDirectory, 0));
+
+        // when
+        client.rebalance(grown, addresses());
+        for (final String shard : ring.shards()) {
+            servers.get(shard).rebalance(grown);
+        }
+        SegmentBatch result = client.lookupUserSegmentsBatch(allUserIds(), true, 10);
+
+        // then
+        assertThat(servers.get("shard-d").segmentIndex().userCount(), is(greaterThan(0)));
+        int held = 0;
+        for (final ShardServer server : servers.values()) {
+            held += server.segmentIndex().userCount();
+        }
+        assertThat(held, is(USERS * REPLICAS));
+        assertThat(result.segments(), is(equalTo(unshardedLookup(allUserIds(), true, 10).segments())));
+    }
+
+    @Test
+    public void whenAShardAnswersWithAnError_thenTheCallFailsWithoutTryingTheReplicas() throws IOException {
+        // given
+        AtomicInteger requests = new AtomicInteger();
+        try (ServerSocket failing = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread.ofVirtual().start(() -> answerWithErrors(failing, requests));
+            HashRing pair = new HashRing(List.of("shard-x", "shard-y"), VIRTUAL_NODES);
+            InetSocketAddress address = (InetSocketAddress) failing.getLocalSocketAddress();
+            try (ShardedTargetingClient failingClient = new ShardedTargetingClient(pair,
+                    Map.of("shard-x", address, "shard-y", address), REPLICAS)) {
+
+                // when
+                ShardErrorException error = assertThrows(ShardErrorException.class,
+                        () -> failingClient.lookupUserSegments(userId(1), false, 3));
+
+                // then
+                assertThat(error.getMessage(), is("shard error: rejected"));
+                assertThat(requests.get(), is(1));
+            }
+        }
+    }
+
+    // serves every connection accepted on the socket, answering each request with an error
+    private static void answerWithErrors(final ServerSocket serverSocket, final AtomicInteger requests) {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread.ofVirtual().start(() -> {
+                    try (socket; DataInputStream in = new DataInputStream(socket.getInputStream());
+                         DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+                        while (SegmentProtocol.readFrame(in) != null) {
+                            requests.incrementAndGet();
+                            SegmentProtocol.writeFrame(out, SegmentProtocol.encodeError("rejected"));
+                        }
+                    } catch (final IOException e) {
+                        // the client went away
+                    }
+                });
+            } catch (final IOException e) {
+                return;
+            }
+        }
+    }
+
+    private SegmentBatch unshardedLookup(final List<String> ids, final boolean allowRestrictedSegments,
+                                         final int segmentLimit) {
+        return fullTargetingSystem.lookupUserSegmentsBatch(ids, allowRestrictedSegments, segmentLimit);
+    }
+
+    private Map<String, InetSocketAddress> addresses() {
+        Map<String, InetSocketAddress> addresses = new HashMap<>();
+        for (final ShardServer server : servers.values()) {
+            addresses.put(server.shardId(), server.address());
+        }
+        return addresses;
+    }
+
+    private static String userId(final int user) {
+        return "ID" + user;
+    }
+
+    private static List<String> allUserIds() {
+        List<String> ids = new ArrayList<>();
+        for (int user = 0; user < USERS; user++) {
+            ids.add(userId(user));
+        }
+        return ids;
+    }
+
+    // two devices per user, four segments per device, every tenth segment restricted
+    private void writeDataSet() throws IOException {
+        List<String> idMappings = new ArrayList<>();
+        List<String> segmentData = new ArrayList<>();
+        List<String> restrictedSegments = new ArrayList<>();
+        for (int user = 0; user < USERS; user++) {
+            idMappings.add(userId(user) + ":device" + (2 * user) + ",device" + (2 * user + 1));
+        }
+        for (int device = 0; device < 2 * USERS; device++) {
+            segmentData.add("device" + device + ":" + (device % 50) + "," + (device % 31 + 100) + ","
+                    + (device % 7 + 200) + "," + (device % 50));
+        }
+        for (int segment = 0; segment < 50; segment += 10) {
+            restrictedSegments.add(String.valueOf(segment));
+        }
+        Files.write(dataDirectory.resolve("idmappings.txt"), idMappings);
+        Files.write(dataDirectory.resolve("segmentdata.txt"), segmentData);
+        Files.write(dataDirectory.resolve("restrictedsegments.txt"), restrictedSegments);
+    }
+}
@@ -1,5 +1,6 @@
 package com.in.mem.cache.sys;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -8,6 +9,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.sun.management.ThreadMXBean;
+
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -17,6 +20,8 @@ import static org.hamcrest.CoreMatchers.notNullValue;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -73,6 +78,63 @@ public class TargetingSystemTest {
         assertThat(result, is(equalTo(expectedResult)));
     }
 
+    @Test
+    public void whenQueryingSegmentAudience_thenUsersInOneSegmentAndNotAnotherAreReturned() {
+        // given
+        TargetingSystem system = new TargetingSystem(new CacheImplementation());
+
+        // when
+        List<String> audience = system.lookupSegmentAudience(88880);
+        List<String> narrowed = system.lookupSegmentAudience(88880, 11110);
+
+        // then
+        assertThat(audience, is(equalTo(Arrays.asList(TEST_ID_1, TEST_ID_2, TEST_ID_3))));
+        assertThat(narrowed, is(equalTo(Arrays.asList(TEST_ID_2, TEST_ID_3))));
+        assertThat(system.lookupSegmentAudience(22228), is(equalTo(List.of(TEST_ID_2))));
+        assertThat(system.lookupSegmentAudience(12345).size(), is(0));
+    }
+
+    @Test
+    public void whenDeltasArePublished_thenTheAudienceFollowsThemAndMatchesAFullBuild() {
+        // given
+        CacheImplementation cache = new CacheImplementation();
+        TargetingSystem system = new TargetingSystem(cache);
+        system.lookupSegmentAudience(88880);
+
+        // when
+        cache.applyDeltas(List.of(Delta.removeSegment("device22345", 88880),
+                Delta.removeSegment("device24567", 88880), Delta.addSegment("device12345", 22228)));
+        List<String> afterFirst = system.lookupSegmentAudience(88880);
+        cache.applyDeltas(List.of(Delta.linkDevice("ID49876", "device99999"), Delta.addSegment("device99999", 88880),
+                Delta.unlinkDevice(TEST_ID_3, "device33456")));
+
+        // then
+        assertThat(afterFirst, is(equalTo(Arrays.asList(TEST_ID_1, TEST_ID_3))));
+        assertThat(system.lookupSegmentAudience(88880), is(equalTo(Arrays.asList(TEST_ID_1, TEST_ID_3, "ID49876"))));
+        assertThat(system.lookupSegmentAudience(22228), is(equalTo(Arrays.asList(TEST_ID_1, TEST_ID_2))));
+        SegmentAudienceIndex full = SegmentAudienceIndex.build(cache.segmentIndex());
+        for (final int segment : new int[]{88880, 22228, 11110, 55556, 12345}) {
+            assertThat(system.audienceIndex().audience(segment).toArray(),
+                    is(equalTo(full.audience(segment).toArray())));
+        }
+    }
+
+    @Test
+    public void whenLookingUpUserSegmentSet_thenItHoldsTheDistinctUnrestrictedSegments() {
+        // given
+        TargetingSystem system = new TargetingSystem(new CacheImplementation());
+        int[] ordered = system.lookupUserSegments(TEST_ID_2, false, 1000).stream()
+                .mapToInt(Integer::intValue).sorted().toArray();
+
+        // when
+        SegmentBitmap result = system.lookupUserSegmentSet(TEST_ID_2, false);
+
+        // then
+        assertThat(result.toArray(), is(equalTo(ordered)));
+        assertThat(result.contains(33333), is(false));
+        assertThat(system.lookupUserSegmentSet(TEST_ID_2, true).contains(33333), is(true));
+    }
+
     @Test
     public void test_whenLookingUpUserSegmentsForTestId_1_withCacheMock_thenSegmentsAreReturned() {
         // given
@@ -260,6 +322,113 @@ public class TargetingSystemTest {
         assertThat(result, is(Collections.emptyList()));
     }
 
+    @Test
+    public void lookupUserSegments_segmentLimit_exceedsAvailableSegments_thenAllDeDupedSegmentsAreReturned() {
+        // given
+        List<Integer> expectedResult = Arrays.asList(11112, 11113, 11114, 11115, 11110, 88880, 11116,
+                11117, 11118, 11119, 88885, 22221, 22223, 22224, 22225);
+
+        when(cacheMock.lookupIdMappings(TEST_ID_1)).thenReturn(idMappings.get(TEST_ID_1));
+        when(cacheMock.getRestrictedSegments()).thenReturn(restrictedSegments);
+        when(cacheMock.lookupSegments(anyString())).thenAnswer(invocation -> segmentData.get(invocation.getArgument(0)));
+
+        // when
+        Collection<Integer> mockResult = targetingSystem.lookupUserSegments(TEST_ID_1, false, 100);
+        Collection<Integer> cacheResult = new TargetingSystem(new CacheImplementation())
+                .lookupUserSegments(TEST_ID_1, false, 100);
+
+        // then
+        assertThat(mockResult, is(equalTo(expectedResult)));
+        assertThat(cacheResult, is(equalTo(expectedResult)));
+    }
+
+    @Test
+    public void lookupUserSegmentsBatch_withCacheMock_thenRestrictedSegmentsAreReadOnce() {
+        // given
+        when(cacheMock.lookupIdMappings(anyString())).thenAnswer(invocation -> idMappings.get(invocation.getArgument(0)));
+        when(cacheMock.getRestrictedSegments()).thenReturn(restrictedSegments);
+        when(cacheMock.lookupSegments(anyString())).thenAnswer(invocation -> segmentData.get(invocation.getArgument(0)));
+
+        // when
+        SegmentBatch result = targetingSystem.lookupUserSegmentsBatch(
+                Arrays.asList(TEST_ID_1, "unknown", TEST_ID_2, TEST_ID_1), false, 3);
+
+        // then
+        verify(cacheMock).getRestrictedSegments();
+
+        assertThat(result.size(), is(4));
+        assertThat(result.offsets(), is(equalTo(new int[]{0, 3, 3, 6, 9})));
+        assertThat(result.segmentsOf(0), is(equalTo(new int[]{11112, 11113, 11114})));
+        assertThat(result.segmentsOf(2), is(equalTo(new int[]{22226, 22227, 22228})));
+        assertThat(result.segmentsOf(3), is(equalTo(result.segmentsOf(0))));
+    }
+
+    @Test
+    public void lookupUserSegmentsBatch_inParallel_thenResultsMatchSingleLookups() {
+        // given
+        TargetingSystem cacheTargetingSystem = new TargetingSystem(new CacheImplementation());
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            ids.add(Arrays.asList(TEST_ID_1, TEST_ID_2, TEST_ID_3, "unknown").get(i % 4));
+        }
+
+        // when
+        SegmentBatch sequential = cacheTargetingSystem.lookupUserSegmentsBatch(ids, false, 12);
+        SegmentBatch parallel = cacheTargetingSystem.lookupUserSegmentsBatch(ids, false, 12, true);
+
+        // then
+        assertThat(parallel.offsets(), is(equalTo(sequential.offsets())));
+        assertThat(parallel.segments(), is(equalTo(sequential.segments())));
+        for (int i = 0; i < ids.size(); i++) {
+            List<Integer> segments = new ArrayList<>();
+            for (int segment : parallel.segmentsOf(i)) {
+                segments.add(segment);
+            }
+            assertThat(segments, is(equalTo(cacheTargetingSystem.lookupUserSegments(ids.get(i), false, 12))));
+        }
+    }
+
+    @Test
+    public void lookupUserSegments_intoCallerBuffer_thenSteadyStateAllocatesNothing() {
+        // given
+        ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        TargetingSystem cacheTargetingSystem = new TargetingSystem(new CacheImplementation());
+        String[] ids = {TEST_ID_1, TEST_ID_2, TEST_ID_3, "unknown"};
+        int[] out = new int[16];
+        long checksum = 0;
+        for (int i = 0; i < 50_000; i++) {
+            checksum += cacheTargetingSystem.lookupUserSegments(ids[i & 3], (i & 4) == 0, 16, out);
+        }
+
+        // when
+        long before = threadMXBean.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 10_000; i++) {
+            checksum += cacheTargetingSystem.lookupUserSegments(ids[i & 3], (i & 4) == 0, 16, out);
+        }
+        long allocated = threadMXBean.getCurrentThreadAllocatedBytes() - before;
+
+        // then
+        assertThat(checksum > 0, is(true));
+        assertThat(allocated, is(0L));
+        assertThat(cacheTargetingSystem.lookupUserSegments(TEST_ID_1, false, 3, out), is(3));
+        assertThat(Arrays.copyOf(out, 3), is(equalTo(new int[]{11112, 11113, 11114})));
+    }
+
+    @Test
+    public void lookupUserSegments_unknownIdWithCacheMock_thenEmptyListIsReturned() {
+        // given
+        when(cacheMock.lookupIdMappings("unknown")).thenReturn(null);
+
+        // when
+        Collection<Integer> result = targetingSystem.lookupUserSegments("unknown", false, 3);
+
+        // then
+        verify(cacheMock).lookupIdMappings("unknown");
+
+        assertThat(result, is(Collections.emptyList()));
+    }
+
     private void populateRestrictedSegments() {
         restrictedSegments.clear();
         restrictedSegments = Arrays.asList(11111, 22222, 33333, 44444, 55555, 66666, 77777, 88888);
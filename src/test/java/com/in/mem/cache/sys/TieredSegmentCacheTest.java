@@ -0,0 +1,263 @@
+package com.in.mem.cache.sys;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class TieredSegmentCacheTest {
+
+    // object under test
+    private TieredSegmentCache tieredSegmentCache;
+
+    // test values, variables, constants
+    private static final String TEST_ID_1 = "ID19876";
+    private static final String TEST_ID_2 = "ID29876";
+    private static final String TEST_ID_3 = "ID39876";
+    private CacheImplementation cache;
+    private SegmentIndex segmentIndex;
+    private TargetingSystem mergingTargetingSystem;
+
+    @BeforeEach
+    public void setUp() {
+        cache = new CacheImplementation();
+        segmentIndex = cache.segmentIndex();
+        mergingTargetingSystem = new TargetingSystem(cache);
+    }
+
+    @Test
+    public void whenLookingUpTwice_thenTheSecondLookupHitsTheHotTier() {
+        // given
+        tieredSegmentCache = new TieredSegmentCache(1 << 20, 1 << 20);
+        int user = segmentIndex.userOrdinal(TEST_ID_1);
+
+        // when
+        int[] first = resolve(user, false, 100);
+        int[] second = resolve(user, false, 100);
+
+        // then
+        assertThat(first, is(equalTo(merge(TEST_ID_1, false, 100))));
+        assertThat(second, is(equalTo(first)));
+        TieredSegmentCache.Stats stats = tieredSegmentCache.stats();
+        assertThat(stats.misses(), is(1L));
+        assertThat(stats.hotHits(), is(1L));
+        assertThat(stats.hotRows(), is(1));
+        assertThat(stats.coldRows(), is(1));
+        assertThat(stats.hotHitRate(), is(0.5));
+    }
+
+    @Test
+    public void whenTheHotTierIsFull_thenOnlyMoreFrequentRowsArePromoted() {
+        // given room for one row only, taken by the filtered segments
+        tieredSegmentCache = new TieredSegmentCache(hotDirectoryBytes() + 100, 1 << 20);
+        int user = segmentIndex.userOrdinal(TEST_ID_1);
+        resolve(user, false, 100);
+
+        // when
+        int[] once = resolve(user, true, 100);
+        TieredSegmentCache.Stats afterOnce = tieredSegmentCache.stats();
+        resolve(user, true, 100);
+        int[] often = resolve(user, true, 100);
+
+        // then
+        assertThat(afterOnce.promotions(), is(1L));
+        assertThat(afterOnce.demotions(), is(0L));
+        assertThat(once, is(equalTo(merge(TEST_ID_1, true, 100))));
+        assertThat(often, is(equalTo(once)));
+        TieredSegmentCache.Stats stats = tieredSegmentCache.stats();
+        assertThat(stats.promotions(), is(2L));
+        assertThat(stats.demotions(), is(1L));
+        assertThat(stats.hotRows(), is(1));
+        assertThat(stats.coldHits(), is(2L));
+        assertThat(stats.hotHits(), is(1L));
+        assertThat(resolve(user, false, 100), is(equalTo(merge(TEST_ID_1, false, 100))));
+        assertThat(tieredSegmentCache.stats().coldHits(), is(3L));
+    }
+
+    @Test
+    public void whenACandidateLosesToALaterVictim_thenNoEarlierVictimIsDemoted() {
+        // given a hot tier with exactly the room of the two smaller rows, the first looked up once and the
+        // second four times
+        int small = segmentIndex.userOrdinal(TEST_ID_1);
+        int often = segmentIndex.userOrdinal(TEST_ID_3);
+        int large = segmentIndex.userOrdinal(TEST_ID_2);
+        tieredSegmentCache = new TieredSegmentCache(hotDirectoryBytes() + rowBytes(TEST_ID_1) + rowBytes(TEST_ID_3),
+                0);
+        resolve(small, true, 100);
+        for (int i = 0; i < 4; i++) {
+            resolve(often, true, 100);
+        }
+
+        // when the larger row, looked up twice, would need both rows demoted
+        resolve(large, true, 100);
+        int[] result = resolve(large, true, 100);
+
+        // then
+        assertThat(result, is(equalTo(merge(TEST_ID_2, true, 100))));
+        TieredSegmentCache.Stats stats = tieredSegmentCache.stats();
+        assertThat(stats.promotions(), is(2L));
+        assertThat(stats.demotions(), is(0L));
+        assertThat(stats.hotRows(), is(2));
+        resolve(small, true, 100);
+        assertThat(tieredSegmentCache.stats().hotHits(), is(stats.hotHits() + 1));
+    }
+
+    @Test
+    public void whenDeltasArePublished_thenOnlyTheChangedUsersLeaveTheTiers() throws IOException {
+        // given every user in both tiers
+        CacheImplementation tieredCache = new CacheImplementation();
+        tieredCache.setTierBudgets(1 << 20, 1 << 20);
+        tieredSegmentCache = tieredCache.tieredSegmentCache();
+        TargetingSystem targetingSystem = new TargetingSystem(tieredCache);
+        List<String> ids = List.of(TEST_ID_1, TEST_ID_2, TEST_ID_3);
+        ids.forEach(id -> targetingSystem.lookupUserSegments(id, false, 100));
+
+        // when a device of the second user changes and a user is added
+        List<Delta> deltas = List.of(Delta.addSegment("device21234", 99999),
+                Delta.linkDevice("ID49876", "device12345"));
+        tieredCache.applyDeltas(deltas);
+        cache.applyDeltas(deltas);
+        TieredSegmentCache.Stats afterDeltas = tieredSegmentCache.stats();
+
+        // then
+        assertThat(afterDeltas.hotRows(), is(2));
+        assertThat(afterDeltas.coldRows(), is(2));
+        for (final String id : List.of(TEST_ID_1, TEST_ID_2, TEST_ID_3, "ID49876")) {
+            assertThat(targetingSystem.lookupUserSegments(id, false, 100),
+                    is(equalTo(mergingTargetingSystem.lookupUserSegments(id, false, 100))));
+        }
+        TieredSegmentCache.Stats stats = tieredSegmentCache.stats();
+        assertThat(stats.hotHits() - afterDeltas.hotHits(), is(2L));
+        assertThat(stats.misses() - afterDeltas.misses(), is(2L));
+        assertThat(targetingSystem.lookupUserSegments(TEST_ID_2, false, 100).contains(99999), is(true));
+
+        // and when the restricted segments change, the filtered rows go and the cold rows stay
+        tieredCache.applyDeltas(List.of(Delta.addRestricted(11112)));
+        assertThat(tieredSegmentCache.stats().hotRows(), is(0));
+        assertThat(tieredSegmentCache.stats().coldRows(), is(3));
+        assertThat(targetingSystem.lookupUserSegments(TEST_ID_1, false, 100).contains(11112), is(false));
+        tieredCache.close();
+    }
+
+    @Test
+    public void whenTheColdTierIsFull_thenRarelyUsedRowsAreReclaimed() {
+        // given a cold tier of one 64 byte block and no hot tier
+        tieredSegmentCache = new TieredSegmentCache(0,
+                TieredSegmentCache.coldDirectoryBytes(segmentIndex.userCount()) + 64);
+
+        // when
+        for (final String id : List.of(TEST_ID_1, TEST_ID_3, TEST_ID_1)) {
+            assertThat(resolve(segmentIndex.userOrdinal(id), true, 100), is(equalTo(merge(id, true, 100))));
+        }
+
+        // then
+        TieredSegmentCache.Stats stats = tieredSegmentCache.stats();
+        assertThat(stats.misses(), is(3L));
+        assertThat(stats.coldRows(), is(1));
+        assertThat(stats.coldBytes(), is(lessThanOrEqualTo(64L)));
+        assertThat(stats.hotRows(), is(0));
+    }
+
+    @Test
+    public void whenABudgetCannotHoldItsDirectory_thenThatTierStaysOff() {
+        // given
+        tieredSegmentCache = new TieredSegmentCache(hotDirectoryBytes(),
+                TieredSegmentCache.coldDirectoryBytes(segmentIndex.userCount()) + 64);
+        int user = segmentIndex.userOrdinal(TEST_ID_1);
+
+        // when
+        for (int i = 0; i < 3; i++) {
+            resolve(user, true, 100);
+        }
+
+        // then
+        TieredSegmentCache.Stats stats = tieredSegmentCache.stats();
+        assertThat(stats.hotRows(), is(0));
+        assertThat(stats.coldRows(), is(1));
+        assertThat(stats.coldHits(), is(2L));
+    }
+
+    @Test
+    public void whenTheCacheReportsItsFootprint_thenTheTierDirectoriesAreIncluded() throws IOException {
+        // given
+        CacheImplementation tieredCache = new CacheImplementation();
+        tieredCache.setTierBudgets(1 << 20, 1 << 20);
+        LookupMetrics metrics = new LookupMetrics();
+
+        // when
+        tieredCache.setMetricsRecorder(metrics);
+
+        // then
+        int users = segmentIndex.userCount();
+        assertThat(metrics.getHeapBytes().get("hotTier"),
+                is(greaterThanOrEqualTo(TieredSegmentCache.hotDirectoryBytes(users))));
+        assertThat(metrics.getHeapBytes().get("coldTier"),
+                is(greaterThanOrEqualTo(TieredSegmentCache.coldDirectoryBytes(users))));
+        assertThat(metrics.getHeapBytes().get("users"), is(greaterThan(0L)));
+        tieredCache.close();
+    }
+
+    @Test
+    public void whenLookingUpThroughTargetingSystem_thenResultsMatchMerging() {
+        // given
+        CacheImplementation tieredCache = new CacheImplementation();
+        tieredCache.setTierBudgets(hotDirectoryBytes() + 200, 1 << 20);
+        tieredSegmentCache = tieredCache.tieredSegmentCache();
+        TargetingSystem targetingSystem = new TargetingSystem(tieredCache);
+        List<String> ids = List.of(TEST_ID_1, TEST_ID_2, TEST_ID_3, "unknown", TEST_ID_1, TEST_ID_1, TEST_ID_2);
+
+        for (int round = 0; round < 3; round++) {
+            for (final boolean allowRestrictedSegments : new boolean[]{false, true}) {
+                // when
+                SegmentBatch result = targetingSystem.lookupUserSegmentsBatch(ids, allowRestrictedSegments, 7);
+                int[] single = new int[4];
+                int count = targetingSystem.lookupUserSegments(TEST_ID_2, allowRestrictedSegments, 10, single);
+
+                // then
+                SegmentBatch expected = mergingTargetingSystem.lookupUserSegmentsBatch(ids, allowRestrictedSegments,
+                        7);
+                assertThat(result.offsets(), is(equalTo(expected.offsets())));
+                assertThat(result.segments(), is(equalTo(expected.segments())));
+                assertThat(count, is(4));
+                assertThat(single, is(equalTo(merge(TEST_ID_2, allowRestrictedSegments, 4))));
+                assertThat(targetingSystem.lookupUserSegments(TEST_ID_3, allowRestrictedSegments, 5),
+                        is(equalTo(mergingTargetingSystem.lookupUserSegments(TEST_ID_3, allowRestrictedSegments, 5))));
+            }
+        }
+        TieredSegmentCache.Stats stats = tieredSegmentCache.stats();
+        assertThat(stats.hotHits() + stats.coldHits(), is(stats.lookups() - stats.misses()));
+        assertThat(stats.hotBytes(), is(lessThanOrEqualTo(200L)));
+        assertThat(stats.misses(), is(3L));
+    }
+
+    private int[] resolve(final int user, final boolean allowRestrictedSegments, final int segmentLimit) {
+        int[] out = new int[segmentLimit];
+        int count = tieredSegmentCache.resolve(segmentIndex, user, allowRestrictedSegments, segmentLimit, out);
+        return Arrays.copyOf(out, count);
+    }
+
+    private long hotDirectoryBytes() {
+        return TieredSegmentCache.hotDirectoryBytes(segmentIndex.userCount());
+    }
+
+    private long rowBytes(final String id) {
+        return IdDictionary.ARRAY_HEADER_BYTES + Integer.BYTES * (long) merge(id, true, 100).length;
+    }
+
+    private int[] merge(final String id, final boolean allowRestrictedSegments, final int segmentLimit) {
+        int[] out = new int[segmentLimit];
+        int count = mergingTargetingSystem.lookupUserSegments(id, allowRestrictedSegments, segmentLimit, out);
+        return Arrays.copyOf(out, count);
+    }
+}